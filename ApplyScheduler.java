@@ -0,0 +1,230 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* PARALLEL APPLY OF REPLICATED COMMITS (BACKUP) :
+ * The primary ships COMMITs in commit LSN order, applying them one at a time would leave the backup behind a primary that commits to many files at once
+ *  - COMMITs are split into lanes, one lane per file: COMMITs to the same file are applied one after the other in commit LSN order,
+ *    COMMITs to different files are applied in parallel on the worker pool
+ *  - COMMITs finish out of order, the applied watermark only advances over a contiguous range of applied commit LSNs: it becomes the server's
+ *    commit LSN (LogRecord.getCurrentLSN), which is what the backup acknowledges and where the primary resumes after a reconnect
+ *
+ * A COMMIT above the watermark can be applied again after a reconnect or a crash, it is written at the offset the primary committed it at,
+ * so applying it twice leaves the same bytes in the file.
+ *
+ * A COMMIT that cannot be applied stops the watermark below it: it is dropped with the COMMITs queued behind it in its lane, and COMMITs are
+ * dropped as they are submitted, until the next connection. The listener closes the connection, the primary reconnects and resends every
+ * COMMIT after the watermark (those that were applied in the meantime are recognized by isKnown and dropped).
+ */
+public class ApplyScheduler {
+
+	/* called by a worker (outside of the scheduler's lock) every time the watermark advances */
+	public interface Listener {
+		void applied (int watermark);
+
+		/* a COMMIT could not be applied, the primary has to send it again */
+		void failed (int commitLSN);
+	}
+
+	private class Lane {
+		private final ArrayDeque<LogRecord> pending = new ArrayDeque<LogRecord>();
+		private boolean running = false;
+	}
+
+	private final ExecutorService workers;
+	private final int maxInFlight;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final HashMap<String, Lane> lanes = new HashMap<String, Lane>(); // a file has a lane while it has COMMITs waiting or being applied
+	private final TreeSet<Integer> inFlight = new TreeSet<Integer>(); // commit LSNs submitted but not applied yet
+	private final TreeSet<Integer> applied = new TreeSet<Integer>(); // commit LSNs applied above the watermark
+	private int watermark;
+	private Listener listener = null;
+	private boolean failed = false; // a COMMIT could not be applied, COMMITs are dropped until the next connection
+
+	public ApplyScheduler (int workerCount, int maxInFlight) {
+		final AtomicInteger threads = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			public Thread newThread (Runnable task) {
+				Thread thread = new Thread(task, "replication-apply-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.maxInFlight = maxInFlight;
+		this.watermark = LogRecord.getCurrentLSN();
+	}
+
+	/* the listener of the current replication connection, replaces the previous one (the primary resends from the watermark) */
+	public void setListener (Listener listener) {
+		lock.lock();
+		try {
+			this.listener = listener;
+			failed = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void removeListener (Listener listener) {
+		lock.lock();
+		try {
+			if (this.listener == listener) {
+				this.listener = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* highest commit LSN such that it and every commit LSN before it have been applied */
+	public int getWatermark () {
+		lock.lock();
+		try {
+			return watermark;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* true if the COMMIT has already been applied or is being applied (a resent COMMIT is then dropped) */
+	public boolean isKnown (int commitLSN) {
+		lock.lock();
+		try {
+			return commitLSN <= watermark || inFlight.contains(commitLSN) || applied.contains(commitLSN);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* queues a COMMIT received from the primary, COMMITs must be submitted in commit LSN order
+	 * blocks while maxInFlight COMMITs are waiting to be applied, so the connection stops reading instead of buffering the primary's backlog */
+	public void submit (LogRecord transaction) {
+		Lane lane;
+		boolean start = false;
+		lock.lock();
+		try {
+			while (inFlight.size() >= maxInFlight) {
+				changed.awaitUninterruptibly();
+			}
+			if (failed) {
+				// resent after the next connection
+				discard(transaction);
+				return;
+			}
+			inFlight.add(transaction.getCommitLSN());
+
+			lane = lanes.get(transaction.getFileName());
+			if (lane == null) {
+				lane = new Lane();
+				lanes.put(transaction.getFileName(), lane);
+			}
+			lane.pending.add(transaction);
+			if (!lane.running) {
+				lane.running = true;
+				start = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (start) {
+			final String filename = transaction.getFileName();
+			final Lane toRun = lane;
+			workers.execute(new Runnable() {
+				public void run () {
+					runLane(filename, toRun);
+				}
+			});
+		}
+	}
+
+	private void runLane (String filename, Lane lane) {
+		while (true) {
+			LogRecord transaction;
+			lock.lock();
+			try {
+				transaction = lane.pending.peek();
+				if (transaction == null) {
+					lane.running = false;
+					lanes.remove(filename);
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (!FileServer.applyReplicatedTransaction(transaction)) {
+				fail(filename, lane, transaction);
+				return;
+			}
+
+			Listener toNotify = null;
+			int advancedTo = -1;
+			lock.lock();
+			try {
+				lane.pending.poll();
+				inFlight.remove(transaction.getCommitLSN());
+				if (transaction.getCommitLSN() > watermark) {
+					applied.add(transaction.getCommitLSN());
+				}
+				int previous = watermark;
+				while (!applied.isEmpty() && applied.first() == watermark + 1) {
+					watermark = applied.pollFirst();
+				}
+				if (watermark > previous) {
+					LogRecord.setLSN(watermark);
+					toNotify = listener;
+					advancedTo = watermark;
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			if (toNotify != null) {
+				toNotify.applied(advancedTo);
+			}
+		}
+	}
+
+	/* drops the COMMIT that could not be applied and those queued behind it (they must not be written before it), the primary resends them */
+	private void fail (String filename, Lane lane, LogRecord transaction) {
+		Listener toNotify;
+		lock.lock();
+		try {
+			failed = true;
+			for (LogRecord dropped : lane.pending) {
+				inFlight.remove(dropped.getCommitLSN());
+				discard(dropped);
+			}
+			lane.pending.clear();
+			lane.running = false;
+			lanes.remove(filename);
+			toNotify = listener;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		System.out.println(String.format("Replicated COMMITs from CLSN: %d on are dropped, they will be resent by the primary", transaction.getCommitLSN()));
+
+		if (toNotify != null) {
+			toNotify.failed(transaction.getCommitLSN());
+		}
+	}
+
+	// the staged data of a COMMIT that is not applied is not referenced by anything, a resent COMMIT brings its own
+	private static void discard (LogRecord transaction) {
+		for (String stagedFile : transaction.getStagedFiles()) {
+			FileServer.getStagingFile(stagedFile).delete();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+/* FUZZY CHECKPOINTS :
+ * Keeps the log, and the time it takes to recover from it, proportional to recent activity instead of the server's whole history.
+ * The log is a sequence of segments, entries are appended to the last one. Every interval, if the log has grown:
+ *  - the log writer switches to a new segment, transactions keep logging while the checkpoint is taken
+ *  - the previous checkpoint and the segments written since are replayed into a new checkpoint that only holds what recovery still needs:
+ *    the commit LSN, and the entries of every transaction that is still live (neither committed nor aborted), whose COMMIT has not been flushed,
+ *    or that the backup has not acknowledged yet (the primary ships it from commitDB, which recovery rebuilds from the log)
+ *  - the new checkpoint replaces the previous one (atomic rename), then the segments it covers are deleted
+ * Recovery replays the checkpoint, then the segments written after it. A crash while a checkpoint is being taken leaves the previous checkpoint
+ * and all of its segments in place.
+ *
+ * The checkpoint is built from the log rather than from the in-memory transactions, so it never misses an entry that has been logged
+ * but not applied in memory yet.
+ */
+public class Checkpointer implements Runnable {
+
+	// state rebuilt from the log, in log order
+	private static class Replay {
+		private final LinkedHashMap<Long, ArrayList<LogRecord>> live = new LinkedHashMap<Long, ArrayList<LogRecord>>();
+		private final HashSet<Integer> localLSNs = new HashSet<Integer>(); // commit LSNs of the transactions logged on this server
+		private final TreeMap<Integer, LogRecord> replicated = new TreeMap<Integer, LogRecord>(); // flushed COMMITs received from the primary (backup)
+		private final int retainLSN;
+
+		private Replay (int retainLSN) {
+			this.retainLSN = retainLSN;
+		}
+	}
+
+	private final LogWriter logWriter;
+	private final long interval; // UNIT: ms
+	private long checkpointedEntries = 0; // entries the log writer had made durable when the last checkpoint started
+
+	public Checkpointer (LogWriter logWriter, long interval) {
+		this.logWriter = logWriter;
+		this.interval = interval;
+	}
+
+	public void start () {
+		Thread thread = new Thread(this, "checkpointer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run () {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// nothing has been logged since the last checkpoint
+			if (logWriter.getEntryCount() == checkpointedEntries) continue;
+
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				System.out.println("Checkpoint failed, the log is kept as it is: " + e.getMessage());
+			}
+		}
+	}
+
+	public synchronized void checkpoint () throws IOException {
+		long logged = logWriter.getEntryCount();
+		int next = logWriter.rotate();
+		checkpointedEntries = logged;
+
+		Replay replay = new Replay(FileServer.getReplicationRetainLSN());
+		File checkpointFile = FileServer.getCheckpointFile();
+		int firstSegment = 0;
+		int base = 0;
+		if (checkpointFile.exists()) {
+			LogCodec.Checkpoint previous = replay(checkpointFile, true, replay);
+			if (previous == null) {
+				throw new IOException("checkpoint " + checkpointFile.getName() + " is unreadable");
+			}
+			firstSegment = previous.getFirstSegment();
+			base = previous.getCommitLSN();
+		}
+		for (Integer segment : FileServer.getLogSegments()) {
+			if (segment >= firstSegment && segment < next) {
+				replay(FileServer.getLogSegment(segment), false, replay);
+			}
+		}
+
+		int commitLSN = durableLSN(base, replay.localLSNs, replay.replicated.navigableKeySet());
+
+		File temp = FileServer.getTempFile(checkpointFile.getName());
+		FileOutputStream file = new FileOutputStream(temp);
+		try {
+			OutputStream out = new BufferedOutputStream(file, 64 * 1024);
+			out.write(LogCodec.getFileHeader());
+			out.write(LogCodec.encodeCheckpoint(new LogCodec.Checkpoint(next, commitLSN)));
+			for (ArrayList<LogRecord> entries : replay.live.values()) {
+				for (LogRecord entry : entries) {
+					out.write(LogCodec.encode(entry));
+				}
+			}
+			// replicated COMMITs above a gap are kept until the gap has been filled
+			for (LogRecord entry : replay.replicated.tailMap(commitLSN, false).values()) {
+				out.write(LogCodec.encode(entry));
+			}
+			out.flush();
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+		Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		FileServer.forceDirectory(checkpointFile);
+
+		logWriter.deleteSegmentsBefore(next);
+	}
+
+	/* replays a checkpoint or a log segment, returns the checkpoint's header (null for a segment) */
+	private static LogCodec.Checkpoint replay (File log, boolean isCheckpoint, Replay replay) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(log), 64 * 1024);
+		try {
+			byte[] header = new byte[LogCodec.getFileHeaderLength()];
+			if (!LogCodec.hasFileHeader(header, in.readNBytes(header, 0, header.length))) {
+				throw new IOException(log.getName() + " is not a binary log");
+			}
+			LogCodec.Checkpoint checkpoint = null;
+			if (isCheckpoint) {
+				checkpoint = LogCodec.readCheckpoint(in);
+				if (checkpoint == null) return null;
+			}
+
+			LogCodec.Reader reader = new LogCodec.Reader(in);
+			LogRecord entry;
+			while ((entry = reader.next()) != null) {
+				apply(entry, replay);
+			}
+			return checkpoint;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void apply (LogRecord entry, Replay replay) {
+		long transactionID = entry.getTransactionID();
+		ArrayList<LogRecord> entries = replay.live.get(transactionID);
+
+		switch (entry.getMethod()) {
+		case NEW_TXN:
+			entries = new ArrayList<LogRecord>();
+			entries.add(entry);
+			replay.live.put(transactionID, entries);
+			break;
+		case COMMIT:
+			if (entries == null) {
+				// a COMMIT applied by a backup (see FileServer.recoverReplicatedLSN), an unflushed one is resent by the primary
+				if (entry.hasFlushed()) {
+					replay.replicated.put(entry.getCommitLSN(), entry);
+				}
+				break;
+			}
+			replay.localLSNs.add(entry.getCommitLSN());
+			if (entry.hasFlushed() && entry.getCommitLSN() <= replay.retainLSN) {
+				replay.live.remove(transactionID);
+			} else {
+				// an unflushed COMMIT is redone by recovery unless the flushed COMMIT follows
+				entries.add(entry);
+			}
+			break;
+		case ABORT:
+			replay.live.remove(transactionID);
+			break;
+		default:
+			if (entries != null) {
+				entries.add(entry);
+			}
+			break;
+		}
+	}
+
+	/* commit LSN recovered from a log that starts at commit LSN base:
+	 * replicated COMMITs are applied in parallel on a backup, the log can hold flushed COMMITs above one that never was (the server crashed first),
+	 * the commit LSN is then the end of the contiguous range of flushed COMMITs and the primary resends everything after it
+	 * (unless this server has committed transactions of its own after the gap, as a primary, which keep their commit LSNs) */
+	public static int durableLSN (int base, Set<Integer> localLSNs, NavigableSet<Integer> replicatedLSNs) {
+		int localLSN = base;
+		for (Integer commitLSN : localLSNs) {
+			localLSN = Math.max(localLSN, commitLSN);
+		}
+		if (replicatedLSNs.isEmpty()) return localLSN;
+
+		int contiguousLSN = base;
+		while (replicatedLSNs.contains(contiguousLSN + 1) || localLSNs.contains(contiguousLSN + 1)) {
+			contiguousLSN++;
+		}
+		if (contiguousLSN >= localLSN) {
+			return contiguousLSN;
+		}
+		return Math.max(localLSN, replicatedLSNs.last());
+	}
+}
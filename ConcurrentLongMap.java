@@ -0,0 +1,229 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* CONCURRENT LONG-KEYED MAP :
+ * Map from primitive keys (TIDs, commit LSNs) to values, the lookup every request makes neither boxes its key nor takes a lock
+ *  - the keys are spread over SEGMENTS segments by runs of 2^SEGMENT_SHIFT consecutive keys, each segment is its own open addressing table
+ *    (linear probing over a keys array and a values array, kept at most half full)
+ *  - reads are lock-free: a reader probes the current table of the key's segment, a slot is published by setting its value before its key
+ *    (release/acquire array accesses), so a reader that finds the key also finds the value
+ *  - writers are serialized by the lock of the segment they write to, a slot keeps its key once it has one: remove() only clears the value,
+ *    and a resize copies the live entries into a new table that replaces the current one with a single volatile write
+ *    (the TIDs of a thread's block of IDs share a segment, see TransactionIDAllocator, so NEW_TXNs on different threads do not contend)
+ * A read that runs concurrently with a write to the same key returns the value from before or after the write.
+ */
+public class ConcurrentLongMap<V> {
+
+	private static final long FREE = Long.MIN_VALUE; // key of a slot that has never been used, cannot be used as a key
+	private static final int MIN_CAPACITY = 64;
+	private static final int SEGMENT_BITS = 4;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_SHIFT = 6;
+	private static final long RUN_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private static class Table {
+		private final long[] keys;
+		private final Object[] values;
+		private final int mask;
+
+		private Table (int capacity) {
+			keys = new long[capacity];
+			Arrays.fill(keys, FREE);
+			values = new Object[capacity];
+			mask = capacity - 1;
+		}
+
+		private long key (int i) {
+			return (long) KEYS.getAcquire(keys, i);
+		}
+
+		private Object value (int i) {
+			return VALUES.getAcquire(values, i);
+		}
+
+		private void set (int i, long key, Object value) {
+			VALUES.setRelease(values, i, value);
+			KEYS.setRelease(keys, i, key);
+		}
+
+		private void setValue (int i, Object value) {
+			VALUES.setRelease(values, i, value);
+		}
+	}
+
+	private static class Segment {
+		private final Lock writeLock = new ReentrantLock();
+		private volatile Table table = new Table(MIN_CAPACITY);
+		private volatile int size = 0;
+		private int used = 0; // slots that have a key (with or without a value), guarded by writeLock
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	public ConcurrentLongMap () {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get (long key) {
+		Table current = segmentFor(key).table;
+		for (int i = slot(key, current.mask); ; i = (i + 1) & current.mask) {
+			long k = current.key(i);
+			if (k == key) return (V) current.value(i);
+			if (k == FREE) return null;
+		}
+	}
+
+	public boolean containsKey (long key) {
+		return get(key) != null;
+	}
+
+	/* returns the previous value, null if there was none */
+	public V put (long key, V value) {
+		return put(key, value, false);
+	}
+
+	/* returns the current value and leaves it in place if there is one, otherwise adds value and returns null */
+	public V putIfAbsent (long key, V value) {
+		return put(key, value, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove (long key) {
+		Segment segment = segmentFor(key);
+		segment.writeLock.lock();
+		try {
+			Table current = segment.table;
+			int i = find(current, key);
+			if (current.key(i) != key) return null;
+			V previous = (V) current.value(i);
+			current.setValue(i, null);
+			if (previous != null) segment.size--;
+			return previous;
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	public int size () {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/* snapshot of the values */
+	@SuppressWarnings("unchecked")
+	public ArrayList<V> values () {
+		ArrayList<V> values = new ArrayList<V>(size());
+		for (Segment segment : segments) {
+			Table current = segment.table;
+			for (int i = 0; i <= current.mask; i++) {
+				Object value = current.value(i);
+				if (value != null) {
+					values.add((V) value);
+				}
+			}
+		}
+		return values;
+	}
+
+	/* snapshot of the keys */
+	public ArrayList<Long> keys () {
+		ArrayList<Long> keys = new ArrayList<Long>(size());
+		for (Segment segment : segments) {
+			Table current = segment.table;
+			for (int i = 0; i <= current.mask; i++) {
+				long key = current.key(i);
+				if (key != FREE && current.value(i) != null) {
+					keys.add(key);
+				}
+			}
+		}
+		return keys;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V put (long key, V value, boolean onlyIfAbsent) {
+		if (value == null) {
+			throw new NullPointerException("ConcurrentLongMap does not hold null values");
+		}
+		if (key == FREE) {
+			throw new IllegalArgumentException("Key " + key + " is reserved");
+		}
+		Segment segment = segmentFor(key);
+		segment.writeLock.lock();
+		try {
+			Table current = segment.table;
+			int i = find(current, key);
+			if (current.key(i) == key) {
+				V previous = (V) current.value(i);
+				if (previous != null && onlyIfAbsent) return previous;
+				current.setValue(i, value);
+				if (previous == null) segment.size++;
+				return previous;
+			}
+
+			if ((segment.used + 1) * 2 > current.mask + 1) {
+				current = resize(segment);
+				i = find(current, key);
+			}
+			current.set(i, key, value);
+			segment.used++;
+			segment.size++;
+			return null;
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	/* slot holding the key, or the free slot where it would go (the table always has free slots) */
+	private static int find (Table table, long key) {
+		for (int i = slot(key, table.mask); ; i = (i + 1) & table.mask) {
+			long k = table.key(i);
+			if (k == key || k == FREE) return i;
+		}
+	}
+
+	// the segment's writeLock must be held
+	private static Table resize (Segment segment) {
+		Table current = segment.table;
+		int capacity = MIN_CAPACITY;
+		while (capacity < (segment.size + 1) * 4) {
+			capacity <<= 1;
+		}
+		Table resized = new Table(capacity);
+		int live = 0;
+		for (int i = 0; i <= current.mask; i++) {
+			Object value = current.value(i);
+			if (value == null) continue;
+			long key = current.key(i);
+			resized.set(find(resized, key), key, value);
+			live++;
+		}
+		segment.used = live;
+		segment.table = resized;
+		return resized;
+	}
+
+	private Segment segmentFor (long key) {
+		return segments[(int) (key >>> SEGMENT_SHIFT) & (SEGMENTS - 1)];
+	}
+
+	// consecutive keys of a segment (commit LSNs) land in consecutive slots, the high bits are folded in for keys that only differ there
+	private static int slot (long key, int mask) {
+		long local = ((key >>> (SEGMENT_SHIFT + SEGMENT_BITS)) << SEGMENT_SHIFT) | (key & RUN_MASK); // the key without its segment bits
+		int hash = (int) (local ^ (local >>> 32));
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+}
@@ -17,9 +17,9 @@ public class Client extends Thread {
 	private static String filename; // the file that all clients will be writing to
 	private static int totalWrites = 20;
 	private static Lock mutexLock = new ReentrantLock();
-	public static ArrayList<Integer> commitOrder = new ArrayList<Integer>();
+	public static ArrayList<Long> commitOrder = new ArrayList<Long>();
 	
-	private int transactionID;
+	private long transactionID;
 	private Socket socket;
 	private DataOutputStream out;
 	private String dataToWrite;
@@ -27,7 +27,7 @@ public class Client extends Thread {
 	
 	private static final CountDownLatch startBarrier = new CountDownLatch(ConcurrencyTest.getTotalClients());
 	
-	public Client (String address, int port, String file, String data, int tid) {
+	public Client (String address, int port, String file, String data, long tid) {
 		
 		try {
 			serverAddress = InetAddress.getByName(address);
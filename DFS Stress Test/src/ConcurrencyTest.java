@@ -79,11 +79,11 @@ public class ConcurrencyTest {
 				sb.append(fileData);
 			}
 
-			ArrayList<Integer> transactionList = requestTransactions(clientCount, filename);
+			ArrayList<Long> transactionList = requestTransactions(clientCount, filename);
 
 			int data = 0;
-			for (Integer i : transactionList) {
-				new Client(serverAddress.getHostAddress(), serverPort, filename, Integer.toString(data), i.intValue()).start();
+			for (Long i : transactionList) {
+				new Client(serverAddress.getHostAddress(), serverPort, filename, Integer.toString(data), i.longValue()).start();
 				data++;
 			}
 
@@ -99,7 +99,7 @@ public class ConcurrencyTest {
 
 
 			System.out.println("Commit order - by transaction ID: ");
-			for (Integer s : Client.commitOrder) {
+			for (Long s : Client.commitOrder) {
 				System.out.println(s);
 			}
 			System.out.println();
@@ -253,9 +253,9 @@ public class ConcurrencyTest {
 	}
 
 
-	public static ArrayList<Integer> requestTransactions (int count, String filename) {
+	public static ArrayList<Long> requestTransactions (int count, String filename) {
 		Socket s = null;
-		ArrayList<Integer> transactionList = null;
+		ArrayList<Long> transactionList = null;
 		try {
 			s = new Socket(serverAddress, serverPort);
 			s.setSoTimeout(200);
@@ -270,7 +270,7 @@ public class ConcurrencyTest {
 				System.exit(1);
 			}
 
-			transactionList = new ArrayList<Integer>();
+			transactionList = new ArrayList<Long>();
 			String newTransactionRequest = buildRequest(RequestMethod.NEW_TXN, -1, 0, filename.length(), filename);
 			int bytesRead = 0;
 			String responseHeader = null;
@@ -294,7 +294,7 @@ public class ConcurrencyTest {
 						responseHeader = new String (buffer);
 						responseHeader = responseHeader.substring(0, responseHeader.indexOf(CRLF));
 						//System.out.println(responseHeader);
-						transactionList.add(new Integer(responseHeader.split(" ")[1]));
+						transactionList.add(Long.valueOf(responseHeader.split(" ")[1]));
 					}
 				} catch (SocketTimeoutException e) {
 					
@@ -351,7 +351,7 @@ public class ConcurrencyTest {
 	}
 
 	// Note: only request messages that should contain data are NEW_TXN, READ, & WRITE
-	public static String buildRequest (RequestMethod method, int tid, int sequenceNumber, int contentLength, String data) {
+	public static String buildRequest (RequestMethod method, long tid, int sequenceNumber, int contentLength, String data) {
 
 		String response = method.name() + " " + tid + " " + sequenceNumber + " " + contentLength;
 		if (contentLength == 0 && data == null)
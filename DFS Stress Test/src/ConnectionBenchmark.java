@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/* Measures how the server copes with a large number of concurrent client connections.
+ * For every connection count the benchmark:
+ *  1. opens all connections and keeps them open (connect phase)
+ *  2. sends one NEW_TXN request on every open connection at the same time and waits for all the responses (request phase)
+ *  3. closes every connection
+ *
+ * The client side uses a single selector thread, so the number of connections it can hold is only limited by file descriptors and ephemeral ports.
+ * To compare execution modes, run the benchmark once against a server started with -frontend thread and once with -frontend virtual (or nio)
+ * and pass the mode with -label so that the result lines can be told apart.
+ *
+ * Note: 10k+ connections need a raised file descriptor limit (ulimit -n) on both sides, and 50k connections to a single server address
+ * need a wider ephemeral port range (net.ipv4.ip_local_port_range on Linux).
+ */
+public class ConnectionBenchmark {
+
+	private static final String[] programOptions = {"ip", "port", "file", "c", "label", "timeout"};
+	private static final String CRLF = "\r\n";
+	private static final int CONNECT_WINDOW = 512; // maximum number of connection attempts in flight, keeps the server's accept backlog from overflowing
+	private static final int[] DEFAULT_LEVELS = {1000, 10000, 50000};
+
+	private static InetSocketAddress server = null;
+	private static String filename = "benchmark.txt";
+	private static String label = "server";
+	private static long timeout = 120000; // UNIT: ms, per phase
+
+	private static class Connection {
+		private SocketChannel channel;
+		private ByteBuffer request;
+		private byte[] response = new byte[256];
+		private int responseLength = 0;
+		private long sentAt;
+		private long latency = -1; // UNIT: ns, -1 until the response has been received
+		private boolean failed = false;
+	}
+
+	public static void main (String[] args) {
+		HashMap<String, String> options = null;
+		try {
+			options = getOptions(args, programOptions);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		if (!options.containsKey("ip") || !options.containsKey("port")) {
+			System.err.println("Error: -ip and -port are required options.");
+			printUsage();
+			System.exit(1);
+		}
+
+		int[] levels = DEFAULT_LEVELS;
+		try {
+			server = new InetSocketAddress(InetAddress.getByName(options.get("ip")), Integer.parseInt(options.get("port")));
+			if (options.containsKey("file")) filename = options.get("file");
+			if (options.containsKey("label")) label = options.get("label");
+			if (options.containsKey("timeout")) timeout = Long.parseLong(options.get("timeout"));
+			if (options.containsKey("c")) {
+				String[] counts = options.get("c").split(",");
+				levels = new int[counts.length];
+				for (int i = 0; i < counts.length; i++) {
+					levels[i] = Integer.parseInt(counts[i].trim());
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid option argument provided, -port, -timeout and -c must be valid numbers");
+			System.exit(1);
+		} catch (UnknownHostException e) {
+			System.err.println("Invalid server address: " + options.get("ip"));
+			System.exit(1);
+		}
+
+		System.out.println("mode\tconnections\topened\tconnect_ms\tresponses\trequest_ms\treq_per_sec\tp50_ms\tp99_ms\tmax_ms");
+		for (int count : levels) {
+			try {
+				run(count);
+			} catch (IOException e) {
+				System.err.println("IOException: " + e.getMessage());
+			}
+			// give the server a moment to tear down the previous round of connections
+			try {
+				Thread.sleep(2000);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private static void run (int count) throws IOException {
+		Selector selector = Selector.open();
+		ArrayList<Connection> connections = new ArrayList<Connection>(count);
+		byte[] request = buildRequest("NEW_TXN", -1, 0, filename).getBytes();
+
+		// CONNECT PHASE
+		long start = System.nanoTime();
+		long deadline = start + timeout * 1000000L;
+		int started = 0;
+		int pending = 0;
+		int opened = 0;
+		while ((started < count || pending > 0) && System.nanoTime() < deadline) {
+			while (started < count && pending < CONNECT_WINDOW) {
+				Connection connection = new Connection();
+				started++;
+				try {
+					connection.channel = SocketChannel.open();
+					connection.channel.configureBlocking(false);
+					connection.channel.socket().setTcpNoDelay(true);
+					connections.add(connection);
+					if (connection.channel.connect(server)) {
+						opened++;
+						connection.channel.register(selector, 0, connection);
+					} else {
+						connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+						pending++;
+					}
+				} catch (IOException e) {
+					connection.failed = true;
+				}
+			}
+
+			selector.select(100);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Connection connection = (Connection) key.attachment();
+				pending--;
+				try {
+					connection.channel.finishConnect();
+					key.interestOps(0);
+					opened++;
+				} catch (IOException e) {
+					connection.failed = true;
+					key.cancel();
+				}
+			}
+		}
+		long connectTime = System.nanoTime() - start;
+
+		// REQUEST PHASE: every open connection sends its request before any response is read
+		start = System.nanoTime();
+		deadline = start + timeout * 1000000L;
+		int outstanding = 0;
+		for (Connection connection : connections) {
+			if (connection.failed || !connection.channel.isConnected()) continue;
+			connection.request = ByteBuffer.wrap(request);
+			connection.sentAt = System.nanoTime();
+			SelectionKey key = connection.channel.keyFor(selector);
+			key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+			outstanding++;
+		}
+
+		while (outstanding > 0 && System.nanoTime() < deadline) {
+			selector.select(100);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Connection connection = (Connection) key.attachment();
+				try {
+					if (key.isWritable()) {
+						connection.channel.write(connection.request);
+						if (!connection.request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+					}
+					if (key.isReadable() && readResponse(connection)) {
+						connection.latency = System.nanoTime() - connection.sentAt;
+						key.interestOps(0);
+						outstanding--;
+					}
+				} catch (IOException e) {
+					connection.failed = true;
+					key.cancel();
+					outstanding--;
+				}
+			}
+		}
+		long requestTime = System.nanoTime() - start;
+
+		ArrayList<Long> latencies = new ArrayList<Long>();
+		for (Connection connection : connections) {
+			if (connection.latency >= 0) latencies.add(connection.latency);
+			try {
+				if (connection.channel != null) connection.channel.close();
+			} catch (IOException e) {
+				// muted exception, no need to escalate
+			}
+		}
+		selector.close();
+
+		long[] sorted = new long[latencies.size()];
+		for (int i = 0; i < sorted.length; i++) sorted[i] = latencies.get(i);
+		Arrays.sort(sorted);
+
+		System.out.println(String.format("%s\t%d\t%d\t%d\t%d\t%d\t%.0f\t%.2f\t%.2f\t%.2f",
+				label,
+				count,
+				opened,
+				connectTime / 1000000L,
+				sorted.length,
+				requestTime / 1000000L,
+				sorted.length / (requestTime / 1e9),
+				percentile(sorted, 0.50),
+				percentile(sorted, 0.99),
+				percentile(sorted, 1.0)));
+	}
+
+	/* reads what is available and returns true once a complete response has been received */
+	private static boolean readResponse (Connection connection) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(connection.response, connection.responseLength, connection.response.length - connection.responseLength);
+		int bytesRead = connection.channel.read(buffer);
+		if (bytesRead == -1) throw new IOException("Connection closed by server");
+		connection.responseLength += bytesRead;
+
+		String response = new String(connection.response, 0, connection.responseLength);
+		int headerEnd = response.indexOf(CRLF + CRLF);
+		if (headerEnd == -1) return false;
+		String[] header = response.substring(0, headerEnd).split(" ");
+		int contentLength = header.length == 5 ? Integer.parseInt(header[4]) : 0;
+		int expected = contentLength == 0 ? headerEnd + 3 * CRLF.length() : headerEnd + 2 * CRLF.length() + contentLength;
+		if (expected > connection.response.length) {
+			connection.response = Arrays.copyOf(connection.response, expected);
+		}
+		return connection.responseLength >= expected;
+	}
+
+	private static double percentile (long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	private static String buildRequest (String method, int tid, int sequenceNumber, String data) {
+		return method + " " + tid + " " + sequenceNumber + " " + data.length() + CRLF + CRLF + data;
+	}
+
+	private static void printUsage () {
+		System.out.println("Usage: ");
+		System.out.println("java ConnectionBenchmark -ip [ip_address_string] -port [port_number] [-c 1000,10000,50000] [-file filename] [-label mode_name] [-timeout ms]");
+		System.out.println("Opens the given numbers of concurrent connections to the server, sends one NEW_TXN request on each of them at once and reports connect time, throughput and response latency");
+	}
+
+	private static HashMap<String, String> getOptions (String[] args, String[] programOptions) throws IllegalArgumentException {
+		HashMap<String, String> options = new HashMap<String, String>();
+
+		for (int i = 0; i < args.length; i++) {
+			final String opt = args[i];
+
+			if (opt.charAt(0) == '-') {
+				if (Arrays.asList(programOptions).contains(opt.substring(1).toLowerCase())) {
+					i++;
+					if (i < args.length) {
+						if (!options.containsKey(opt.substring(1).toLowerCase()))
+							options.put(opt.substring(1).toLowerCase(), args[i]);
+						else
+							throw new IllegalArgumentException("Input error: option (" + opt + ") has already been declared");
+					} else {
+						throw new IllegalArgumentException("Input error: option argument for (" + opt + ") is missing");
+					}
+				} else {
+					throw new IllegalArgumentException("Input error: option (" + opt + ") is not a valid option");
+				}
+			} else {
+				throw new IllegalArgumentException("Input error: missing dash (-), command line options must be of the form -<option> <option argument>");
+			}
+		}
+		return options;
+	}
+}
@@ -0,0 +1,239 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/* Compares the ReplicationCodec with Java serialization (what replication used before) on committed transactions, without any networking.
+ * For every round and codec the benchmark:
+ *  1. encodes all transactions into memory through one long-lived stream, as the primary writes them to the replication channel
+ *  2. decodes them back, as the backup reads them
+ * and reports encode/decode throughput, bytes per transaction on the wire, and bytes allocated per transaction (garbage created) on each side.
+ * The first rounds warm up the JIT, compare the results of the last round.
+ *
+ * Transactions carry inline WRITEs only (payloads up to 64KB), larger payloads are staged files and would measure the disk instead.
+ *
+ * Note: the benchmark uses the server's classes, compile it against them (javac -cp <server classes> ReplicationCodecBenchmark.java) and run it
+ * with both on the classpath. Allocated bytes are only reported on JDK 14 and later.
+ */
+public class ReplicationCodecBenchmark {
+
+	private static final String[] programOptions = {"txns", "writes", "size", "rounds"};
+
+	private static int transactionCount = 20000;
+	private static int writeCount = 16;
+	private static int writeSize = 256; // UNIT: bytes
+	private static int rounds = 5;
+
+	private interface Codec {
+		String name ();
+		void encode (LogRecord[] transactions, OutputStream bytes) throws IOException;
+		int decode (byte[] encoded, int count) throws IOException;
+	}
+
+	private static final Codec SERIALIZATION = new Codec() {
+		public String name () {
+			return "serialization";
+		}
+
+		public void encode (LogRecord[] transactions, OutputStream bytes) throws IOException {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			for (LogRecord transaction : transactions) {
+				out.writeObject(transaction);
+				// a long-lived stream must be reset, or it keeps every record it has written
+				out.reset();
+			}
+			out.flush();
+		}
+
+		public int decode (byte[] encoded, int count) throws IOException {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded));
+			int checksum = 0;
+			try {
+				for (int i = 0; i < count; i++) {
+					LogRecord transaction = (LogRecord) in.readObject();
+					checksum += transaction.getCommitLSN();
+				}
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+			return checksum;
+		}
+	};
+
+	private static final Codec BINARY = new Codec() {
+		public String name () {
+			return "binary";
+		}
+
+		public void encode (LogRecord[] transactions, OutputStream bytes) throws IOException {
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (LogRecord transaction : transactions) {
+				ReplicationCodec.writeTransaction(out, transaction);
+			}
+			out.flush();
+		}
+
+		public int decode (byte[] encoded, int count) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+			int checksum = 0;
+			for (int i = 0; i < count; i++) {
+				LogRecord transaction = ReplicationCodec.readTransaction(in);
+				checksum += transaction.getCommitLSN();
+			}
+			return checksum;
+		}
+	};
+
+	public static void main (String[] args) {
+		HashMap<String, String> options = null;
+		try {
+			options = getOptions(args, programOptions);
+			if (options.containsKey("txns")) transactionCount = Integer.parseInt(options.get("txns"));
+			if (options.containsKey("writes")) writeCount = Integer.parseInt(options.get("writes"));
+			if (options.containsKey("size")) writeSize = Integer.parseInt(options.get("size"));
+			if (options.containsKey("rounds")) rounds = Integer.parseInt(options.get("rounds"));
+		} catch (NumberFormatException e) {
+			System.err.println("Error: " + e.getMessage() + ", option arguments must be parsable integers");
+			printUsage();
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		if (transactionCount <= 0 || writeCount <= 0 || writeSize <= 0 || rounds <= 0) {
+			System.err.println("Error: -txns, -writes, -size and -rounds must be greater than zero");
+			System.exit(1);
+		}
+		if ((long) writeCount * writeSize > 64 * 1024) {
+			System.err.println("Error: -writes x -size must not exceed 65536 bytes (larger payloads are staged on disk)");
+			System.exit(1);
+		}
+
+		LogRecord[] transactions = buildTransactions();
+		System.out.println(String.format("%d transactions, %d WRITEs of %d bytes each", transactionCount, writeCount, writeSize));
+		System.out.println("round\tcodec\tbytes/txn\tencode txn/s\tdecode txn/s\tencode alloc/txn\tdecode alloc/txn");
+
+		try {
+			for (int round = 1; round <= rounds; round++) {
+				for (Codec codec : new Codec[] { SERIALIZATION, BINARY }) {
+					run(round, codec, transactions);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void run (int round, Codec codec, LogRecord[] transactions) throws IOException {
+		// sized up front so growing the output buffer does not count as allocation by the codec
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, (long) transactions.length * (writeCount * writeSize * 3L / 2 + 512)));
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		codec.encode(transactions, bytes);
+		long encodeTime = System.nanoTime() - start;
+		long encodeAllocated = allocatedBytes() - allocated;
+		byte[] encoded = bytes.toByteArray();
+		bytes = null;
+
+		allocated = allocatedBytes();
+		start = System.nanoTime();
+		int checksum = codec.decode(encoded, transactions.length);
+		long decodeTime = System.nanoTime() - start;
+		long decodeAllocated = allocatedBytes() - allocated;
+
+		if (checksum != expectedChecksum(transactions)) {
+			throw new IOException(codec.name() + " decoded different transactions than it encoded");
+		}
+
+		System.out.println(String.format("%d\t%s\t%d\t%.0f\t%.0f\t%d\t%d",
+				round,
+				codec.name(),
+				encoded.length / transactions.length,
+				transactions.length / (encodeTime / 1e9),
+				transactions.length / (decodeTime / 1e9),
+				encodeAllocated / transactions.length,
+				decodeAllocated / transactions.length));
+	}
+
+	/* committed transactions as the primary holds them: one WRITE record per sequence number */
+	private static LogRecord[] buildTransactions () {
+		Random random = new Random(42);
+		LogRecord[] transactions = new LogRecord[transactionCount];
+		char[] data = new char[writeSize];
+		for (int i = 0; i < transactionCount; i++) {
+			int transactionID = i + 1;
+			LogRecord transaction = new LogRecord(null, transactionID, writeCount, null, null);
+			transaction.setFilename("file" + (i % 100) + ".txt");
+			transaction.setCommited(true);
+			transaction.applyCommitLSN(i + 1);
+			for (int seq = 1; seq <= writeCount; seq++) {
+				for (int c = 0; c < data.length; c++) {
+					data[c] = (char) ('a' + random.nextInt(26));
+				}
+				transaction.putReplicatedWrite(new LogRecord(RequestMessage.RequestMethod.WRITE, transactionID, seq, null, new String(data)));
+			}
+			transactions[i] = transaction;
+		}
+		return transactions;
+	}
+
+	private static int expectedChecksum (LogRecord[] transactions) {
+		int checksum = 0;
+		for (LogRecord transaction : transactions) {
+			checksum += transaction.getCommitLSN();
+		}
+		return checksum;
+	}
+
+	/* bytes allocated by this thread so far, 0 if the JVM does not report it */
+	private static long allocatedBytes () {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+		}
+		return 0;
+	}
+
+	private static void printUsage () {
+		System.out.println("Usage: ");
+		System.out.println("java ReplicationCodecBenchmark [-txns 20000] [-writes 16] [-size 256] [-rounds 5]");
+		System.out.println("Encodes and decodes committed transactions with Java serialization and with the ReplicationCodec, and reports throughput, size and allocation per transaction");
+	}
+
+	private static HashMap<String, String> getOptions (String[] args, String[] programOptions) throws IllegalArgumentException {
+		HashMap<String, String> options = new HashMap<String, String>();
+
+		for (int i = 0; i < args.length; i++) {
+			final String opt = args[i];
+			if (opt.charAt(0) == '-') {
+				if (Arrays.asList(programOptions).contains(opt.substring(1).toLowerCase())) {
+					i++;
+					if (i < args.length) {
+						if (!options.containsKey(opt.substring(1).toLowerCase()))
+							options.put(opt.substring(1).toLowerCase(), args[i]);
+						else
+							throw new IllegalArgumentException("Input error: option (" + opt + ") has already been declared");
+					} else {
+						throw new IllegalArgumentException("Input error: option argument for (" + opt + ") is missing");
+					}
+				} else {
+					throw new IllegalArgumentException("Input error: option (" + opt + ") is not a valid option");
+				}
+			} else {
+				throw new IllegalArgumentException("Input error: missing dash (-), command line options must be of the form -<option> <option argument>");
+			}
+		}
+		return options;
+	}
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/* Keeps the locks of the files that are in use:
+ *  - READ requests share the read lock of the file they read
+ *  - a COMMIT holds the write lock of its file only while it changes the file's data (the append and its fsync, a truncate, or the rename
+ *    of the copy over the file), the log forces around it happen outside of it, so a READ of the file waits for the data to be written, not for the log
+ *  - a COMMIT holds the commit lock of its file from the moment it picks its commit offset (the length of the file) until the file has been
+ *    updated, so the COMMITs of a file update it one after the other: READs never take the commit lock
+ * A file's locks are created when a thread first asks for them and removed once no thread holds or waits for them (every lockX call is
+ * followed by the matching unlockX), so the locks kept are those of the files in use, not of every file ever written.
+ * Requests on one file never wait on requests on another file, and waiting threads block instead of spinning.
+ */
+public class FileLockManager {
+
+	private static class FileLocks {
+		private final ReentrantReadWriteLock readWrite;
+		private final ReentrantLock commit;
+		private int users = 0; // threads holding or waiting for one of the locks, changed inside the map's compute functions only
+
+		private FileLocks (boolean fair) {
+			readWrite = new ReentrantReadWriteLock(fair);
+			commit = new ReentrantLock(fair);
+		}
+	}
+
+	private final ConcurrentHashMap<String, FileLocks> locks = new ConcurrentHashMap<String, FileLocks>();
+	private final boolean fair;
+
+	public FileLockManager (boolean fair) {
+		this.fair = fair;
+	}
+
+	public void lockRead (String filename) {
+		acquire(filename).readWrite.readLock().lock();
+	}
+
+	public void unlockRead (String filename) {
+		locks.get(filename).readWrite.readLock().unlock();
+		release(filename);
+	}
+
+	public void lockWrite (String filename) {
+		acquire(filename).readWrite.writeLock().lock();
+	}
+
+	public void unlockWrite (String filename) {
+		locks.get(filename).readWrite.writeLock().unlock();
+		release(filename);
+	}
+
+	public void lockCommit (String filename) {
+		acquire(filename).commit.lock();
+	}
+
+	public void unlockCommit (String filename) {
+		locks.get(filename).commit.unlock();
+		release(filename);
+	}
+
+	/* the locks of the file, which are kept until the matching release */
+	private FileLocks acquire (String filename) {
+		return locks.compute(filename, (name, fileLocks) -> {
+			if (fileLocks == null) {
+				fileLocks = new FileLocks(fair);
+			}
+			fileLocks.users++;
+			return fileLocks;
+		});
+	}
+
+	private void release (String filename) {
+		locks.computeIfPresent(filename, (name, fileLocks) -> --fileLocks.users == 0 ? null : fileLocks);
+	}
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/* ZERO-COPY READ BODY :
+ * The body of a READ response, sent straight from the file to the socket with FileChannel.transferTo (sendfile) instead of going through the heap
+ *  - the channel is opened and the length recorded while the file's read lock is held, so the region is a snapshot of a fully committed file
+ *  - the lock is not held while the body is sent: a COMMIT in copy mode renames a new file over the original (the open channel keeps reading the old one),
+ *    a COMMIT in append mode only writes past the recorded length, so a slow client never holds up the COMMITs of the file
+ * A region of a file held by the ReadCache is sent from the cached mapping instead, without touching the file.
+ */
+public class FileRegion {
+
+	private final FileChannel channel; // null when the region is sent from a cached mapping
+	private final ByteBuffer data; // the range of the cached mapping still to be sent, null when the region is sent from the channel
+	private final long fileLength; // length of the committed file when the snapshot was taken
+	private final long offset;
+	private final long end;
+	private long position;
+
+	/* the whole file */
+	public FileRegion (FileChannel channel, long fileLength) {
+		this(channel, fileLength, 0, fileLength);
+	}
+
+	/* length bytes of the file starting at offset, both must lie within the file */
+	public FileRegion (FileChannel channel, long fileLength, long offset, long length) {
+		this.channel = channel;
+		this.data = null;
+		this.fileLength = fileLength;
+		this.offset = offset;
+		this.end = offset + length;
+		this.position = offset;
+	}
+
+	/* length bytes starting at offset of a cached file, mapping holds the whole file */
+	public FileRegion (ByteBuffer mapping, long offset, long length) {
+		this.channel = null;
+		this.data = mapping.duplicate();
+		this.data.position((int) offset);
+		this.data.limit((int) (offset + length));
+		this.fileLength = mapping.capacity();
+		this.offset = offset;
+		this.end = offset + length;
+		this.position = offset;
+	}
+
+	public long getFileLength () {
+		return fileLength;
+	}
+
+	public long getOffset () {
+		return offset;
+	}
+
+	public long getLength () {
+		return end - offset;
+	}
+
+	public boolean isDone () {
+		return position >= end;
+	}
+
+	/* transfers as much of the rest of the body as the target accepts right now (a non-blocking channel may take only part of it), returns the number of bytes transferred */
+	public long transferTo (WritableByteChannel target) throws IOException {
+		if (isDone()) return 0;
+		if (data != null) {
+			long written = target.write(data);
+			position += written;
+			return written;
+		}
+		long transferred = channel.transferTo(position, end - position, target);
+		if (transferred == 0 && channel.size() < end) {
+			throw new IOException("File is shorter than the length of the READ response");
+		}
+		position += transferred;
+		return transferred;
+	}
+
+	/* blocking channels only: transfers the rest of the body */
+	public void transferFully (WritableByteChannel target) throws IOException {
+		while (!isDone()) {
+			transferTo(target);
+		}
+	}
+
+	public void close () {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// muted exception, no need to escalate
+		}
+	}
+}
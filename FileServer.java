@@ -1,50 +1,63 @@
 import java.net.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Random;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
-import javax.xml.bind.DatatypeConverter;
 
 public class FileServer {
 	
-	// transaction log database - maintains a runtime data structure for ALL transactions
-	public static HashMap <Integer, LogRecord> transactionDB = new HashMap<Integer, LogRecord>();
+	// transaction log database - maintains a runtime data structure for ALL transactions (key: TID, lookups are lock-free)
+	public static ConcurrentLongMap<LogRecord> transactionDB = new ConcurrentLongMap<LogRecord>();
 	// key: commitLSN, value: transaction records
-	public static HashMap <Integer, LogRecord> commitDB = new HashMap<Integer, LogRecord>();
+	public static ConcurrentLongMap<LogRecord> commitDB = new ConcurrentLongMap<LogRecord>();
 	
 	// used to keep track of read/write accesses on every file present in the system
-	private static HashMap <String, Integer> fileAccessManager = new HashMap<String, Integer>();
-	public static Object mutexLock = new Object();
-	private static Lock commitLock = new ReentrantLock(true);
-	private static Lock commitQueue = new ReentrantLock(true);
-	private static Object logLock = new Object();
-	
-	private final static Lock mutex = new ReentrantLock();
-	private final static Condition removeCommitCond = mutex.newCondition();
-	private final static Condition addCommitCond = commitQueue.newCondition();
-
+	private static FileLockManager fileLocks = null;
+	public static Lock mutexLock = new ReentrantLock();
+	// explicit locks instead of synchronized methods: a virtual thread blocked inside a monitor pins its carrier thread
+	private static final Lock primaryLock = new ReentrantLock();
+	
+	/* the COMMITs of a file that have been received and not written yet, see processCommits */
+	private static class CommitLane {
+		private final LinkedHashSet<Long> pending = new LinkedHashSet<Long>(); // TIDs in the order their COMMIT was received, guarded by commitLanesLock
+		private final Lock lock = new ReentrantLock(); // held by the thread that writes the lane's COMMITs
+		private int users = 0; // threads holding or waiting for lock, guarded by commitLanesLock
+	}
 	
-	private static boolean commitInProgress = false;
-	private static LinkedHashMap<Integer, Object> commitOrder = new LinkedHashMap<Integer, Object>();
+	// a file has a lane while it has COMMITs waiting or being written
+	private static final HashMap<String, CommitLane> commitLanes = new HashMap<String, CommitLane>();
+	private static final Lock commitLanesLock = new ReentrantLock();
 	
 	// flag that is used to know when to use the recoveryLogFile
 	private static boolean inRecoveryMode = true; 
 
 	private static final String logName = ".serverLog";
 	private static final String recoveryLogName = "serverRecoveryLog";
+	private static final String checkpointName = ".serverCheckpoint"; // the log segments are named logName.<number>
+	private static final String epochName = ".serverEpoch"; // TID epoch of the server, see TransactionIDAllocator
+	private static final String ackedName = ".serverBackupAcked"; // last commit LSN the backup acknowledged, see ReplicationChannel
 	// this is a file prefix that is used to distinguish all files that have been created by the server for file keeping purposes
 	private static final String tempFilePrefix = ".aqi1393029";
+	private static final String stagingFilePrefix = ".stg1393029"; // data of streamed WRITEs, kept across restarts as long as the log refers to it
 	// command line options
-	private static final String[] commandLineOptions = {"dir", "ip", "port", "primary", "bip", "bport"};
+	private static final String[] commandLineOptions = {"dir", "ip", "port", "primary", "bip", "bport", "logwindow", "logbatch", "commitmode", "fairlocks", "frontend", "iothreads", "workers", "pipeline", "readcache", "replication", "checkpoint", "logsegment", "logwrites", "txntimeout"};
 
 	public static String primaryFile = null; // refers to the path of the file that contains the address of the primary server
 	private static boolean isPrimary = false; // is this server the primary? 
@@ -52,6 +65,99 @@ public class FileServer {
 	private static HashMap<InetSocketAddress, Boolean> peerStatus = new HashMap<InetSocketAddress, Boolean>();
 	private static File logFile = null;
 	private static File recoveryLogFile = null;	
+	
+	// group commit writer for the log file that is currently in use (the recovery log while in recovery mode)
+	private static volatile LogWriter logWriter = null;
+	private static long logBatchWindow = 200; // UNIT: microseconds
+	private static int logBatchSize = 256; // maximum number of log entries flushed with a single fsync
+	
+	/* how committed data is applied to a file: 
+	 *  APPEND appends the transaction's data in place at an offset recorded in the log (cost depends on the size of the transaction) 
+	 *  COPY rewrites a temporary copy of the whole file and renames it over the original (cost depends on the size of the file) */
+	public enum CommitMode {
+		APPEND,
+		COPY;
+		
+		public static CommitMode fromString (String mode) {
+			if (mode != null) {
+				for (CommitMode m : CommitMode.values()) {
+					if (mode.equalsIgnoreCase(m.name())) return m;
+				}
+			}
+			throw new IllegalArgumentException(String.format("Input error: invalid commit mode (%s) provided, expected append or copy", mode));
+		}
+	}
+	private static CommitMode commitMode = CommitMode.APPEND;
+	
+	/* when the NEW_TXN and WRITE entries of a transaction are made durable: 
+	 *  FORCE before the server moves on to the transaction's next request, a transaction that has not committed survives a crash 
+	 *  LAZY with the transaction's COMMIT entry (one fsync per transaction instead of one per request), a crash can lose transactions that have not committed */
+	public enum WriteLogging {
+		FORCE,
+		LAZY;
+		
+		public static WriteLogging fromString (String mode) {
+			if (mode != null) {
+				for (WriteLogging m : WriteLogging.values()) {
+					if (mode.equalsIgnoreCase(m.name())) return m;
+				}
+			}
+			throw new IllegalArgumentException(String.format("Input error: invalid write logging mode (%s) provided, expected force or lazy", mode));
+		}
+	}
+	private static WriteLogging writeLogging = WriteLogging.FORCE;
+	
+	/* how client connections are served: 
+	 *  THREAD runs a blocking Transaction thread per connection 
+	 *  VIRTUAL runs the same blocking Transaction code on a virtual thread per connection (requires Java 21+)
+	 *  NIO multiplexes all connections over a few selector I/O threads and executes requests on a bounded worker pool */
+	public enum FrontEnd {
+		THREAD,
+		VIRTUAL,
+		NIO;
+		
+		public static FrontEnd fromString (String frontEnd) {
+			if (frontEnd != null) {
+				for (FrontEnd f : FrontEnd.values()) {
+					if (frontEnd.equalsIgnoreCase(f.name())) return f;
+				}
+			}
+			throw new IllegalArgumentException(String.format("Input error: invalid front end (%s) provided, expected thread, virtual or nio", frontEnd));
+		}
+	}
+	private static FrontEnd frontEnd = FrontEnd.THREAD;
+	
+	/* when the primary answers a COMMIT, relative to its replication to the backup:
+	 *  SYNC once the backup has applied the COMMIT
+	 *  SEMISYNC once the backup has received the COMMIT, before it applies it
+	 *  ASYNC right after the COMMIT is durable on the primary, the backup follows in the background with a bounded lag */
+	public enum ReplicationMode {
+		SYNC,
+		SEMISYNC,
+		ASYNC;
+		
+		public static ReplicationMode fromString (String mode) {
+			if (mode != null) {
+				for (ReplicationMode m : ReplicationMode.values()) {
+					if (mode.equalsIgnoreCase(m.name())) return m;
+				}
+			}
+			throw new IllegalArgumentException(String.format("Input error: invalid replication mode (%s) provided, expected sync, semisync or async", mode));
+		}
+	}
+	private static ReplicationMode replicationMode = ReplicationMode.SYNC;
+	private static ExecutorService transactionExecutor = null; // runs Transaction handlers in virtual mode, null when every connection gets a platform thread
+	private static int ioThreadCount = 2;
+	private static int workerCount = 32;
+	private static boolean pipelined = false; // requests of one connection are executed concurrently (per transaction) instead of one at a time
+	private static ExecutorService pipelineExecutor = null; // runs pipelined requests for the thread and virtual front ends
+	private static long readCacheSize = 64; // UNIT: MB
+	private static ReadCache readCache = null; // mappings of recently read files, null when the cache is disabled
+	private static long checkpointInterval = 30; // UNIT: seconds, 0 disables checkpoints
+	private static int activeSegment = 1; // number of the log segment entries are appended to (a checkpoint moves on to the next one)
+	private static long logSegmentSize = 64; // UNIT: MB, size log segments are preallocated to
+	private static long transactionTimeout = 600; // UNIT: seconds, a transaction idle for longer is aborted, 0 never aborts idle transactions
+	private static int recoveryBaseLSN = 0; // commit LSN of the checkpoint recovery started from
 
 	private static String dir = null; // refers to the directory where the server will store files (i.e. logs, transactions, & metadata)
 	public static int port;		
@@ -62,16 +168,34 @@ public class FileServer {
 	 backup can check incoming connections against this port to differentiate them from illegal connections */
 	public static int commitPort; 
 	public static Socket commitSocket = new Socket();
+	private static ReplicationChannel replicationChannel = null; // long-lived connection that ships COMMITs to the backup while this server is the primary
+	private static ApplyScheduler applyScheduler = null; // applies the COMMITs received on the replication channel while this server is the backup
+	
+	// the backup applies replicated COMMITs to different files on this many threads, with at most this many COMMITs received and not applied yet
+	private static final int APPLY_WORKERS = 8;
+	private static final int APPLY_MAX_IN_FLIGHT = 1024;
+	
+	// commit LSNs of the replicated COMMITs found flushed in the log during recovery (see recoverReplicatedLSN)
+	private static TreeSet<Integer> recoveredReplicatedLSNs = new TreeSet<Integer>();
 	
 	// timeout value to use for blocking read operations (if the client is taking too long to send required data, server is able to timeout
 	private static final int TIMEOUT = 5000; // UNIT: ms
 	
-	private static final Random generator = new Random(); 
+	// an interrupted catch-up SYNC of a restarting backup is resumed this many times, after this delay
+	private static final int SYNC_RETRIES = 3;
+	private static final long SYNC_RETRY_DELAY = 500; // UNIT: ms
+	
+	private static final int COMMIT_BUFFER_SIZE = 256 * 1024; // UNIT: bytes, inline data of a COMMIT is written to the file in buffers of this size
+	
+	private static TransactionIDAllocator transactionIDs = null; // hands out the TIDs of new transactions
 	
 	
 	public static void setPeerStatus (InetSocketAddress server, boolean status) {
-		synchronized (mutexLock) {
+		mutexLock.lock();
+		try {
 			peerStatus.put(server, status);
+		} finally {
+			mutexLock.unlock();
 		}
 	}
 	
@@ -91,6 +215,95 @@ public class FileServer {
 		return commitDB.get(LSN);
 	}
 	
+	/* drops a tombstone from the transaction table and the commit table (see TransactionReaper), a request for its TID is then
+	 * answered as for a TID that does not exist */
+	public static void evictTombstone (LogRecord transaction) {
+		transactionDB.remove(transaction.getTransactionID());
+		if (transaction.hasCommitted() && commitDB.get(transaction.getCommitLSN()) == transaction) {
+			commitDB.remove(transaction.getCommitLSN());
+		}
+	}
+	
+	/* BACKUP: catches up with the primary after a restart (see ReplicationChannel.receiveCatchUp) */
+	private static void syncWithPrimary () throws IOException {
+		Socket primary = null;
+		try {
+			ServerMessage syncRequest = new ServerMessage(ServerMessage.RequestMethod.SYNC, LogRecord.getCurrentLSN());
+			InetSocketAddress primaryAddr = FileServer.getPeerAddress();
+			try {
+				primary = new Socket();
+				// the primary recognizes the backup by this port, a resumed SYNC binds it again right after the previous connection
+				primary.setReuseAddress(true);
+				primary.bind(new InetSocketAddress(bindAddr, port));
+			} catch (IOException e) {
+				System.err.println("Port: " + port + " is currently taken by your Operating System, try running the program again after a few seconds. \n It usually takes some time (~ close to a minute) for the operating system to release the port. Exiting program...");
+				System.err.println("This was likely due to killing the server and attempting to quickly restart it. The operating system does not immediatley release ports if a program was interrupted abnormally.");
+
+				System.exit(1);
+			}
+			
+			primary.connect(primaryAddr);
+			primary.setTcpNoDelay(true);
+			primary.setSoTimeout(ReplicationChannel.getSyncTimeout());
+
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(primary.getOutputStream()));
+			ReplicationCodec.writeMessage(os, syncRequest);
+			os.flush();
+
+			DataInputStream inputStream = new DataInputStream(new BufferedInputStream(primary.getInputStream()));
+			int startLSN = LogRecord.getCurrentLSN();
+			ReplicationChannel.receiveCatchUp(inputStream, os);
+			
+			if (LogRecord.getCurrentLSN() > startLSN) {
+				System.out.println("[** Backup is now synchronized with the primary **]".toUpperCase());
+			}
+		} finally {
+			if (primary != null) 
+				primary.close();
+		}
+	}
+	
+	/* BACKUP: commits a transaction received from the primary during a SYNC, the SYNC stops (and is resumed from the commit LSN) if it cannot be applied */
+	public static void applySyncedTransaction (LogRecord transaction) throws IOException {
+		if (!applyReplicatedTransaction(transaction)) {
+			throw new IOException("CLSN " + transaction.getCommitLSN() + " could not be applied");
+		}
+		LogRecord.setLSN(transaction.getCommitLSN());
+	}
+	
+	/* BACKUP: commits a transaction received from the primary, at the offset the primary committed it at (committing it again rewrites the same bytes)
+	 * does not advance the commit LSN, COMMITs to different files are applied in parallel (see ApplyScheduler)
+	 * returns false if the COMMIT could not be written, the primary has to send it again */
+	public static boolean applyReplicatedTransaction (LogRecord transaction) {
+		transactionIDs.observe(transaction.getTransactionID());
+		transactionDB.put(transaction.getTransactionID(), transaction);
+		commitDB.put(transaction.getCommitLSN(), transaction);
+		LogRecord toCommit = new LogRecord (
+				RequestMessage.RequestMethod.COMMIT, 
+				transaction.getTransactionID(), 
+				transaction.getSequenceNumber(), 
+				null, 
+				null);
+		toCommit.applyCommitLSN(transaction.getCommitLSN());
+		toCommit.setCommitOffset(transaction.getCommitOffset());
+		try {
+			addLog(toCommit);
+		} catch (ServerException e) {
+			System.out.println(String.format("Replicated COMMIT of CLSN: %d could not be applied: %s", transaction.getCommitLSN(), e.getMessage()));
+			return false;
+		}
+		transaction.compact();
+		return true;
+	}
+	
+	public static ReplicationChannel getReplicationChannel () {
+		return replicationChannel;
+	}
+	
+	public static ApplyScheduler getApplyScheduler () {
+		return applyScheduler;
+	}
+	
 	
 	public static void main (String[] args) {
 				
@@ -101,10 +314,20 @@ public class FileServer {
 				System.out.println();
 				
 				System.out.println("[*** Graceful shutdown sequence initiated ***]");
+				if (readCache != null) {
+					System.out.println("[*** Read cache: " + readCache + " ***]");
+				}
+				if (replicationChannel != null && isPrimary) {
+					System.out.println("[*** Replication: " + replicationChannel + " ***]");
+				}
 				
-				if (logFile != null && logFile.exists()) {
-					System.out.println("[*** Internal log file deleted; entire transaction history has been wiped ***]");
-					while (logFile.delete() == false);
+				// a checkpoint may have moved the log on to a later segment than logFile
+				if (logFile != null) {
+					System.out.println("[*** Internal log files deleted; entire transaction history has been wiped ***]");
+					for (Integer segment : getLogSegments()) {
+						getLogSegment(segment).delete();
+					}
+					getCheckpointFile().delete();
 				}
 				if (recoveryLogFile != null && recoveryLogFile.exists()) {
 					while (recoveryLogFile.delete() == false);
@@ -116,6 +339,8 @@ public class FileServer {
 				if (serverJunk == null) {
 					return;
 				}
+				// the log that referred to the staged data is gone as well
+				serverJunk.addAll(getFileList(dir, stagingFilePrefix));
 				for (int i = 0; i < serverJunk.size(); i++) {
 					System.out.println("[*** Deleting temporary file: " + serverJunk.get(i).getAbsolutePath() + " ***]");
 					while (serverJunk.get(i).delete() == false);
@@ -171,11 +396,109 @@ public class FileServer {
 				bindAddr = InetAddress.getByName("127.0.0.1");
 			}
 			
+			if (options.containsKey("logwindow")) {
+				logBatchWindow = Long.parseLong(options.get("logwindow"));
+			}
+			
+			if (options.containsKey("logbatch")) {
+				logBatchSize = Integer.parseInt(options.get("logbatch"));
+			}
+			
+			if (logBatchWindow < 0 || logBatchSize <= 0) {
+				System.err.println("Input error: -logwindow cannot be negative and -logbatch must be greater than zero");
+				System.exit(1);
+			}
+			
+			if (options.containsKey("commitmode")) {
+				commitMode = CommitMode.fromString(options.get("commitmode"));
+			}
+			
+			if (options.containsKey("logwrites")) {
+				writeLogging = WriteLogging.fromString(options.get("logwrites"));
+			}
+			
+			if (options.containsKey("frontend")) {
+				frontEnd = FrontEnd.fromString(options.get("frontend"));
+			}
+			
+			if (options.containsKey("replication")) {
+				replicationMode = ReplicationMode.fromString(options.get("replication"));
+			}
+			
+			if (frontEnd == FrontEnd.VIRTUAL) {
+				transactionExecutor = newVirtualThreadExecutor();
+			}
+			
+			if (options.containsKey("iothreads")) {
+				ioThreadCount = Integer.parseInt(options.get("iothreads"));
+			}
+			
+			if (options.containsKey("workers")) {
+				workerCount = Integer.parseInt(options.get("workers"));
+			}
+			
+			if (ioThreadCount <= 0 || workerCount <= 0) {
+				System.err.println("Input error: -iothreads and -workers must be greater than zero");
+				System.exit(1);
+			}
+			
+			if (options.containsKey("readcache")) {
+				readCacheSize = Long.parseLong(options.get("readcache"));
+			}
+			
+			if (options.containsKey("checkpoint")) {
+				checkpointInterval = Long.parseLong(options.get("checkpoint"));
+			}
+			
+			if (checkpointInterval < 0) {
+				System.err.println("Input error: -checkpoint cannot be negative");
+				System.exit(1);
+			}
+			
+			if (options.containsKey("logsegment")) {
+				logSegmentSize = Long.parseLong(options.get("logsegment"));
+			}
+			
+			if (logSegmentSize <= 0) {
+				System.err.println("Input error: -logsegment must be greater than zero");
+				System.exit(1);
+			}
+			
+			if (options.containsKey("txntimeout")) {
+				transactionTimeout = Long.parseLong(options.get("txntimeout"));
+			}
+			
+			if (transactionTimeout < 0) {
+				System.err.println("Input error: -txntimeout cannot be negative");
+				System.exit(1);
+			}
+			
+			if (readCacheSize < 0) {
+				System.err.println("Input error: -readcache cannot be negative");
+				System.exit(1);
+			} else if (readCacheSize > 0) {
+				readCache = new ReadCache(readCacheSize * 1024 * 1024);
+			}
+			
+			// fair locks hand a file to waiting READs/COMMITs in arrival order, at the cost of some throughput
+			fileLocks = new FileLockManager(Boolean.parseBoolean(options.get("fairlocks")));
+			
+			pipelined = Boolean.parseBoolean(options.get("pipeline"));
+			if (pipelined && frontEnd == FrontEnd.VIRTUAL) {
+				pipelineExecutor = transactionExecutor;
+			} else if (pipelined && frontEnd == FrontEnd.THREAD) {
+				pipelineExecutor = Executors.newFixedThreadPool(workerCount);
+			}
+			
 		} catch (UnknownHostException e) {
 			System.err.println("Input error: unknown host, " + e.getMessage());
 			System.exit(1);
 		} catch (NumberFormatException e) {
-			System.err.println("Input error: port number must be a valid number");
+			System.err.println("Input error: port number, log window, log batch size, I/O thread and worker counts and read cache size must be valid numbers");
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage();
 			System.exit(1);
 		}
 		
@@ -257,6 +580,13 @@ public class FileServer {
 			}
 		}
 		
+		try {
+			transactionIDs = new TransactionIDAllocator(new File(dir, epochName), new InetSocketAddress(bindAddr, port), peerServer);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		
         final ExecutorService executor = Executors.newCachedThreadPool();
         
         new Thread() {
@@ -282,25 +612,33 @@ public class FileServer {
 
 
 		startRecovery ();
+		startEpoch();
+		try {
+			replicationChannel = new ReplicationChannel(replicationMode, new File(dir, ackedName));
+			replicationChannel.start();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		applyScheduler = new ApplyScheduler(APPLY_WORKERS, APPLY_MAX_IN_FLIGHT);
+		if (checkpointInterval > 0) {
+			new Checkpointer(logWriter, checkpointInterval * 1000).start();
+		}
+		new TransactionReaper(transactionTimeout * 1000).start();
 		Socket socket = null;
 		try {
 			logFile.createNewFile();
-			File directory = new File (dir);
 			
-			// populate and initialize the file access manager - this keeps track of all files located within the 'dir' directory 
-			for (final File fileEntry :  directory.listFiles()) {
-				if (!fileEntry.isDirectory()) {
-					fileAccessManager.put(fileEntry.getName(), 0);
-				}
+			if (frontEnd == FrontEnd.NIO) {
+				SelectorServer selectorServer = new SelectorServer(bindAddr, port, ioThreadCount, workerCount);
+				System.out.println("[** Server is live and listening on ".toUpperCase() + bindAddr.getHostAddress() + ":" + port + " (NIO) **]");
+				selectorServer.run();
 			}
 			
-//			System.out.println("Number of files found in directory: " + fileAccessManager.size() + " :");
-//			for (String fname : fileAccessManager.keySet()) {
-//				System.out.println(fname);
-//			}
-			
-			serverSocket = new ServerSocket(port, 0, bindAddr);
+			// accepted sockets are backed by a SocketChannel, so READ responses can be sent with FileChannel.transferTo
+			serverSocket = ServerSocketChannel.open().socket();
 			serverSocket.setReuseAddress(true);
+			serverSocket.bind(new InetSocketAddress(bindAddr, port));
 			
 			System.out.println("[** Server is live and listening on ".toUpperCase() + bindAddr.getHostAddress() + ":" + port + " **]");
 			while (true) {	
@@ -308,28 +646,7 @@ public class FileServer {
 				socket.setTcpNoDelay(true);
 				socket.setReuseAddress(true);
 				
-//				System.out.println(String.format("Incoming from %s:%s", socket.getInetAddress(), socket.getPort()));
-				if (isPrimary) {
-					new Transaction(socket).start();
-				} else {
-					updateBackupCommitPort(primaryFile);
-					// if you are the backup, ignore all connections except those from the primary
-					if (socket.getInetAddress().equals(peerServer.getAddress()) && socket.getPort() == commitPort) {
-						new Transaction(socket).start();
-					} else { // send an error to all connections that are not from the primary server
-						PrintWriter out = null;
-						out = new PrintWriter(socket.getOutputStream(),true);
-						String message = "Request ignored, forward your request to the current primary server (" + peerServer.getAddress().getHostAddress() + ":" + peerServer.getPort() + ")";
-						String response = ClientServerProtocol.buildResponse(ClientServerProtocol.ResponseMethod.ERROR,
-								-1, 
-								-1, 
-								ClientServerProtocol.Error.INVALID_OPERATION, 
-								message.length(),
-								message);
-						out.print(response);
-						out.flush();
-					}
-				}
+				acceptConnection(socket);
 			}
 		} catch (IOException e) {
 			System.err.println("IOException: " + e.getMessage());
@@ -349,6 +666,49 @@ public class FileServer {
 	}
 	
 	
+	/* starts a Transaction handler for a new connection, or turns the connection away if you are the backup and it is not from the primary */
+	public static void acceptConnection (Socket socket) throws IOException {
+//		System.out.println(String.format("Incoming from %s:%s", socket.getInetAddress(), socket.getPort()));
+		if (isPrimary) {
+			startTransaction(socket);
+		} else {
+			updateBackupCommitPort(primaryFile);
+			// if you are the backup, ignore all connections except those from the primary
+			if (socket.getInetAddress().equals(peerServer.getAddress()) && socket.getPort() == commitPort) {
+				startTransaction(socket);
+			} else { // send an error to all connections that are not from the primary server
+				PrintWriter out = null;
+				out = new PrintWriter(socket.getOutputStream(),true);
+				String message = "Request ignored, forward your request to the current primary server (" + peerServer.getAddress().getHostAddress() + ":" + peerServer.getPort() + ")";
+				String response = ClientServerProtocol.buildResponse(ClientServerProtocol.ResponseMethod.ERROR,
+						-1, 
+						-1, 
+						ClientServerProtocol.Error.INVALID_OPERATION, 
+						message.length(),
+						message);
+				out.print(response);
+				out.flush();
+			}
+		}
+	}
+	
+	private static void startTransaction (Socket socket) {
+		if (transactionExecutor != null) {
+			transactionExecutor.execute(new Transaction(socket));
+		} else {
+			new Thread(new Transaction(socket)).start();
+		}
+	}
+	
+	/* Executors.newVirtualThreadPerTaskExecutor() is looked up at runtime so the server still builds with JDK 9+, -frontend virtual is rejected with an input error on JVMs without virtual threads */
+	private static ExecutorService newVirtualThreadExecutor () {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Input error: -frontend virtual requires Java 21 or later (running on Java " + System.getProperty("java.version") + ")");
+		}
+	}
+	
 	public static int findFreePort() {
 		ServerSocket socket = null;
 		try {
@@ -409,9 +769,15 @@ public class FileServer {
 	 * Syntax of primary file (first line contains the address:port of the primary): 
 	 		<IP_ADDRESS> <PORT>  <COMMIT_PORT>
 	*/
-	public synchronized static void updatePrimary (InetAddress address, int port, String primaryFile) {
+	public static void updatePrimary (InetAddress address, int port, String primaryFile) {
 		PrintWriter writer = null;
+		primaryLock.lock();
 		try {
+			// a promoted backup hands out its TIDs in an epoch above every TID it has seen from the old primary
+			// (a server promoted while it recovers starts its epoch once recovery is complete)
+			if (!isPrimary && !inRecoveryMode) {
+				startEpoch();
+			}
 			writer = new PrintWriter(primaryFile);
 			StringBuilder sb = new StringBuilder();
 			sb.append(address.getHostAddress());
@@ -430,141 +796,115 @@ public class FileServer {
 			if (writer != null) {
 				writer.close();
 			}
+			primaryLock.unlock();
 		}
 	}
 
 	
 	
-	public static void removeCommit (int transactionID) {
-		mutex.lock();
+	/* the COMMIT of the transaction will not be written (it failed its checks, or the transaction had already been committed) */
+	public static void removeCommit (long transactionID) {
+		LogRecord transaction = transactionDB.get(transactionID);
+		if (transaction == null) return;
+		commitLanesLock.lock();
 		try {
-			while (commitInProgress) {
-				try {
-					removeCommitCond.await();
-				} catch (InterruptedException e) {
-					// silent exception
-				}
-			}
-			synchronized (mutexLock) {
-				//System.out.println("Remove commit: " + transactionID);
-				commitOrder.remove(transactionID);
+			CommitLane lane = commitLanes.get(transaction.getFileName());
+			if (lane == null) return;
+			lane.pending.remove(transactionID);
+			if (lane.users == 0 && lane.pending.isEmpty()) {
+				commitLanes.remove(transaction.getFileName());
 			}
 		} finally {
-			mutex.unlock();
-		}	
-//		while (true) {
-//			if (!commitInProgress) {
-//				synchronized (mutexLock) {
-//					commitOrder.remove(transactionID);
-//					break;
-//				}
-//			}
-//			int sleepTime = generator.nextInt((15-8) + 1) + 8;
-//			try {
-//				Thread.currentThread().sleep(2*sleepTime);
-//			} catch (InterruptedException e) {
-//			}
-//		}
+			commitLanesLock.unlock();
+		}
 	}
 	
-	public static void addCommit (int transactionID) {
-		commitQueue.lock();
+	/* a COMMIT has been received for the transaction, it takes its place in the lane of its file */
+	public static void addCommit (long transactionID) {
+		LogRecord transaction = transactionDB.get(transactionID);
+		if (transaction == null) return; // not a valid TID, the COMMIT is rejected
+		commitLanesLock.lock();
 		try {
-			while (commitInProgress) {
-				try {
-					addCommitCond.await();
-				} catch (InterruptedException e) {
-					// silent exception
-				}
+			CommitLane lane = commitLanes.get(transaction.getFileName());
+			if (lane == null) {
+				lane = new CommitLane();
+				commitLanes.put(transaction.getFileName(), lane);
 			}
-			
-//			System.out.println("addCommit: " + transactionID);
-			commitOrder.put(transactionID, null);
+			lane.pending.add(transactionID);
 		} finally {
-			commitQueue.unlock();
+			commitLanesLock.unlock();
 		}
-		
-		
-		
-		
-//		System.out.println("Adding commit: " + transactionID);
-//		synchronized (commitQueue) {
-//			while (true) {
-//				System.out.println("Waiting: " + transactionID);
-//				if (!commitInProgress) {
-//					System.out.println("Got here: " + transactionID);
-//					commitOrder.put(transactionID, null);
-//					break;
-//				}
-//			}
-//		}
 	}
 	
-	public static synchronized void processCommits() {
-		commitInProgress = true;
-		LogRecord newRecord = null;
-		LogRecord transaction = null;
-		ArrayList<Integer> toRemove = new ArrayList<Integer>();
+	/* writes the COMMITs waiting in the lane of the transaction's file, in the order they were received
+	 *  - the COMMITs of a file are written one at a time by the thread that holds the lane's lock, a COMMIT that is still waiting for WRITEs
+	 *    (ASK_RESEND) is skipped and written by a later call
+	 *  - COMMITs to different files are written concurrently, their log entries share the forces of the group commit log writer
+	 *  - a COMMIT that cannot be written stays in the lane and the COMMITs behind it wait for it, it is retried by the next call for the file
+	 *    (its client is told it failed, see Transaction) */
+	public static void processCommits (LogRecord transactionLog) {
+		String filename = transactionLog.getFileName();
+		CommitLane lane;
+		commitLanesLock.lock();
 		try {
-			for (Integer i : commitOrder.keySet()) {
-				try {
-					
-					transaction = getLog (i.intValue());
-					//transaction = transactionDB.get(i);
-					
-					if (transaction.hasCommitted()) {
-						newRecord = new LogRecord(
-								RequestMessage.RequestMethod.COMMIT,
-								transaction.getTransactionID(), 
-								transaction.getSequenceNumber(), 
-								null,
-								null);
-						addLog(newRecord);
-						//System.out.println("Processing commit, TID:" + transaction.getTransactionID());
-						toRemove.add(i);
-					}
-
-				} catch (ServerException e) { }
+			lane = commitLanes.get(filename);
+			if (lane == null) return;
+			lane.users++;
+		} finally {
+			commitLanesLock.unlock();
+		}
+		
+		lane.lock.lock();
+		try {
+			ArrayList<Long> pending;
+			commitLanesLock.lock();
+			try {
+				pending = new ArrayList<Long>(lane.pending);
+			} finally {
+				commitLanesLock.unlock();
 			}
-
-			for (Integer i : toRemove) {
-				synchronized (mutexLock) {
-					commitOrder.remove(i);
+			
+			for (Long i : pending) {
+				LogRecord transaction = transactionDB.get(i);
+				if (transaction == null || !transaction.hasCommitted()) continue;
+				
+				LogRecord newRecord = new LogRecord(
+						RequestMessage.RequestMethod.COMMIT,
+						transaction.getTransactionID(), 
+						transaction.getSequenceNumber(), 
+						null,
+						null);
+				newRecord.applyCommitLSN(transaction.getCommitLSN());
+				if (commitMode == CommitMode.APPEND && transaction.getCommitOffset() >= 0) {
+					// a failed COMMIT is retried at the offset it was logged with
+					newRecord.setCommitOffset(transaction.getCommitOffset());
+				}
+				try {
+					addLog(newRecord);
+				} catch (ServerException e) {
+					System.out.println(e.getMessage());
+					break;
+				}
+				
+				commitLanesLock.lock();
+				try {
+					lane.pending.remove(i);
+				} finally {
+					commitLanesLock.unlock();
 				}
 			}
-			
 		} finally {
-			mutex.lock();
-			commitQueue.lock();
-			commitInProgress = false;
-			addCommitCond.signal();
-			removeCommitCond.signal();
-			commitQueue.unlock();
-			mutex.unlock();
+			lane.lock.unlock();
+			commitLanesLock.lock();
+			try {
+				lane.users--;
+				if (lane.users == 0 && lane.pending.isEmpty()) {
+					commitLanes.remove(filename);
+				}
+			} finally {
+				commitLanesLock.unlock();
+			}
 		}
-
-		//		Iterator<Integer> iter = commitOrder.keySet().iterator();
-		//
-		//		// for (Integer entry : commitOrder.keySet()) {
-		//		while (iter.hasNext()) {
-		//			try {
-		//				Integer entry = iter.next();
-		//				log = getLog(entry.intValue());
-		//				newRecord = new LogRecord(RequestMessage.RequestMethod.COMMIT,
-		//						log.getTransactionID(), log.getSequenceNumber(), null,
-		//						null);
-		//
-		//				if (log.hasCommitted()) {
-		//					// System.out.println(newRecord.getTransactionID());
-		//					addLog(newRecord);
-		//					iter.remove();
-		//				}
-		//			} catch (ServerException e) {
-		//
-		//			} finally {
-		//				commitInProgress = false;
-		//			}
-		//		}
 	}
 
 	private static void printUsage () {
@@ -576,30 +916,127 @@ public class FileServer {
 				+ "-ip \t\t IP address to bind to (default: 127.0.0.1) \n"
 				+ "-port \t\t Port number to bind to (default: 8080) \n"
 				+ "-bip \t\t IP address of the backup server (only provide this field if you are starting the primary server \n"
-				+ "-bport \t\t Port number of the backup server (only provide this field if you are starting the primary server \n");
+				+ "-bport \t\t Port number of the backup server (only provide this field if you are starting the primary server \n"
+				+ "-logwindow \t Time (microseconds) the log writer waits to group log entries into a single flush (default: 200) \n"
+				+ "-logbatch \t Maximum number of log entries flushed to disk with a single fsync (default: 256) \n"
+				+ "-commitmode \t append: commits append in place to the file, copy: commits rewrite a copy of the whole file (default: append) \n"
+				+ "-fairlocks \t true: waiting READs and COMMITs acquire a file in arrival order (default: false) \n"
+				+ "-frontend \t thread: one thread per client connection, virtual: one virtual thread per client connection (run on Java 21+), nio: selector based I/O threads and a worker pool (default: thread) \n"
+				+ "-iothreads \t Number of selector I/O threads used by the nio front end (default: 2) \n"
+				+ "-workers \t Number of worker threads executing requests for the nio front end and pipelined connections (default: 32) \n"
+				+ "-pipeline \t true: clients can send requests without waiting for responses, independent transactions on a connection run concurrently (default: false) \n"
+				+ "-readcache \t Size (MB) of the cache of memory-mapped files that serves READs of recently read files, 0 disables it (default: 64) \n"
+				+ "-replication \t sync: COMMITs are answered once the backup has applied them, semisync: once the backup has received them, async: without waiting for the backup (default: sync) \n"
+				+ "-checkpoint \t Interval (seconds) between checkpoints, which drop the log entries recovery no longer needs, 0 disables them (default: 30) \n"
+				+ "-logsegment \t Size (MB) of the log segment files, which are preallocated before they are written to (default: 64) \n"
+				+ "-logwrites \t force: NEW_TXN and WRITE entries are forced to disk as they are logged, lazy: they are forced with the transaction's COMMIT, a crash can lose transactions that have not committed (default: force) \n"
+				+ "-txntimeout \t Time (seconds) after which a transaction that has not committed and receives no requests is aborted, 0 disables it (default: 600) \n");
 		System.out.println();
 		System.out.println("Syntax of primary file: \n".toUpperCase()
 				+ "[IP_ADDRESS] [PORT] [COMMIT_PORT] \n[COMMIT_PORT] is updated by the server as necessary, you do not need to provide this value.");
 
 	}
 	
+	public static boolean isPipelined () {
+		return pipelined;
+	}
+	
+	public static ExecutorService getPipelineExecutor () {
+		return pipelineExecutor;
+	}
+	
 	public static int getTimeout () {
 		return TIMEOUT;
 	}
 	
-	/* parse log file and recover system to a stable state right before the crash */
-	private static void startRecovery () {
-		RequestMessage.RequestMethod method;
-		int transactionID;
-		int sequenceNumber;
-		String data;
-		boolean flushed;
+	/* creates a new (empty) staging file for the data of a streamed WRITE */
+	public static File newStagingFile () throws IOException {
+		return File.createTempFile(stagingFilePrefix, null, new File(dir));
+	}
+	
+	public static File getStagingFile (String name) {
+		return new File(dir, name);
+	}
+	
+	public static File getTempFile (String name) {
+		return new File(dir, tempFilePrefix + name);
+	}
+	
+	/* forces the directory entries of the directory that holds the file to disk: a file renamed into place (Files.move) is only there
+	 * after a crash once its directory has been forced */
+	public static void forceDirectory (File file) throws IOException {
+		FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+		try {
+			directory.force(true);
+		} finally {
+			directory.close();
+		}
+	}
+	
+	public static File getCheckpointFile () {
+		return new File(dir, checkpointName);
+	}
+	
+	public static File getLogSegment (int number) {
+		return new File(dir, logName + "." + number);
+	}
+	
+	/* names of the files of the segmented log written by logWriter */
+	private static final LogWriter.SegmentNames logSegmentNames = new LogWriter.SegmentNames() {
+		public File segment (int number) {
+			return getLogSegment(number);
+		}
 		
-		LogRecord transactionLog;
+		public File preallocated (int number) {
+			return getTempFile(logName + "." + number);
+		}
+	};
+	
+	/* numbers of the log segments in the directory, in log order */
+	public static ArrayList<Integer> getLogSegments () {
+		ArrayList<Integer> segments = new ArrayList<Integer>();
+		for (File file : getFileList(dir, logName + ".")) {
+			try {
+				segments.add(Integer.parseInt(file.getName().substring(logName.length() + 1)));
+			} catch (NumberFormatException e) {
+				// not a log segment
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+	
+	/* checkpoints keep the committed transactions after this commit LSN, the backup still needs them */
+	public static int getReplicationRetainLSN () throws IOException {
+		if (isPrimary && replicationChannel != null) {
+			return replicationChannel.getRetainLSN();
+		}
+		return LogRecord.getCurrentLSN();
+	}
+	
+	/* deletes the staging files that no transaction refers to (WRITEs that were still being received, or never logged, when the server went down) */
+	private static void deleteUnreferencedStagingFiles () {
+		HashSet<String> referenced = new HashSet<String>();
+		for (LogRecord transactionLog : transactionDB.values()) {
+			referenced.addAll(transactionLog.getStagedFiles());
+		}
+		
+		ArrayList<File> stagingFiles = getFileList(dir, stagingFilePrefix);
+		for (File file : stagingFiles) {
+			if (!referenced.contains(file.getName())) {
+				file.delete();
+			}
+		}
+	}
+	
+	/* parse the log and recover system to a stable state right before the crash 
+	 * the log is the last checkpoint followed by the log segments written after it (see Checkpointer), or the single log file of an older version of the server
+	 * everything that is recovered is logged again into a new checkpoint, which replaces the old log once recovery is complete */
+	private static void startRecovery () {
 		LogRecord newRecord;
-		Map<Integer, LogRecord> flushJobs = new LinkedHashMap<Integer, LogRecord>();
-		logFile = new File(dir,logName);
-
+		Map<Long, LogRecord> flushJobs = new LinkedHashMap<Long, LogRecord>();
+		File legacyLogFile = new File(dir,logName);
+		File checkpointFile = getCheckpointFile();
 		
 		// delete any temporary files created by the server that may be present in the directory
 		ArrayList<File> serverJunk = getFileList(dir, tempFilePrefix);
@@ -608,238 +1045,343 @@ public class FileServer {
 		}
 		
 		try {
-			logFile.createNewFile();
-		} catch (IOException e1) {
-		}
-		
+			LogCodec.Checkpoint checkpoint = null;
+			if (checkpointFile.exists()) {
+				checkpoint = readCheckpoint(checkpointFile);
+			}
+			int firstSegment = checkpoint != null ? checkpoint.getFirstSegment() : 0;
+			recoveryBaseLSN = checkpoint != null ? checkpoint.getCommitLSN() : 0;
+			LogRecord.setLSN(recoveryBaseLSN);
+			
+			ArrayList<Integer> segments = getLogSegments();
+			activeSegment = Math.max(firstSegment, segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1);
 			
-		BufferedReader reader = null;
-
-		if (logFile.exists()) {
 			recoveryLogFile = new File (dir, tempFilePrefix+recoveryLogName);
-			try {
-				recoveryLogFile.createNewFile();
-			} catch (IOException e1) {
+			recoveryLogFile.createNewFile();
+			logWriter = new LogWriter(recoveryLogFile, logBatchWindow, logBatchSize);
+			logWriter.start();
+			logWriter.append(LogCodec.encodeCheckpoint(new LogCodec.Checkpoint(activeSegment, recoveryBaseLSN)));
+			
+			// walk through the checkpoint and the log segments, making any changes as necessary and flushing any unflushed commits 
+			if (checkpoint != null) {
+				replayLog(checkpointFile, true, flushJobs);
+			} else if (legacyLogFile.exists()) {
+				replayLog(legacyLogFile, false, flushJobs);
+			}
+			for (Integer segment : segments) {
+				if (segment >= firstSegment) {
+					replayLog(getLogSegment(segment), false, flushJobs);
+				}
 			}
 			
-			// create a copy of the log and walk through the copy making any changes as necessary and flushing any unflushed commits 
+			recoverReplicatedLSN();
 			
-			try {
+			// flush jobs hold the unflushed COMMIT entries, which keep the commit offset recorded in the log
+			for (Long tid : flushJobs.keySet()) {
+				newRecord = flushJobs.get(tid);
+				System.out.println("Attempting to fully commit to disk TID: " + tid);
 
-				reader = new BufferedReader(new FileReader(logFile));
-				String line;
-				String [] logHeader;
-				
-				while ((line = reader.readLine()) != null) {
-					line = fromHexString(line); // decode from hex to String
-					logHeader = line.split(LogRecord.getDecodeDelimiter());
-					
-//					for (int i = 0; i < logHeader.length; i++) {
-//						System.out.print(logHeader[i] + " ");
-//					}
-//					System.out.println();
+				try {
+					FileServer.addLog(newRecord);
+				} catch (ServerException e) {
+					// the COMMIT is in the log, the server cannot start without it in the file
+					System.err.println(e.getMessage() + ", exiting program");
+					System.exit(1);
+				}
+			}
+			
+			
+			// IF YOU ARE THE BACKUP, SYNC with primary 
 
-					method = RequestMessage.RequestMethod.fromString(logHeader[0]);
-					transactionID = Integer.parseInt(logHeader[1]);
-					sequenceNumber = Integer.parseInt(logHeader[2]);
-					
-					switch (method) {
-					case ABORT: 	 /* method<>tid<>seq */
-					{
-						transactionLog = transactionDB.get(transactionID);
-						newRecord = new LogRecord (
-								method, 
-								transactionID, 
-								-1, 
-								null, 
-								null);
-						transactionLog.setAborted(true);
-						transactionLog.addLog(newRecord);
-					}
-					break;
-					case COMMIT: 	 /* method<>tid<>seq<>flushed */
-					{
-						transactionLog = transactionDB.get(transactionID);
-						newRecord = new LogRecord (
-								method, 
-								transactionID, 
-								sequenceNumber, 
-								null, 
-								null);
-						transactionLog.setCommited(true);
-						transactionLog.setReceivedCommitRequest(true);
-						transactionLog.setSequenceNumber(sequenceNumber);
-						transactionLog.applyCommitLSN(Integer.parseInt(logHeader[3]));
-						flushed = Boolean.parseBoolean(logHeader[4]);
-						
-//						System.out.println("Recovery parsed a COMMIT log: ");
-//						System.out.println(method.toString() + " " + transactionID + " " + sequenceNumber + " " + flushed);
-//						System.out.println();
-
-						flushJobs.put(transactionID, transactionLog);
-						
-						if (flushed) {
-//							System.out.println("Inside flushed, TID: " + transactionID);
-							newRecord.setFlushed(true);
-							FileServer.addLog(newRecord);
-							flushJobs.remove(transactionID);
-						} else {
-							LogRecord.setLSN(Integer.parseInt(logHeader[3]));
-							commitDB.put(Integer.parseInt(logHeader[3]), transactionLog);
-						}
-					}
-						break;
-					case NEW_TXN:	 /* method<>tid<>seq<>data */ 
-					{
-						data = logHeader[3]; // data represents the filename in this case
-						transactionLog = new LogRecord(null, transactionID, -1, null, null);
-						newRecord = new LogRecord (
-								method, 
-								transactionID, 
-								0, 
-								data, 
-								data);
-						transactionDB.put(transactionID, transactionLog);
-						transactionLog.setFilename(data);
-						transactionLog.addLog(newRecord);
-					}
-						break;	
-					case WRITE:		 /* method<>tid<>seq<>data */ 		
-					{
-						data = logHeader[3]; 
-						transactionLog = transactionDB.get(transactionID);
-						newRecord = new LogRecord ( 
-								method, 
-								transactionID, 
-								sequenceNumber,  
-								null, 
-								data);
-						
-						transactionLog.addLog(newRecord);
-					}
-						break;
-					default:
-						break;
-					}
-				}
-				
-				
-				for (Integer tid : flushJobs.keySet()) {
-					transactionLog = flushJobs.get(tid);
-					newRecord = new LogRecord (
-							RequestMessage.RequestMethod.COMMIT, 
-							transactionLog.getTransactionID(), 
-							transactionLog.getSequenceNumber(), 
-							null, 
-							null);
-					System.out.println("Attempting to fully commit to disk TID: " + tid);
-
-					FileServer.addLog(newRecord);
-				}
-				
-				
-				// IF YOU ARE THE BACKUP, SYNC with primary 
-
-				Socket primary = null;
-				if (!isPrimary) {
+			if (!isPrimary) {
+				int attempt = 0;
+				int recoveredLSN = LogRecord.getCurrentLSN();
+				while (true) {
 					try {
-						ServerMessage syncRequest = new ServerMessage(ServerMessage.RequestMethod.SYNC, LogRecord.getCurrentLSN());
-						InetSocketAddress primaryAddr = FileServer.getPeerAddress();
-						//Socket primary = new Socket(primaryAddr.getAddress(), primaryAddr.getPort());
-						try {
-							primary = new Socket();
-							primary.bind(new InetSocketAddress(bindAddr, port));
-						} catch (IOException e) {
-							System.err.println("Port: " + port + " is currently taken by your Operating System, try running the program again after a few seconds. \n It usually takes some time (~ close to a minute) for the operating system to release the port. Exiting program...");
-							System.err.println("This was likely due to killing the server and attempting to quickly restart it. The operating system does not immediatley release ports if a program was interrupted abnormally.");
-
-							System.exit(1);
-						}
-						
-						primary.connect(primaryAddr);
-						primary.setTcpNoDelay(true);
-						primary.setReuseAddress(true);
-
-						ObjectOutputStream os = new ObjectOutputStream(primary.getOutputStream());
-						os.writeObject(syncRequest);
-
-						os.flush();
-
-						ObjectInputStream inputStream = new ObjectInputStream(primary.getInputStream());
-
-						ArrayList<LogRecord> missingTransactions = (ArrayList<LogRecord>) inputStream.readObject();
-						if (missingTransactions.size() > 0) {
-							System.out.println(String.format("[** Backup is synchronizing %s transactions with the primary - do not kill either server **]".toUpperCase(), missingTransactions.size()));
-						}
-
-						LogRecord toCommit = null;
-						for (int i = 0; i < missingTransactions.size(); i++) {
-							LogRecord transaction = missingTransactions.get(i);
-							transaction.setCommited(true);
-							System.out.println("Syncing TID: " + transaction.getTransactionID());
-							transactionDB.put(transaction.getTransactionID(), transaction);
-							commitDB.put(transaction.getCommitLSN(), transaction);
-							toCommit = new LogRecord (
-									RequestMessage.RequestMethod.COMMIT, 
-									transaction.getTransactionID(), 
-									transaction.getSequenceNumber(), 
-									null, 
-									null);
-							LogRecord.setLSN(transaction.getCommitLSN());
-							manageFile(transaction.getFileName());
-							addLog(toCommit);
-						}
-						
-						if (missingTransactions.size() > 0) {
-							System.out.println("[** Backup is now synchronized with the primary **]".toUpperCase());
-						}
-
-
-					} catch (ClassNotFoundException e) {
+						syncWithPrimary();
+						break;
 					} catch (IOException e) {
+						// an interrupted SYNC is resumed from the last applied commit LSN
+						if (LogRecord.getCurrentLSN() > recoveredLSN) {
+							if (++attempt <= SYNC_RETRIES) {
+								System.out.println(String.format("SYNC with the primary interrupted (%s), resuming from CLSN: %d", e.getMessage(), LogRecord.getCurrentLSN() + 1));
+								try {
+									Thread.sleep(SYNC_RETRY_DELAY);
+								} catch (InterruptedException e1) {
+								}
+								continue;
+							}
+							// the primary was reachable: stay the backup, its replication channel resumes from the last applied commit LSN
+							// (if the primary has died, the pinger promotes this server)
+							System.out.println(String.format("SYNC with the primary could not be resumed, the primary's replication channel will resume from CLSN: %d", LogRecord.getCurrentLSN() + 1));
+							break;
+						}
+													
 						// primary is not responding! -- become the new primary (update the primary.txt file)						
 						System.out.println("The primary server was not reachable while the backup server was undergoing recovery (replication could not be completed), "
 								+ "backup will now act as the new primary. Make sure you to start your primary server first to avoid this error.");
 						System.out.println(String.format("[** Promoted to primary - %s:%s **]".toUpperCase(), FileServer.bindAddr.getHostAddress(), FileServer.port));
 						FileServer.updatePrimary(bindAddr, port, primaryFile);
-						
-						//e.printStackTrace();
-					} finally {
-						if (primary != null) 
-							primary.close();
+						break;
 					}
 				}
-				
-				reader.close();
-				
-				if (logFile.exists()) {
-					while(logFile.delete() == false);
-				}
-				
-				boolean nameChanged = false;
-				
-				do {
-					nameChanged = recoveryLogFile.renameTo(logFile);
-				} while (!nameChanged);
-								
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (ServerException e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					if (reader != null)
-						reader.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+			}
+			
+			deleteUnreferencedStagingFiles();
+			
+			logWriter.close();
+			
+			// the recovered log becomes the checkpoint, the log it was recovered from is no longer needed
+			Files.move(recoveryLogFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			forceDirectory(checkpointFile);
+			if (legacyLogFile.exists()) {
+				while (legacyLogFile.delete() == false);
+			}
+			for (Integer segment : getLogSegments()) {
+				if (segment < activeSegment) {
+					getLogSegment(segment).delete();
 				}
-			}		
-		} 
+			}
+			
+			logFile = getLogSegment(activeSegment);
+			logWriter = new LogWriter(logSegmentNames, activeSegment, logSegmentSize * 1024 * 1024, logBatchWindow, logBatchSize);
+			logWriter.start();
+							
+		} catch (IOException e) {
+			// the checkpoint is only replaced once the recovery has completed, nothing has been lost
+			System.err.println("Recovery failed: " + e.getMessage() + ", exiting program");
+			System.exit(1);
+		} catch (ServerException e) {
+			System.err.println("Recovery failed: " + e.getMessage() + ", exiting program");
+			System.exit(1);
+		}
 
 		inRecoveryMode = false;
 		return;
 	}
 	
+	/* reads the header of a checkpoint file, fails if it cannot be read: the checkpoint holds transactions that are in no log segment any more
+	 * (the segments before it have been deleted), so the server cannot recover without it (see Checkpointer.checkpoint) */
+	private static LogCodec.Checkpoint readCheckpoint (File checkpointFile) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(checkpointFile));
+		try {
+			byte[] header = new byte[LogCodec.getFileHeaderLength()];
+			LogCodec.Checkpoint checkpoint = null;
+			if (LogCodec.hasFileHeader(header, in.readNBytes(header, 0, header.length))) {
+				checkpoint = LogCodec.readCheckpoint(in);
+			}
+			if (checkpoint == null) {
+				throw new IOException("checkpoint " + checkpointFile.getName() + " is unreadable, it has been left in place (restore it from a copy)");
+			}
+			return checkpoint;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/* replays a checkpoint, a log segment, or the log of an older version of the server */
+	private static void replayLog (File log, boolean isCheckpoint, Map<Long, LogRecord> flushJobs) throws IOException, ServerException {
+		InputStream reader = new BufferedInputStream(new FileInputStream(log));
+		try {
+			// logs written by older versions of the server are hex encoded lines, binary logs start with a file header
+			byte[] header = new byte[LogCodec.getFileHeaderLength()];
+			reader.mark(header.length);
+			int headerLength = reader.readNBytes(header, 0, header.length);
+			
+			if (LogCodec.hasFileHeader(header, headerLength)) {
+				if (isCheckpoint) {
+					LogCodec.readCheckpoint(reader);
+				}
+				LogCodec.Reader logReader = new LogCodec.Reader(reader);
+				LogRecord entry;
+				while ((entry = logReader.next()) != null) {
+					recoverEntry(entry, flushJobs);
+				}
+				if (logReader.hasTornTail()) {
+					System.out.println("Ignoring incomplete log entry found at the end of " + log.getName());
+				}
+			} else {
+				reader.reset();
+				BufferedReader legacyReader = new BufferedReader(new InputStreamReader(reader));
+				String line;
+				while ((line = legacyReader.readLine()) != null) {
+					recoverEntry(parseLegacyEntry(line), flushJobs);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/* BACKUP: replicated COMMITs are applied in parallel, the log can hold flushed COMMITs above one that never was (see Checkpointer.durableLSN) */
+	private static void recoverReplicatedLSN () {
+		if (recoveredReplicatedLSNs.isEmpty()) return;
+		
+		HashSet<Integer> localLSNs = new HashSet<Integer>();
+		for (Long localLSN : commitDB.keys()) {
+			localLSNs.add(localLSN.intValue());
+		}
+		int commitLSN = Checkpointer.durableLSN(recoveryBaseLSN, localLSNs, recoveredReplicatedLSNs);
+		if (commitLSN < recoveredReplicatedLSNs.last()) {
+			System.out.println(String.format("Replicated COMMITs after CLSN: %d were not all applied, they will be resent by the primary", commitLSN));
+		}
+		LogRecord.setLSN(commitLSN);
+		recoveredReplicatedLSNs.clear();
+	}
+	
+	/* applies a single log entry to the runtime data structures while recovering, unflushed COMMIT entries are queued up in flushJobs */
+	private static void recoverEntry (LogRecord entry, Map<Long, LogRecord> flushJobs) throws ServerException {
+		RequestMessage.RequestMethod method = entry.getMethod();
+		long transactionID = entry.getTransactionID();
+		int sequenceNumber = entry.getSequenceNumber();
+		LogRecord transactionLog;
+		LogRecord newRecord;
+		transactionIDs.observe(transactionID);
+		
+		switch (method) {
+		case ABORT:
+		{
+			transactionLog = transactionDB.get(transactionID);
+			if (transactionLog == null) {
+				System.out.println(String.format("Ignoring ABORT of unknown TID: %d found in the log", transactionID));
+				break;
+			}
+			newRecord = new LogRecord (
+					method, 
+					transactionID, 
+					-1, 
+					null, 
+					null);
+			transactionLog.setAborted(true);
+			transactionLog.addLog(newRecord);
+		}
+		break;
+		case COMMIT:
+		{
+			int commitLSN = entry.getCommitLSN();
+			transactionLog = transactionDB.get(transactionID);
+			if (transactionLog == null) {
+				// a COMMIT applied by a backup: the transaction came from the primary and was never logged here, only its commit LSN is recovered
+				// (an unflushed one is resent by the primary), see recoverReplicatedLSN
+				if (entry.hasFlushed()) {
+					recoveredReplicatedLSNs.add(commitLSN);
+					try {
+						logWriter.append(entry);
+					} catch (IOException e) {
+						System.out.println(String.format("Replicated COMMIT of CLSN: %d could not be kept in the log (%s)", commitLSN, e.getMessage()));
+					}
+				}
+				break;
+			}
+			newRecord = new LogRecord (
+					method, 
+					transactionID, 
+					sequenceNumber, 
+					null, 
+					null);
+			newRecord.applyCommitLSN(commitLSN);
+			newRecord.setCommitOffset(entry.getCommitOffset());
+			transactionLog.setCommited(true);
+			transactionLog.setReceivedCommitRequest(true);
+			transactionLog.setSequenceNumber(sequenceNumber);
+			transactionLog.applyCommitLSN(commitLSN);
+			transactionLog.setCommitOffset(entry.getCommitOffset());
+			
+			if (commitLSN > LogRecord.getCurrentLSN()) {
+				LogRecord.setLSN(commitLSN);
+			}
+			commitDB.put(commitLSN, transactionLog);
+			
+			flushJobs.put(transactionID, newRecord);
+			
+			if (entry.hasFlushed()) {
+				newRecord.setFlushed(true);
+				FileServer.addLog(newRecord);
+				flushJobs.remove(transactionID);
+			}
+		}
+			break;
+		case NEW_TXN:
+		{
+			String filename = entry.getData();
+			transactionLog = new LogRecord(null, transactionID, -1, null, null);
+			newRecord = new LogRecord (
+					method, 
+					transactionID, 
+					0, 
+					filename, 
+					filename);
+			transactionDB.put(transactionID, transactionLog);
+			transactionLog.setFilename(filename);
+			transactionLog.addLog(newRecord);
+		}
+			break;	
+		case WRITE:
+		{
+			transactionLog = transactionDB.get(transactionID);
+			if (transactionLog == null) {
+				System.out.println(String.format("Ignoring WRITE of unknown TID: %d found in the log", transactionID));
+				break;
+			}
+			newRecord = new LogRecord ( 
+					method, 
+					transactionID, 
+					sequenceNumber,  
+					null, 
+					entry.getData());
+			if (entry.isStaged()) {
+				newRecord.setStagedFile(entry.getStagedFile(), entry.getStagedLength());
+			}
+			
+			transactionLog.addLog(newRecord);
+		}
+			break;
+		case WRITE_BATCH:
+		{
+			transactionLog = transactionDB.get(transactionID);
+			if (transactionLog == null) {
+				System.out.println(String.format("Ignoring WRITE_BATCH of unknown TID: %d found in the log", transactionID));
+				break;
+			}
+			transactionLog.addLogBatch(entry.getBatch());
+		}
+			break;
+		default:
+			break;
+		}
+	}
+	
+	/* decodes a log entry written in the old hex encoded format 
+	 * 	 ABORT:  method<>tid<>seq
+	 *	 COMMIT: method<>tid<>seq<>commitLSN<>flushed
+	 * 	 NEW_TXN/WRITE: method<>tid<>seq<>data
+	 */
+	private static LogRecord parseLegacyEntry (String line) {
+		String[] logHeader = fromHexString(line).split(LogRecord.getDecodeDelimiter());
+		RequestMessage.RequestMethod method = RequestMessage.RequestMethod.fromString(logHeader[0]);
+		long transactionID = Long.parseLong(logHeader[1]);
+		int sequenceNumber = Integer.parseInt(logHeader[2]);
+		LogRecord entry;
+		
+		switch (method) {
+		case COMMIT:
+			entry = new LogRecord(method, transactionID, sequenceNumber, null, null);
+			entry.applyCommitLSN(Integer.parseInt(logHeader[3]));
+			entry.setFlushed(Boolean.parseBoolean(logHeader[4]));
+			break;
+		case NEW_TXN:
+			entry = new LogRecord(method, transactionID, sequenceNumber, logHeader[3], logHeader[3]);
+			break;
+		case WRITE:
+			entry = new LogRecord(method, transactionID, sequenceNumber, null, logHeader[3]);
+			break;
+		default:
+			entry = new LogRecord(method, transactionID, sequenceNumber, null, null);
+			break;
+		}
+		return entry;
+	}
+	
 	/* returns a list files from path with names that start with the pattern argument */
 	public static ArrayList<File> getFileList (String path, final String prefix) {
 		ArrayList<File> fileList = new ArrayList<File>();
@@ -866,33 +1408,57 @@ public class FileServer {
 		return fileList;
 	}
 
-	public synchronized static LogRecord getLog (int tid) throws ServerException {
-		if (isTaken(tid)) {
-			return transactionDB.get(tid);
+	public static LogRecord getLog (long tid) throws ServerException {
+		LogRecord transactionLog = transactionDB.get(tid);
+		if (transactionLog != null) {
+			return transactionLog;
 		} else {
 			throw new ServerException("TID (" + tid + ") does not refer to a valid transaction.", ClientServerProtocol.Error.INVALID_TRANSACTION_ID);
 		}
 	}
 
 	// initializes transactions by generating a unique TID and setting up the log data structure 
-	public synchronized static int generateID () {
-		int newID = generator.nextInt((99999-10000) + 10000);
-		if (isTaken(newID)) generateID();
-		LogRecord transactionLog = new LogRecord(null, newID, -1, null, null);
-		transactionDB.put(newID, transactionLog);
+	public static long generateID () {
+		long newID = transactionIDs.next(); // never handed out before, no other transaction can have it
+		transactionDB.put(newID, new LogRecord(null, newID, -1, null, null));
 		return newID;
 	}
 	
-	public synchronized static void manageFile (String fname) {
-		if (!fileAccessManager.containsKey(fname)) {
-			fileAccessManager.put(fname, 0);
+	/* moves the TID allocator to a new epoch, a server that cannot make its epoch durable cannot hand out TIDs that are known to be unique */
+	private static void startEpoch () {
+		try {
+			transactionIDs.startEpoch();
+		} catch (IOException e) {
+			System.err.println("The TID epoch could not be written to " + epochName + " (" + e.getMessage() + "), exiting program");
+			System.exit(1);
+		}
+	}
+	
+	/* aborts a transaction that has not received a request for longer than the transaction timeout (see TransactionReaper) */
+	public static void abortIdleTransaction (LogRecord transactionLog) {
+		if (transactionLog.getFileName() == null) return;
+		// a COMMIT that arrives at the same time either commits the transaction first (it is not aborted) or fails (see LogRecord.markCommitted)
+		if (!transactionLog.markAborted()) return;
+		removeCommit(transactionLog.getTransactionID()); // a COMMIT that was waiting for WRITEs
+		
+		LogRecord newRecord = new LogRecord (
+				RequestMessage.RequestMethod.ABORT, 
+				transactionLog.getTransactionID(), 
+				-1, 
+				null, 
+				null);
+		try {
+			transactionLog.addLog(newRecord);
+			System.out.println(String.format("Aborted TID: %d, idle for more than %d seconds", transactionLog.getTransactionID(), transactionTimeout));
+		} catch (ServerException e) {
+			System.out.println(String.format("Idle TID: %d could not be aborted: %s", transactionLog.getTransactionID(), e.getMessage()));
 		}
 	}
-
+	
 	
 	// checks if a transaction ID has been used (i.e. valid) 
 	 
-	public synchronized static boolean isTaken (int tid) {
+	public static boolean isTaken (long tid) {
 		if (transactionDB.containsKey(tid)) {
 			return true;
 		} else {
@@ -900,27 +1466,48 @@ public class FileServer {
 		}
 	}
 	
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	
+	/* hex encoding of the legacy text log (upper case, as javax.xml.bind.DatatypeConverter wrote it before it was removed from the JDK) */
 	public static String toHexString (String toEncode) {
-		return DatatypeConverter.printHexBinary(toEncode.getBytes());
+		byte[] bytes = toEncode.getBytes();
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
 	}
 	
 	public static String fromHexString (String toDecode) {
-		return new String(DatatypeConverter.parseHexBinary(toDecode));
+		if (toDecode.length() % 2 != 0) {
+			throw new IllegalArgumentException("hex string has an odd length: " + toDecode.length());
+		}
+		byte[] bytes = new byte[toDecode.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(toDecode.charAt(2 * i), 16);
+			int low = Character.digit(toDecode.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("contains illegal character for hex: " + toDecode.substring(2 * i, 2 * i + 2));
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return new String(bytes);
 	}
 	
 	public static void copyFile(File source, File destination) {
-	    InputStream in = null;
+	    FileInputStream in = null;
 	    FileOutputStream out = null;
-		BufferedWriter bw = null;
 
 		try {
 			in = new FileInputStream(source);
 			out = new FileOutputStream(destination);
-		    // Transfer bytes from in to out
-		    byte[] buf = new byte[(int) source.length()];
-		    int len;
-		    while ((len = in.read(buf)) > 0) {
-		        out.write(buf, 0, len);
+		    // Transfer bytes from in to out (channel to channel, the file is not loaded into memory)
+		    FileChannel inChannel = in.getChannel();
+		    long size = inChannel.size();
+		    long position = 0;
+		    while (position < size) {
+		        position += inChannel.transferTo(position, size - position, out.getChannel());
 		    }
 		    
 		    out.flush();
@@ -946,19 +1533,16 @@ public class FileServer {
 	
 	/* WRITE AHEAD LOGGING :
 	 * Gets called to append a new log entry EVERY time a valid request of type [NEW_TXN, WRITE, ABORT] is received 
+	 * The entry is handed to the group commit log writer, which returns once the batch holding the entry has been forced to disk 
+	 * An entry that cannot be logged, or a COMMIT whose data cannot be written to its file, fails with a FILE_IO_ERROR: a failed COMMIT leaves
+	 * the file as it was and is not marked as committed locally (it is retried at the same offset, see processCommits)
 	 * 
 	 * Note: this method needs to be THREAD-SAFE
 	 */
 	
-	public static void addLog (LogRecord newEntry) {
-		
-		File log = logFile;
-		if (inRecoveryMode) {
-			log = recoveryLogFile;
-		}
+	public static void addLog (LogRecord newEntry) throws ServerException {
 
 		FileOutputStream outputStream = null;
-		BufferedWriter bw = null;
 		
 		try {
 			LogRecord transactionLog = getLog(newEntry.getTransactionID());
@@ -968,60 +1552,78 @@ public class FileServer {
 			if (newEntry.getMethod() == RequestMessage.RequestMethod.COMMIT && newEntry.hasFlushed()) {
 				
 				if (tempFile.exists()) {
-					
-//					System.out.println("Simulating crash during commiting, there should be a temp file now");
-//					try {
-//						Thread.currentThread().sleep(100000);
-//					} catch (InterruptedException e) {
-//						// TODO Auto-generated catch block
-//						e.printStackTrace();
-//					}
-										
-					if (file.exists()) {
-						while (file.delete() == false);
+					// READs of the file wait for the rename only, not for the copy (see below)
+					fileLocks.lockWrite(file.getName());
+					try {
+						if (file.exists()) {
+							while (file.delete() == false);
+						}
+						
+						boolean nameChanged = false;
+						
+						do {
+							nameChanged = tempFile.renameTo(file);
+						} while (!nameChanged);
+						
+						if (readCache != null) {
+							readCache.invalidate(file.getName());
+						}
+					} finally {
+						fileLocks.unlockWrite(file.getName());
 					}
-
-					boolean nameChanged = false;
-
-					do {
-						nameChanged = tempFile.renameTo(file);
-					} while (!nameChanged);
 				}
-				
-				while (true) {
-					synchronized (commitLock) {
-						if (fileAccessManager.containsKey(file.getName())) {
-							fileAccessManager.put(file.getName(), 0);
-							break;
-						}
+			}
+			
+			/* APPEND COMMIT MODE: only the transaction's data is written to the file, in place
+			 *  - Take the file's commit lock and record its current length (the commit offset) in the COMMIT log entry
+			 *	- Once the COMMIT entry is durable, truncate the file to the commit offset (discards a partial append from a crash) and append the data
+			 *	- Force the file to disk and add a new log entry that records that the COMMIT has been flushed, then release the commit lock
+			 *	Only the append (and the truncate of a failed COMMIT) holds the file's write lock, READs of the file do not wait for the log forces
+			 *	Recovery redoes unflushed commits from their recorded offset, so the file never exposes a partially committed transaction
+			 */
+			if (newEntry.getMethod() == RequestMessage.RequestMethod.COMMIT && !newEntry.hasFlushed() && (commitMode == CommitMode.APPEND || newEntry.getCommitOffset() >= 0)) {
+				// the COMMITs of the file pick their offsets and update the file one at a time
+				fileLocks.lockCommit(file.getName());
+				try {
+					if (newEntry.getCommitOffset() < 0) {
+						newEntry.setCommitOffset(file.length());
 					}
+					// shipped to the backup, which commits the transaction at the same offset
+					transactionLog.setCommitOffset(newEntry.getCommitOffset());
 					
 					try {
-						int idle = generator.nextInt((3-1) + 1) + 1;
-						Thread.sleep(idle*5);
-					} catch (InterruptedException e) {
+						logWriter.append(newEntry);
+						appendAt(file, newEntry.getCommitOffset(), transactionLog);
 						
+						newEntry.setFlushed(true); 
+						addLog (newEntry);
+					} catch (IOException e) {
+						truncate(file, newEntry.getCommitOffset());
+						throw e;
+					} catch (ServerException e) {
+						truncate(file, newEntry.getCommitOffset());
+						throw e;
 					}
+				} finally {
+					fileLocks.unlockCommit(file.getName());
 				}
-				
+				return;
 			}
 			
-			synchronized (logLock) {
-
-				outputStream = new FileOutputStream(log, true);
-				bw = new BufferedWriter(new OutputStreamWriter(outputStream));
-				///			System.out.println("New log entry: " + newEntry.toString());  // ***************************************
-				bw.write(toHexString(newEntry.toString()));
-				bw.newLine();
-				bw.flush();
-
-				// force flushes the log entry to disk (not 100% guaranteed, but very very likely) WRITE AHEAD LOGGING
-				outputStream.getChannel().force(true);
-				outputStream.getFD().sync();
-				outputStream.getFD().sync();
-				
-				
-
+			RequestMessage.RequestMethod method = newEntry.getMethod();
+			if (writeLogging == WriteLogging.LAZY && (method == RequestMessage.RequestMethod.NEW_TXN || method == RequestMessage.RequestMethod.WRITE || method == RequestMessage.RequestMethod.WRITE_BATCH)) {
+				// made durable by the force of the transaction's COMMIT entry, which is logged after it
+				logWriter.appendLazily(newEntry);
+			} else {
+				// blocks until the batch containing this entry has been flushed to disk (WRITE AHEAD LOGGING)
+				logWriter.append(newEntry);
+			}
+			
+			if (method == RequestMessage.RequestMethod.COMMIT && newEntry.hasFlushed()) {
+				// the committed data is in the file for good, the transaction can be compacted (see LogRecord.compact)
+				transactionLog.setFlushed(true);
+				// the replication channel ships a transaction once its COMMIT has been processed (in commit LSN order)
+				transactionLog.setCommittedLocally();
 			}
 			
 			/* if the method is COMMIT we need to update the file the transaction is referring to and flush all updates to disk
@@ -1031,65 +1633,37 @@ public class FileServer {
 			 *	- Finally add a new log entry that records that the COMMIT has been flushed
 			 */
 			if (newEntry.getMethod() == RequestMessage.RequestMethod.COMMIT && !newEntry.hasFlushed()) {
-//				LogRecord transactionLog = getLog(newEntry.getTransactionID());
-//				File file = new File (dir, transactionLog.getFileName());
-//				File tempFile = new File (dir , tempFilePrefix+transactionLog.getFileName());
-				String dataToAppend = transactionLog.getCommittedData();				
-				while (true) {
-					synchronized (commitLock) {
-						if (fileAccessManager.containsKey(file.getName())) {
-							if (fileAccessManager.get(file.getName()) == 0) {
-								fileAccessManager.put(file.getName(), -1);
-								break;
-							}
-						} else {
-							break;
-						}
-					}
-					//System.out.println("waiting");
-				}
-				
-				//System.out.println(transactionLog.getTransactionID() + " is committing to disk");
-				
-				if (file.exists()) {
-					// create a copy of the file we intend to update
-					copyFile(file, tempFile);	
-				} 
-
-				// append data to the temp file
-				outputStream = new FileOutputStream(tempFile, true);
-				//System.out.println("Data to append: " + dataToAppend);
-				bw = new BufferedWriter(new OutputStreamWriter(outputStream));
-				bw.write(dataToAppend);
-				bw.flush();
-
-				outputStream.getChannel().force(true);
-				outputStream.getFD().sync();
-				outputStream.getFD().sync();
-				
-//				if (file.exists()) {
-//					file.delete();
-//				}
-//				
-//				boolean nameChanged = false;
-//				
-//				do {
-//					nameChanged = tempFile.renameTo(file);
-//				} while (!nameChanged);
+				// READs of the file go on while the copy is written, they only wait for the rename
+				fileLocks.lockCommit(file.getName());
+				try {
+					//System.out.println(transactionLog.getTransactionID() + " is committing to disk");
+					transactionLog.setCommitOffset(file.length());
+					
+					if (file.exists()) {
+						// create a copy of the file we intend to update
+						copyFile(file, tempFile);	
+					} 
+	
+					// append data to the temp file
+					outputStream = new FileOutputStream(tempFile, true);
+					FileChannel channel = outputStream.getChannel();
+					writeCommittedData(channel, channel.size(), transactionLog);
+	
+					outputStream.getChannel().force(true);
+					outputStream.getFD().sync();
+					outputStream.getFD().sync();
+					
+					newEntry.setFlushed(true); 
 				
-				newEntry.setFlushed(true); 
-			
-				addLog (newEntry);
+					// the flushed COMMIT entry renames the temporary file over the original while the commit lock is still held
+					addLog (newEntry);
+				} finally {
+					fileLocks.unlockCommit(file.getName());
+				}
 			}
 			
-		} catch (FileNotFoundException e) {
-
 		} catch (IOException e) {
-
-		} catch (ServerException e) {
-			System.out.println("addLog: ServerException");
-			System.out.println(e.getMessage());
-
+			throw new ServerException(String.format("The %s of TID: %d could not be written to disk (%s)", newEntry.getMethod(), newEntry.getTransactionID(), e.getMessage()), ClientServerProtocol.Error.FILE_IO_ERROR);
 		} finally {
 			try {
 				if (outputStream != null) {
@@ -1101,75 +1675,183 @@ public class FileServer {
 		}
 	}
 	
+	/* discards what a failed COMMIT has written past its commit offset, the file is left as it was before the COMMIT
+	 * holds the file's write lock: READs do not see the file while it is cut back */
+	private static void truncate (File file, long offset) {
+		fileLocks.lockWrite(file.getName());
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > offset) {
+					channel.truncate(offset);
+					channel.force(true);
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// the retried COMMIT truncates the file to the same offset before it writes (see appendAt)
+			System.out.println(String.format("%s could not be truncated back to offset %d after a failed COMMIT (%s)", file.getName(), offset, e.getMessage()));
+		} finally {
+			if (readCache != null) {
+				readCache.invalidate(file.getName());
+			}
+			fileLocks.unlockWrite(file.getName());
+		}
+	}
+	
 	
-	public static String readFile (String filename) throws ServerException {
+	/* writes the transaction's data to the file starting at offset (anything past the offset is discarded first) and forces it to disk
+	 * holds the file's write lock: READs do not see the file while the data is half written, a failed append is cut back before the lock is released */
+	private static void appendAt (File file, long offset, LogRecord transactionLog) throws IOException {
+		fileLocks.lockWrite(file.getName());
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > offset) {
+					channel.truncate(offset);
+				}
+				
+				writeCommittedData(channel, offset, transactionLog);
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			truncate(file, offset);
+			throw e;
+		} finally {
+			if (readCache != null) {
+				readCache.invalidate(file.getName());
+			}
+			fileLocks.unlockWrite(file.getName());
+		}
+	}
+	
+	/* writes the data of the transaction's WRITEs in sequence order at position (the end of the file), returns the position after the last byte written
+	 * consecutive inline WRITEs are copied into one buffer of up to COMMIT_BUFFER_SIZE bytes and written together (not one write per WRITE),
+	 * staged data is transferred from its staging file channel to channel, it is never loaded into memory as a whole */
+	private static long writeCommittedData (FileChannel channel, long position, LogRecord transactionLog) throws IOException {
+		ArrayList<LogRecord> writes = transactionLog.getCommittedWrites();
+		long inlineLength = 0;
+		for (LogRecord write : writes) {
+			if (!write.isStaged()) {
+				inlineLength += write.getData().length();
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(COMMIT_BUFFER_SIZE, inlineLength)));
 		
-		while (true) {
-			synchronized (commitLock) {
-				if (fileAccessManager.containsKey(filename)) {
-					if (fileAccessManager.get(filename) >= 0) {
-						fileAccessManager.put(filename, fileAccessManager.get(filename) + 1);
-						break;
+		for (LogRecord write : writes) {
+			if (!write.isStaged()) {
+				byte[] data = write.getData().getBytes();
+				if (data.length > buffer.remaining()) {
+					position = writeFully(channel, position, buffer);
+				}
+				if (data.length <= buffer.remaining()) {
+					buffer.put(data);
+					continue;
+				}
+				ByteBuffer large = ByteBuffer.wrap(data);
+				while (large.hasRemaining()) {
+					position += channel.write(large, position);
+				}
+				continue;
+			}
+			
+			position = writeFully(channel, position, buffer);
+			FileInputStream staged = new FileInputStream(getStagingFile(write.getStagedFile()));
+			try {
+				FileChannel stagedChannel = staged.getChannel();
+				long remaining = write.getStagedLength();
+				while (remaining > 0) {
+					long transferred = channel.transferFrom(stagedChannel, position, remaining);
+					if (transferred <= 0) {
+						throw new IOException(String.format("Staging file %s of TID: %d is shorter than its data", write.getStagedFile(), write.getTransactionID()));
 					}
-				} else {
-					break;
+					position += transferred;
+					remaining -= transferred;
 				}
+			} finally {
+				staged.close();
 			}
 		}
+		return writeFully(channel, position, buffer);
+	}
+	
+	/* writes what has been put in the buffer at position and clears it, returns the position after the last byte written */
+	private static long writeFully (FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		buffer.clear();
+		return position;
+	}
+	
+	
+	/* opens the file for a READ: the returned region is a snapshot of the committed file that is sent to the client with transferTo, 
+	 * the caller must close it once it has been sent */
+	public static FileRegion openFile (String filename) throws ServerException {
+		return openFile(filename, 0, -1);
+	}
+	
+	/* same as openFile, for the range of the file that starts at offset (a negative offset counts back from the end of the file) and is length bytes long (-1: to the end of the file)
+	 * the range is clipped to the file, a range that starts past the end of the file is empty */
+	public static FileRegion openFile (String filename, long offset, long length) throws ServerException {
+				
+		// shared with other READs of the file, excluded while a COMMIT is updating it
+		fileLocks.lockRead(filename);
 		
 		File file = new File (dir, filename);
 
-	    if ( file.length() > Integer.MAX_VALUE ) {
-	        throw new ServerException(String.format("File (%s) is too large", file.getName()), ClientServerProtocol.Error.INVALID_OPERATION);
-	    }
-	    
-
-	    ByteArrayOutputStream os = null;
-	    InputStream ios = null;
+	    FileInputStream ios = null;
 	    try {
-	        byte[] buffer = new byte[(int) file.length()];
-	        os = new ByteArrayOutputStream();
+	    	// hot files are served from the read cache without touching the file
+	    	ByteBuffer cached = readCache != null ? readCache.get(filename) : null;
+	    	if (cached != null) {
+	    		long start = clipOffset(offset, cached.capacity());
+	    		return new FileRegion(cached, start, clipLength(start, length, cached.capacity()));
+	    	}
+	    	
 	        ios = new FileInputStream(file);
-	        int read = 0;
-	        while ( (read = ios.read(buffer)) != -1 ) {
-	            os.write(buffer, 0, read);
+	        FileChannel channel = ios.getChannel();
+	        long fileLength = channel.size();
+	        long start = clipOffset(offset, fileLength);
+	        
+	        ByteBuffer mapped = readCache != null ? readCache.put(filename, channel, fileLength) : null;
+	        if (mapped != null) {
+	        	channel.close();
+	        	return new FileRegion(mapped, start, clipLength(start, length, fileLength));
 	        }
+	        return new FileRegion(channel, fileLength, start, clipLength(start, length, fileLength));
 	    } catch (FileNotFoundException e) {
 	    	throw new ServerException(e.getMessage(), ClientServerProtocol.Error.FILE_NOT_FOUND);
 	    } catch (IOException e) {
-	    	throw new ServerException(e.getMessage(), ClientServerProtocol.Error.FILE_IO_ERROR);
-	    }
-	    finally { 
-	    	
-			while (true) {
-				synchronized (commitLock) {
-					if (fileAccessManager.containsKey(filename)) {
-						if (fileAccessManager.get(filename) > 0) {
-							fileAccessManager.put(filename, fileAccessManager.get(filename) - 1);
-							break;
-						}
-					} else {
-						break;
-					}
-				}
-			}
-	    	
-	        try {
-	             if ( os != null ) 
-	                 os.close();
-	        } catch ( IOException e) {
-	        }
-
 	        try {
 	             if ( ios != null ) 
 	                  ios.close();
-	        } catch ( IOException e) {
+	        } catch ( IOException e1) {
 	        }
+	    	throw new ServerException(e.getMessage(), ClientServerProtocol.Error.FILE_IO_ERROR);
+	    }
+	    finally { 
+	    	fileLocks.unlockRead(filename);
 	    }
-	    //System.out.println(filename + " is " + os.toString().length() + " bytes, actual size is  " + file.length());
-	    return os.toString();
 	}
 
+	/* first byte of a READ range: a negative offset counts back from the end of the file, offsets past the end of the file are moved to its end */
+	private static long clipOffset (long offset, long fileLength) {
+		return offset < 0 ? Math.max(0, fileLength + offset) : Math.min(offset, fileLength);
+	}
+	
+	/* length of a READ range starting at start: -1 reads to the end of the file, the range never goes past the end of the file */
+	private static long clipLength (long start, long length, long fileLength) {
+		long available = fileLength - start;
+		return length < 0 ? available : Math.min(length, available);
+	}
+	
 	private static HashMap<String, String> getOptions (String[] args, String[] programOptions) {
 		HashMap<String, String> options = new HashMap<String, String>();
 		
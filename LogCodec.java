@@ -0,0 +1,331 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/* BINARY LOG FORMAT :
+ * Compact, length-prefixed encoding of log records used by the write-ahead log (replaces hex encoded delimiter strings)
+ *
+ * File header:  MAGIC (4 bytes) VERSION (1 byte)
+ * Log record:   TAG TID SEQ LSN LENGTH PAYLOAD CRC
+ * 		TAG 	 (1 byte)  record type in the low bits, FLAG_FLUSHED set for flushed COMMIT records
+ * 		TID 	 (varint)  transaction ID (64 bits, see TransactionIDAllocator)
+ * 		SEQ 	 (varint)  zigzag encoded sequence number (ABORT records use -1)
+ * 		LSN 	 (varint)  commit LSN (0 for records that are not COMMIT records)
+ * 		LENGTH 	 (varint)  length of the payload in bytes
+ * 		PAYLOAD  (bytes)   filename for NEW_TXN, data for WRITE, commit offset (varint) for COMMIT in append commit mode, 
+ * 		                   SEQ (varint) LENGTH (varint) DATA for every WRITE of a WRITE_BATCH,
+ * 		                   LENGTH (varint) STAGING FILE NAME for a streamed WRITE (its data stays in the staging file), empty otherwise
+ * 		CRC 	 (4 bytes) CRC32C of every preceding byte of the record
+ *
+ * Log segments are preallocated with zeros: a zero byte where a TAG is expected is the end of the log
+ *
+ * Checkpoint file:  MAGIC (4 bytes) VERSION (1 byte) CHECKPOINT followed by log records
+ * CHECKPOINT:       TAG FIRST_SEGMENT LSN CRC
+ * 		FIRST_SEGMENT (varint) number of the first log segment written after the checkpoint, recovery replays it and every later segment
+ * 		LSN 	 (varint)  commit LSN of the server when the checkpoint was taken
+ */
+public class LogCodec {
+
+	private static final byte[] MAGIC = { 'D', 'F', 'S', 'L' };
+	private static final int VERSION = 1;
+
+	private static final int TAG_END = 0; // the unused, zero filled part of a preallocated segment
+	private static final int TAG_NEW_TXN = 1;
+	private static final int TAG_WRITE = 2;
+	private static final int TAG_COMMIT = 3;
+	private static final int TAG_ABORT = 4;
+	private static final int TAG_WRITE_BATCH = 5;
+	private static final int TAG_WRITE_STAGED = 6;
+	private static final int TAG_CHECKPOINT = 7;
+	private static final int TAG_MASK = 0x0F;
+	private static final int FLAG_FLUSHED = 0x80;
+
+	private static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024; // anything larger can only be a corrupted length field
+
+	public static byte[] getFileHeader () {
+		byte[] header = new byte[MAGIC.length + 1];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[MAGIC.length] = VERSION;
+		return header;
+	}
+
+	/* checks whether the log starting with these bytes uses the binary format (as opposed to the old hex encoded format) */
+	public static boolean hasFileHeader (byte[] start, int length) {
+		if (length < MAGIC.length + 1) return false;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (start[i] != MAGIC[i]) return false;
+		}
+		return start[MAGIC.length] == VERSION;
+	}
+
+	public static int getFileHeaderLength () {
+		return MAGIC.length + 1;
+	}
+
+	public static byte[] encode (LogRecord entry) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(32);
+		byte[] payload = null;
+		int tag;
+
+		switch (entry.getMethod()) {
+		case NEW_TXN:
+			tag = TAG_NEW_TXN;
+			payload = entry.getData().getBytes(StandardCharsets.UTF_8);
+			break;
+		case WRITE:
+			if (entry.isStaged()) {
+				tag = TAG_WRITE_STAGED;
+				ByteArrayOutputStream staged = new ByteArrayOutputStream();
+				byte[] name = entry.getStagedFile().getBytes(StandardCharsets.UTF_8);
+				writeVarLong(staged, entry.getStagedLength());
+				staged.write(name, 0, name.length);
+				payload = staged.toByteArray();
+				break;
+			}
+			tag = TAG_WRITE;
+			payload = entry.getData().getBytes(StandardCharsets.UTF_8);
+			break;
+		case COMMIT:
+			tag = TAG_COMMIT;
+			if (entry.hasFlushed()) tag |= FLAG_FLUSHED;
+			if (entry.getCommitOffset() >= 0) {
+				ByteArrayOutputStream offset = new ByteArrayOutputStream(10);
+				writeVarLong(offset, entry.getCommitOffset());
+				payload = offset.toByteArray();
+			}
+			break;
+		case ABORT:
+			tag = TAG_ABORT;
+			break;
+		case WRITE_BATCH:
+			tag = TAG_WRITE_BATCH;
+			ByteArrayOutputStream writes = new ByteArrayOutputStream();
+			for (LogRecord write : entry.getBatch()) {
+				byte[] data = write.getData().getBytes(StandardCharsets.UTF_8);
+				writeVarLong(writes, write.getSequenceNumber());
+				writeVarLong(writes, data.length);
+				writes.write(data, 0, data.length);
+			}
+			payload = writes.toByteArray();
+			break;
+		default:
+			throw new IllegalArgumentException(String.format("Method (%s) cannot be written to the log", entry.getMethod()));
+		}
+
+		os.write(tag);
+		writeVarLong(os, entry.getTransactionID());
+		writeVarLong(os, zigZag(entry.getSequenceNumber()));
+		writeVarLong(os, entry.getCommitLSN());
+		if (payload == null) {
+			writeVarLong(os, 0);
+		} else {
+			writeVarLong(os, payload.length);
+			os.write(payload, 0, payload.length);
+		}
+
+		CRC32C crc = new CRC32C();
+		byte[] record = os.toByteArray();
+		crc.update(record, 0, record.length);
+		int checksum = (int) crc.getValue();
+		os.write(checksum >>> 24);
+		os.write(checksum >>> 16);
+		os.write(checksum >>> 8);
+		os.write(checksum);
+
+		return os.toByteArray();
+	}
+
+	/* header of a checkpoint file */
+	public static class Checkpoint {
+
+		private final int firstSegment;
+		private final int commitLSN;
+
+		public Checkpoint (int firstSegment, int commitLSN) {
+			this.firstSegment = firstSegment;
+			this.commitLSN = commitLSN;
+		}
+
+		public int getFirstSegment () {
+			return firstSegment;
+		}
+
+		public int getCommitLSN () {
+			return commitLSN;
+		}
+	}
+
+	public static byte[] encodeCheckpoint (Checkpoint checkpoint) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(16);
+		os.write(TAG_CHECKPOINT);
+		writeVarLong(os, checkpoint.getFirstSegment());
+		writeVarLong(os, checkpoint.getCommitLSN());
+
+		CRC32C crc = new CRC32C();
+		byte[] record = os.toByteArray();
+		crc.update(record, 0, record.length);
+		int checksum = (int) crc.getValue();
+		os.write(checksum >>> 24);
+		os.write(checksum >>> 16);
+		os.write(checksum >>> 8);
+		os.write(checksum);
+
+		return os.toByteArray();
+	}
+
+	/* reads the CHECKPOINT record (the stream must be positioned right after the file header), null if it is incomplete or fails its checksum */
+	public static Checkpoint readCheckpoint (InputStream in) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(in, new CRC32C());
+		try {
+			if (checked.read() != TAG_CHECKPOINT) return null;
+			int firstSegment = (int) readVarLong(checked);
+			int commitLSN = (int) readVarLong(checked);
+			int expected = (int) checked.getChecksum().getValue();
+			if (new DataInputStream(in).readInt() != expected) return null;
+			return new Checkpoint(firstSegment, commitLSN);
+		} catch (EOFException e) {
+			return null;
+		} catch (StreamCorruptedException e) {
+			return null;
+		}
+	}
+
+	/* Reads log records one at a time, stops at the end of the log or at the first record that is incomplete or fails its checksum (torn tail) */
+	public static class Reader {
+
+		private final InputStream in;
+		private final CheckedInputStream checked;
+		private boolean tornTail = false;
+
+		/* the stream must be positioned right after the file header */
+		public Reader (InputStream in) {
+			this.in = in;
+			this.checked = new CheckedInputStream(in, new CRC32C());
+		}
+
+		public boolean hasTornTail () {
+			return tornTail;
+		}
+
+		public LogRecord next () throws IOException {
+			checked.getChecksum().reset();
+			try {
+				int tag = checked.read();
+				if (tag == -1 || tag == TAG_END) return null;
+
+				RequestMessage.RequestMethod method;
+				switch (tag & TAG_MASK) {
+				case TAG_NEW_TXN: method = RequestMessage.RequestMethod.NEW_TXN; break;
+				case TAG_WRITE:   method = RequestMessage.RequestMethod.WRITE; break;
+				case TAG_COMMIT:  method = RequestMessage.RequestMethod.COMMIT; break;
+				case TAG_ABORT:   method = RequestMessage.RequestMethod.ABORT; break;
+				case TAG_WRITE_BATCH: method = RequestMessage.RequestMethod.WRITE_BATCH; break;
+				case TAG_WRITE_STAGED: method = RequestMessage.RequestMethod.WRITE; break;
+				default:
+					tornTail = true;
+					return null;
+				}
+
+				long transactionID = readVarLong(checked);
+				int sequenceNumber = (int) unZigZag(readVarLong(checked));
+				int commitLSN = (int) readVarLong(checked);
+				long length = readVarLong(checked);
+				if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+					tornTail = true;
+					return null;
+				}
+
+				byte[] payload = new byte[(int) length];
+				new DataInputStream(checked).readFully(payload);
+				int expected = (int) checked.getChecksum().getValue();
+				int checksum = new DataInputStream(in).readInt();
+				if (checksum != expected) {
+					tornTail = true;
+					return null;
+				}
+
+				boolean staged = (tag & TAG_MASK) == TAG_WRITE_STAGED;
+				String data = (method == RequestMessage.RequestMethod.NEW_TXN || method == RequestMessage.RequestMethod.WRITE) && !staged ? new String(payload, StandardCharsets.UTF_8) : null;
+				LogRecord entry = new LogRecord(method, transactionID, sequenceNumber, method == RequestMessage.RequestMethod.NEW_TXN ? data : null, data);
+				entry.applyCommitLSN(commitLSN);
+				entry.setFlushed((tag & FLAG_FLUSHED) != 0);
+				if (method == RequestMessage.RequestMethod.COMMIT && payload.length > 0) {
+					entry.setCommitOffset(readVarLong(new ByteArrayInputStream(payload)));
+				}
+				if (method == RequestMessage.RequestMethod.WRITE_BATCH) {
+					entry.setBatch(decodeBatch(transactionID, sequenceNumber, payload));
+				}
+				if (staged) {
+					ByteArrayInputStream stagedPayload = new ByteArrayInputStream(payload);
+					long stagedLength = readVarLong(stagedPayload);
+					entry.setStagedFile(new String(stagedPayload.readAllBytes(), StandardCharsets.UTF_8), stagedLength);
+				}
+				return entry;
+
+			} catch (EOFException e) {
+				tornTail = true;
+				return null;
+			} catch (StreamCorruptedException e) {
+				tornTail = true;
+				return null;
+			}
+		}
+	}
+
+	private static ArrayList<LogRecord> decodeBatch (long transactionID, int count, byte[] payload) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(payload);
+		ArrayList<LogRecord> writes = new ArrayList<LogRecord>(count);
+		for (int i = 0; i < count; i++) {
+			int sequenceNumber = (int) readVarLong(in);
+			int length = (int) readVarLong(in);
+			if (length < 0 || length > in.available()) {
+				throw new StreamCorruptedException("WRITE_BATCH entry runs past the end of the record");
+			}
+			byte[] data = new byte[length];
+			in.read(data, 0, length);
+			writes.add(new LogRecord(RequestMessage.RequestMethod.WRITE, transactionID, sequenceNumber, null, new String(data, StandardCharsets.UTF_8)));
+		}
+		return writes;
+	}
+
+	public static void writeVarLong (OutputStream os, long value) {
+		try {
+			while ((value & ~0x7FL) != 0) {
+				os.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			os.write((int) value);
+		} catch (IOException e) {
+			// ByteArrayOutputStream never throws
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static long readVarLong (InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) throw new EOFException("Incomplete varint");
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+
+	public static long zigZag (long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long unZigZag (long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
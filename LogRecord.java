@@ -1,7 +1,13 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -9,31 +15,41 @@ import java.util.concurrent.locks.ReentrantLock;
 public class LogRecord implements Serializable {
 	
 	private RequestMessage.RequestMethod method;
-	private int transactionID;
+	private long transactionID;
 	private boolean commited = false;
 	private boolean flushed = false;
 	private boolean aborted = false;
 	private boolean receivedCommit = false;
 	private boolean receivedBackupACK = false;
+	private transient volatile long committedLocallyAt = 0; // time (System.currentTimeMillis) the COMMIT was processed on this server (the transaction can be shipped to the backup), 0 until then
+	private transient volatile long lastActivity = System.currentTimeMillis(); // time of the transaction's last logged request (see TransactionReaper)
+	private volatile boolean compacted = false; // the WRITEs have been released, see compact()
+	private transient int shipping = 0; // threads streaming the WRITEs to the backup (see startShipping), guarded by the monitor
+	private long committedLength = -1; // UNIT: bytes of committed data, recorded when a committed transaction is compacted
     private static final long serialVersionUID = 5950169519310163575L;
 	private int sequenceNumber;
 	private int commitLSN;
+	private long commitOffset = -1; // length of the file when this COMMIT was logged (append commit mode), -1 if not recorded
 	private static int LSN = 0;
 	private static Object mutex = new Object();
 	private static Lock LSNLock = new ReentrantLock(true);
 	private String filename;
 	private String data;
-	private HashMap<Integer, LogRecord> record;	 
+	private SequenceTable record; // WRITEs of the transaction by sequence number, accessed with the LogRecord's monitor held	 
+	private ArrayList<LogRecord> batch = null; // WRITE records carried by a WRITE_BATCH log entry
+	private String stagedFile = null; // name of the staging file holding the data of a streamed WRITE (data is null), null for inline WRITEs
+	private long stagedLength = 0;
+	private static final int STAGED_CHUNK_SIZE = 64 * 1024; // staged data is copied through a buffer of this size, never loaded whole
 	private static final String DELIMITER = "<__amir__>";
 	
 	
-	public LogRecord (RequestMessage.RequestMethod method, int transactionID, int sequenceNumber, String filename, String data) {
+	public LogRecord (RequestMessage.RequestMethod method, long transactionID, int sequenceNumber, String filename, String data) {
 		this.method = method;
 		this.transactionID = transactionID;
 		this.sequenceNumber = sequenceNumber;
 		this.filename = filename;
 		this.data = data;
-		this.record = new HashMap<Integer, LogRecord>();
+		this.record = new SequenceTable();
 	}
 
 	
@@ -80,12 +96,28 @@ public class LogRecord implements Serializable {
 		commitLSN = LSN;
 	}
 	
+	public long getCommitOffset () {
+		return commitOffset;
+	}
+	
+	public void setCommitOffset (long offset) {
+		commitOffset = offset;
+	}
+	
 
 	
 	public void setCommited (boolean commited) {
 		this.commited = commited;
 	}
 	
+	/* COMMIT: marks the transaction as committed, returns false (and leaves it as it is) if it has aborted
+	 * the check and the change are made with the monitor held, a transaction is never both committed and aborted (see markAborted) */
+	public synchronized boolean markCommitted () {
+		if (aborted) return false;
+		commited = true;
+		return true;
+	}
+	
 	public void setBackupACK (boolean hasReceived) {
 		receivedBackupACK = hasReceived;
 	}
@@ -94,6 +126,20 @@ public class LogRecord implements Serializable {
 		return receivedBackupACK;
 	}
 	
+	public void setCommittedLocally () {
+		if (committedLocallyAt == 0) {
+			committedLocallyAt = System.currentTimeMillis();
+		}
+	}
+	
+	public boolean hasCommittedLocally () {
+		return committedLocallyAt != 0;
+	}
+	
+	public long getCommittedLocallyAt () {
+		return committedLocallyAt;
+	}
+	
 	public boolean hasReceivedCommitRequest () {
 		return receivedCommit;
 	}
@@ -102,8 +148,10 @@ public class LogRecord implements Serializable {
 		receivedCommit = received;
 	}
 	
-	public int getLargestSequenceNumber () {
-		return Collections.max(record.keySet());
+	/* the largest sequence number of the WRITEs received, 0 if there are none */
+	public synchronized int getLargestSequenceNumber () {
+		if (compacted) return sequenceNumber;
+		return record.largest();
 	}
 	
 	public void setFlushed (boolean flushed) {
@@ -155,8 +203,16 @@ public class LogRecord implements Serializable {
 		this.aborted = aborted;
 	}
 	
+	/* ABORT: marks the transaction as aborted, returns false (and leaves it as it is) if it has committed or already aborted */
+	public synchronized boolean markAborted () {
+		if (commited || aborted) return false;
+		aborted = true;
+		return true;
+	}
+	
 	public void addLog (LogRecord newRecord) throws ServerException {
-		if (newRecord.getMethod() != RequestMessage.RequestMethod.COMMIT && newRecord.getMethod() != RequestMessage.RequestMethod.ABORT && record.containsKey(newRecord.getSequenceNumber())) {
+		lastActivity = System.currentTimeMillis();
+		if (newRecord.getMethod() != RequestMessage.RequestMethod.COMMIT && newRecord.getMethod() != RequestMessage.RequestMethod.ABORT && containsSequence(newRecord.getSequenceNumber())) {
 			throw new ServerException(String.format("TID: %d has already used (%d) as a sequence number. Please provide a valid sequence number. ", transactionID, newRecord.getSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION );
 		}
 		
@@ -164,7 +220,11 @@ public class LogRecord implements Serializable {
 		
 		switch (newRecord.getMethod()) {
 		case ABORT:
-			break;
+		{
+			// nothing will ever read the WRITEs of an aborted transaction
+			compact();
+			return;
+		}
 		case COMMIT: 
 		{
 			return;
@@ -185,51 +245,213 @@ public class LogRecord implements Serializable {
 		}			
 	
 		// commit/new_txn does not need to get inserted as we can add it directly to the logfile
-		record.put(newRecord.getSequenceNumber(), newRecord);
+		synchronized (this) {
+			record.put(newRecord.getSequenceNumber(), newRecord);
+		}
+	}
+	
+	/* adds the WRITEs of a WRITE_BATCH request with a single log entry (one log append and fsync for the whole batch)
+	 * none of the WRITEs is added if any of them reuses a sequence number */
+	public void addLogBatch (ArrayList<LogRecord> writes) throws ServerException {
+		lastActivity = System.currentTimeMillis();
+		HashSet<Integer> sequenceNumbers = new HashSet<Integer>();
+		for (LogRecord write : writes) {
+			if (containsSequence(write.getSequenceNumber()) || !sequenceNumbers.add(write.getSequenceNumber())) {
+				throw new ServerException(String.format("TID: %d has already used (%d) as a sequence number. Please provide a valid sequence number. ", transactionID, write.getSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION );
+			}
+		}
+		
+		LogRecord batchEntry = new LogRecord(RequestMessage.RequestMethod.WRITE_BATCH, transactionID, writes.size(), null, null);
+		batchEntry.batch = writes;
+		FileServer.addLog (batchEntry);
+		
+		synchronized (this) {
+			for (LogRecord write : writes) {
+				record.put(write.getSequenceNumber(), write);
+			}
+		}
+	}
+	
+	public ArrayList<LogRecord> getBatch () {
+		return batch;
+	}
+	
+	// utility method to be used only when decoding the log
+	public void setBatch (ArrayList<LogRecord> batch) {
+		this.batch = batch;
 	}
 	
 	public boolean hasCommitted () {
 		return commited;
 	}
 	
-	public String getCommittedData () {
-		StringBuilder sb = new StringBuilder();
-//		for (String data : committedData) {
-//			if (data != null) {
-//				sb.append(data);
-//			}
-//		}
-//		return sb.toString();
+	/* returns the WRITEs of the transaction in sequence order, their data (inline or staged) is what gets appended to the file on COMMIT
+	 * a transaction received from the primary holds its whole payload in WRITE 1, the other sequence numbers are absent
+	 * returns null once the transaction has been compacted (its committed data is then only in its file, see getCommittedLength) */
+	public synchronized ArrayList<LogRecord> getCommittedWrites () {
+		if (compacted) return null;
+		return record.writes(sequenceNumber);
+	}
+	
+	/* REPLICATION: same as getCommittedWrites, and the transaction is not compacted (its staging files stay) until finishShipping is called */
+	public synchronized ArrayList<LogRecord> startShipping () {
+		if (compacted) return null;
+		shipping++;
+		return record.writes(sequenceNumber);
+	}
+	
+	/* REPLICATION: the WRITEs returned by startShipping have been streamed */
+	public synchronized void finishShipping () {
+		shipping--;
+	}
+	
+	// utility method to be used only when decoding a replicated transaction (the WRITE is not logged on this server)
+	public synchronized void putReplicatedWrite (LogRecord write) {
+		record.put(write.getSequenceNumber(), write);
+	}
+	
+	/* TOMBSTONE: releases the WRITEs (and staging files) of a transaction that has aborted, or whose committed data is in its file for good
+	 * (the flushed COMMIT has been logged and the commit offset is known), the transaction keeps its TID, state, commit LSN, last sequence number,
+	 * file name, commit offset and the length of its committed data: the committed data is the range of the file that starts at the commit offset
+	 * returns false if the transaction cannot be compacted (yet), or is being shipped to the backup (the TransactionReaper compacts it later) */
+	public boolean compact () {
+		ArrayList<String> stagedFiles;
+		synchronized (this) {
+			if (compacted) return true;
+			if (!aborted && !(commited && flushed && commitOffset >= 0)) return false;
+			if (shipping > 0) return false;
+			
+			if (!aborted) {
+				long length = 0;
+				for (LogRecord write : getCommittedWrites()) {
+					length += write.isStaged() ? write.getStagedLength() : write.getData().getBytes().length;
+				}
+				committedLength = length;
+			}
+			stagedFiles = getStagedFiles();
+			record = new SequenceTable();
+			data = null;
+			batch = null;
+			compacted = true;
+		}
+		
+		for (String stagedFile : stagedFiles) {
+			FileServer.getStagingFile(stagedFile).delete();
+		}
+		return true;
+	}
+	
+	public boolean isCompacted () {
+		return compacted;
+	}
+	
+	/* UNIT: bytes, length of the committed data of a compacted transaction (-1 before it has been compacted, or if it aborted) */
+	public long getCommittedLength () {
+		return committedLength;
+	}
+	
+	/* time (System.currentTimeMillis) of the last request logged for the transaction, or of its recovery */
+	public long getLastActivity () {
+		return lastActivity;
+	}
+	
+	/* returns the names of the staging files referenced by the WRITEs of the transaction */
+	public synchronized ArrayList<String> getStagedFiles () {
+		ArrayList<String> stagedFiles = new ArrayList<String>();
+		for (LogRecord write : record.values()) {
+			if (write.isStaged()) {
+				stagedFiles.add(write.getStagedFile());
+			}
+		}
+		return stagedFiles;
+	}
+	
+	public boolean isStaged () {
+		return stagedFile != null;
+	}
+	
+	public String getStagedFile () {
+		return stagedFile;
+	}
+	
+	public long getStagedLength () {
+		return stagedLength;
+	}
+	
+	public void setStagedFile (String stagedFile, long stagedLength) {
+		this.stagedFile = stagedFile;
+		this.stagedLength = stagedLength;
+	}
+	
+	/* REPLICATION: the staged data of a WRITE is not part of its fields, it is streamed after them in chunks */
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		if (stagedFile == null) return;
 		
-		for (int i = 1; i <= sequenceNumber; i++) {
-			sb.append(record.get(i).getData());
+		InputStream in = new FileInputStream(FileServer.getStagingFile(stagedFile));
+		try {
+			byte[] buffer = new byte[STAGED_CHUNK_SIZE];
+			long remaining = stagedLength;
+			while (remaining > 0) {
+				int length = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (length == -1) {
+					throw new IOException(String.format("Staging file %s of TID: %d is shorter than its data", stagedFile, transactionID));
+				}
+				out.write(buffer, 0, length);
+				remaining -= length;
+			}
+		} finally {
+			in.close();
 		}
+	}
+	
+	/* REPLICATION: staged data received with a WRITE is staged again on this server */
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (stagedFile == null) return;
 		
-		return sb.toString();
+		File file = FileServer.newStagingFile();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[STAGED_CHUNK_SIZE];
+			long remaining = stagedLength;
+			while (remaining > 0) {
+				int length = (int) Math.min(buffer.length, remaining);
+				in.readFully(buffer, 0, length);
+				out.write(buffer, 0, length);
+				remaining -= length;
+			}
+			out.getChannel().force(true);
+		} catch (IOException e) {
+			out.close();
+			file.delete();
+			throw e;
+		} finally {
+			out.close();
+		}
+		stagedFile = file.getName();
 	}
 
 	public boolean hasAborted () {
 		return aborted;
 	}
 	
-	public ArrayList<Integer> getMissingSequenceNumbers (int maxSequenceNumber) {
-		//int largestSequenceNumber = Collections.max(record.keySet());
-		
-		ArrayList<Integer> missingValues = new ArrayList<Integer>();
-		for (int i = 1; i <= maxSequenceNumber; i++) {
-			if (!record.containsKey(i)) {
-				missingValues.add(i);
-			}
+	/* the sequence numbers from 1 to maxSequenceNumber of the WRITEs that have not been received (the client is asked to resend them) */
+	public synchronized ArrayList<Integer> getMissingSequenceNumbers (int maxSequenceNumber) {
+		if (compacted) {
+			// the transaction has finished with every WRITE it needed
+			return new ArrayList<Integer>();
 		}
-		return missingValues;
+		return record.missing(maxSequenceNumber);
 	}
 	
-	public boolean containsSequence (int seq) {
-		if (record.containsKey(seq)) {
-			return true;
-		} else {
-			return false;
-		}
+	/* true if every WRITE from 1 to maxSequenceNumber has been received, same as an empty getMissingSequenceNumbers without listing the gaps */
+	public synchronized boolean hasAllSequenceNumbers (int maxSequenceNumber) {
+		return compacted || record.complete(maxSequenceNumber);
+	}
+	
+	public synchronized boolean containsSequence (int seq) {
+		return record.contains(seq);
 	}
 	
 	public RequestMessage.RequestMethod getMethod() {
@@ -240,7 +462,7 @@ public class LogRecord implements Serializable {
 		this.filename = filename;
 	}
 
-	public int getTransactionID() {
+	public long getTransactionID() {
 		return transactionID;
 	}
 
@@ -0,0 +1,437 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* GROUP COMMIT LOG WRITER :
+ * Collects the log entries of all Transaction threads into a single batch and makes the whole batch durable with ONE fsync.
+ * Threads calling append() block until the batch that holds their entry has been forced to disk.
+ *
+ * LAZY ENTRIES : appendLazily() adds an entry to the current batch and returns without waiting, the entry is written with the next batch and
+ * made durable by the next force (the next append(), a roll over to a new segment, or close()). Entries are written in order and the log is
+ * forced as a whole, so an entry appended with append() is never durable unless every entry before it is. A crash can lose the lazy entries
+ * that had not been forced yet, they are at the end of the log: recovery stops at the first missing or torn entry (see LogCodec.Reader).
+ *
+ *  - batchWindow: how long (microseconds) the writer waits for more entries once a batch has been started
+ *  - maxBatchSize: a batch is written as soon as it holds this many entries, regardless of the window
+ *
+ * SEGMENTED LOG : the log is written to fixed-size segment files that are preallocated (filled with zeros) before they are used
+ *  - batches are written in place through a FileChannel kept open for the whole segment, the file never grows,
+ *    so a batch only needs its data forced to disk (no file size or block allocation to update)
+ *  - the next segment is preallocated in the background under a temporary name, and renamed into place when the writer rolls over to it:
+ *    a segment file is never seen half prepared
+ *  - the writer rolls over when a batch does not fit in the segment, and when rotate() is called (checkpoints)
+ *  - the zeros after the last batch end the segment (no log record starts with a zero byte)
+ * A log that is not segmented (the recovery log) is a single file that grows as batches are appended.
+ */
+public class LogWriter implements Runnable {
+
+	/* names the files of a segmented log */
+	public interface SegmentNames {
+		File segment (int number);
+		File preallocated (int number); // where the segment is prepared before it is renamed into place
+	}
+
+	private static class Batch {
+		private ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private int count = 0;
+		private boolean force = false; // a thread is waiting for the batch to be durable
+		private boolean durable = false;
+		private IOException error = null;
+	}
+
+	private static final int ZERO_CHUNK = 1024 * 1024; // UNIT: bytes, preallocation writes zeros in chunks of this size
+	private static final int LAZY_BATCH_BYTES = 1024 * 1024; // UNIT: bytes, lazy entries are written (not forced) once the batch holds this much
+
+	private final SegmentNames names; // null if the log is not segmented
+	private final long segmentSize; // UNIT: bytes
+	private final long batchWindow; // UNIT: microseconds
+	private final int maxBatchSize;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition batchReady = lock.newCondition();
+	private final Condition batchDurable = lock.newCondition();
+	private final Condition rotated = lock.newCondition();
+
+	// guarded by lock
+	private Batch current = new Batch();
+	private boolean closed = false;
+	private boolean rotateRequested = false;
+	private IOException rotateError = null;
+	private IOException lazyError = null; // failure to write lazy entries, reported to the next append() (its entry would follow a hole in the log)
+	private File log;
+	private long entryCount = 0; // entries made durable so far
+	private final TreeSet<Integer> segments = new TreeSet<Integer>(); // numbers of the segments that have not been deleted
+
+	// used by the writer thread only
+	private Thread writer = null;
+	private FileChannel channel = null;
+	private long position;
+	private boolean unforced = false; // lazy entries have been written to the channel since it was last forced
+	private int activeSegment = 0;
+	private FutureTask<File> preallocation = null; // the next segment, being prepared
+	private int preallocating = 0; // number of the segment being prepared
+
+	/* a log that is a single file, which grows as batches are appended */
+	public LogWriter (File log, long batchWindow, int maxBatchSize) throws IOException {
+		this.names = null;
+		this.segmentSize = 0;
+		this.batchWindow = batchWindow;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.log = log;
+		this.channel = new RandomAccessFile(log, "rw").getChannel();
+		this.position = channel.size();
+		if (position == 0) {
+			position = write(channel, ByteBuffer.wrap(LogCodec.getFileHeader()), 0);
+			channel.force(true);
+		}
+	}
+
+	/* a segmented log starting with a new segment */
+	public LogWriter (SegmentNames names, int firstSegment, long segmentSize, long batchWindow, int maxBatchSize) throws IOException {
+		this.names = names;
+		this.segmentSize = Math.max(segmentSize, LogCodec.getFileHeaderLength() + 1);
+		this.batchWindow = batchWindow;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.activeSegment = firstSegment - 1;
+		roll();
+	}
+
+	/* starts the writer thread, nothing is written (append blocks) until it has been started */
+	public void start () {
+		writer = new Thread(this, "LogWriter-" + log.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public File getFile () {
+		lock.lock();
+		try {
+			return log;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* number of entries made durable since the writer was created */
+	public long getEntryCount () {
+		lock.lock();
+		try {
+			return entryCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* deletes the segments before this one (they are covered by a checkpoint) */
+	public void deleteSegmentsBefore (int number) {
+		ArrayList<Integer> toDelete = new ArrayList<Integer>();
+		lock.lock();
+		try {
+			while (!segments.isEmpty() && segments.first() < number) {
+				toDelete.add(segments.pollFirst());
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Integer segment : toDelete) {
+			names.segment(segment).delete();
+		}
+	}
+
+	public void append (LogRecord entry) throws IOException {
+		append(LogCodec.encode(entry));
+	}
+
+	/* appends an entry to the current batch and waits until that batch is durable */
+	public void append (byte[] entry) throws IOException {
+		Batch batch;
+		IOException error;
+		lock.lock();
+		try {
+			batch = add(entry);
+
+			// wake the writer up on the first entry to force (to start the window), and again when the batch is full
+			if (!batch.force || batch.count >= maxBatchSize) {
+				batchReady.signal();
+			}
+			batch.force = true;
+
+			while (!batch.durable) {
+				batchDurable.awaitUninterruptibly();
+			}
+			error = batch.error;
+		} finally {
+			lock.unlock();
+		}
+
+		if (error != null) {
+			throw new IOException("Failed to flush log entry to " + log.getName() + ": " + error.getMessage(), error);
+		}
+	}
+
+	/* appends an entry to the current batch without waiting for it to be written, it becomes durable with the next forced batch */
+	public void appendLazily (LogRecord entry) throws IOException {
+		byte[] encoded = LogCodec.encode(entry);
+		lock.lock();
+		try {
+			Batch batch = add(encoded);
+			if (batch.count >= maxBatchSize || batch.data.size() >= LAZY_BATCH_BYTES) {
+				batchReady.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// lock must be held
+	private Batch add (byte[] entry) throws IOException {
+		if (closed) {
+			throw new IOException("Log writer for " + log.getName() + " has been closed");
+		}
+		Batch batch = current;
+		batch.data.write(entry, 0, entry.length);
+		batch.count++;
+		return batch;
+	}
+
+	/* rolls over to the next segment, returns its number once every entry appended before the call is durable in the previous segments
+	 * (entries appended after it returns go to the new segment) */
+	public int rotate () throws IOException {
+		if (names == null) {
+			throw new IOException(log.getName() + " is not a segmented log");
+		}
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Log writer for " + log.getName() + " has been closed");
+			}
+			rotateRequested = true;
+			batchReady.signal();
+			while (rotateRequested) {
+				rotated.awaitUninterruptibly();
+			}
+			if (rotateError != null) {
+				IOException error = rotateError;
+				rotateError = null;
+				throw new IOException("Failed to roll the log over to a new segment: " + error.getMessage(), error);
+			}
+			return segments.last();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* writes out anything that is still pending and releases the log file */
+	public void close () {
+		lock.lock();
+		try {
+			closed = true;
+			batchReady.signal();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run () {
+		while (true) {
+			Batch batch;
+			boolean rotate;
+			lock.lock();
+			try {
+				// lazy entries wait for an entry to force, or for enough of them to fill a batch
+				while (!current.force && current.count < maxBatchSize && current.data.size() < LAZY_BATCH_BYTES && !closed && !rotateRequested) {
+					batchReady.awaitUninterruptibly();
+				}
+
+				if (current.count == 0 && closed) {
+					if (rotateRequested) {
+						rotateError = new IOException("the log writer has been closed");
+						rotateRequested = false;
+						rotated.signalAll();
+					}
+					break;
+				}
+
+				// give other transactions a chance to join this batch
+				long remaining = current.force ? TimeUnit.MICROSECONDS.toNanos(batchWindow) : 0;
+				while (current.count < maxBatchSize && remaining > 0 && !closed && !rotateRequested) {
+					try {
+						remaining = batchReady.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+
+				batch = current;
+				current = new Batch();
+				rotate = rotateRequested;
+			} finally {
+				lock.unlock();
+			}
+
+			if (batch.count > 0) {
+				try {
+					byte[] data = batch.data.toByteArray();
+					// a batch that does not fit goes to the next segment (a batch larger than a whole segment grows its segment instead)
+					if (names != null && position + data.length > segmentSize && position > LogCodec.getFileHeaderLength()) {
+						roll();
+					}
+					position = write(channel, ByteBuffer.wrap(data), position);
+
+					// force flushes the whole batch to disk (WRITE AHEAD LOGGING), the file size only changes when the log is not preallocated
+					if (batch.force) {
+						channel.force(names == null || position > segmentSize);
+						unforced = false;
+					} else {
+						unforced = true;
+					}
+				} catch (IOException e) {
+					batch.error = e;
+				}
+			}
+
+			IOException error = null;
+			if (rotate) {
+				try {
+					roll();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+
+			lock.lock();
+			try {
+				if (batch.error != null && !batch.force) {
+					lazyError = batch.error;
+				} else if (batch.error == null && batch.force && lazyError != null) {
+					batch.error = lazyError;
+					lazyError = null;
+				}
+				if (batch.count > 0 && batch.error == null) {
+					entryCount += batch.count;
+				}
+				batch.durable = true;
+				batchDurable.signalAll();
+				if (rotate) {
+					rotateError = error;
+					rotateRequested = false;
+					rotated.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		try {
+			if (unforced) {
+				channel.force(true);
+			}
+			channel.close();
+		} catch (IOException e) {
+			// muted exception, no need to escalate
+		}
+		if (preallocation != null) {
+			preallocation.cancel(true);
+		}
+	}
+
+	/* switches to the next segment: the preallocated file is renamed into place (called by the constructor, then by the writer thread only) */
+	private void roll () throws IOException {
+		int next = activeSegment + 1;
+		File prepared = null;
+		if (preallocation != null && preallocating == next) {
+			try {
+				prepared = preallocation.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// prepared again below
+			}
+		}
+		preallocation = null;
+		if (prepared == null) {
+			prepared = preallocate(names.preallocated(next), segmentSize);
+		}
+
+		// lazy entries still in the page cache must be durable before any entry of the next segment is
+		if (unforced) {
+			channel.force(false);
+			unforced = false;
+		}
+
+		File segmentFile = names.segment(next);
+		Files.move(prepared.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		FileServer.forceDirectory(segmentFile);
+		FileChannel nextChannel = new RandomAccessFile(segmentFile, "rw").getChannel();
+		if (channel != null) {
+			channel.close();
+		}
+		channel = nextChannel;
+		position = LogCodec.getFileHeaderLength();
+		activeSegment = next;
+
+		lock.lock();
+		try {
+			log = segmentFile;
+			segments.add(next);
+		} finally {
+			lock.unlock();
+		}
+
+		// prepare the segment after this one while this one fills up
+		final File file = names.preallocated(next + 1);
+		final long size = segmentSize;
+		preallocating = next + 1;
+		preallocation = new FutureTask<File>(() -> preallocate(file, size));
+		Thread preallocator = new Thread(preallocation, "LogWriter-preallocate-" + (next + 1));
+		preallocator.setDaemon(true);
+		preallocator.start();
+	}
+
+	/* writes the file header followed by zeros up to the segment size, and forces it to disk */
+	private static File preallocate (File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			long position = write(channel, ByteBuffer.wrap(LogCodec.getFileHeader()), 0);
+			ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+			while (position < size) {
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), size - position));
+				position = write(channel, zeros, position);
+			}
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+
+	private static long write (FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		return position;
+	}
+}
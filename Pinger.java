@@ -2,12 +2,14 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Pinger implements Runnable {
 
 	private InetSocketAddress server;
 	private int timeout;
-	private static Object mutex = new Object();
+	private static Lock mutex = new ReentrantLock();
 
 	public Pinger (InetSocketAddress server, int timeout) {
 		this.server = server;
@@ -30,11 +32,14 @@ public class Pinger implements Runnable {
 		} catch (IOException e) {
 			// failed to connect to the server, remove it from the server list
 			FileServer.setPeerStatus(server, false);
-			synchronized (mutex) {
+			mutex.lock();
+			try {
 				if (!FileServer.isPrimary()) {
 					FileServer.updatePrimary(FileServer.bindAddr, FileServer.port, FileServer.primaryFile);			
 					System.out.println(String.format("[** Promoted to primary - %s:%s **]".toUpperCase(), FileServer.bindAddr.getHostAddress(), FileServer.port));
 				}
+			} finally {
+				mutex.unlock();
 			}
 		
 		} finally {
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* MEMORY-MAPPED READ CACHE :
+ * Keeps read-only mappings of recently read committed files, so READs of hot files are served from memory without opening the file
+ *  - entries are keyed by filename and hold the whole committed file, mapped while the file's read lock is held (never a partially committed state)
+ *  - the cache is bounded by the total size of its mappings, the least recently read files are evicted first
+ *  - a file larger than a quarter of the cache is never cached, so a single large file cannot flush every hot file out
+ *  - a COMMIT invalidates the entry of the file it updates while it holds the file's write lock, the next READ maps the new contents
+ * Mappings are released by the garbage collector once no response is using them any more.
+ */
+public class ReadCache {
+
+	private final long capacity; // UNIT: bytes
+	private final long maxEntrySize; // UNIT: bytes
+	private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true); // access order: eldest is least recently read
+	private long size = 0; // UNIT: bytes, sum of the mapped lengths
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public ReadCache (long capacity) {
+		this.capacity = capacity;
+		this.maxEntrySize = Math.min(capacity / 4, Integer.MAX_VALUE);
+	}
+
+	/* returns the cached contents of the file (read-only, the whole committed file), or null if the file is not cached
+	 * must be called with the file's read lock held */
+	public synchronized ByteBuffer get (String filename) {
+		ByteBuffer buffer = entries.get(filename);
+		if (buffer == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return buffer;
+	}
+
+	/* maps the file a READ has just opened (after a miss) and caches it, returns the mapping or null if the file is too large to be cached
+	 * must be called with the file's read lock held, length is the committed length of the file */
+	public ByteBuffer put (String filename, FileChannel channel, long length) throws IOException {
+		if (length > maxEntrySize) return null;
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length).asReadOnlyBuffer();
+
+		synchronized (this) {
+			ByteBuffer previous = entries.put(filename, buffer);
+			if (previous != null) {
+				size -= previous.capacity();
+			}
+			size += length;
+
+			// the entry just added is the most recently read, it is the last one the iterator reaches
+			Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+			while (size > capacity && eldest.hasNext()) {
+				Map.Entry<String, ByteBuffer> entry = eldest.next();
+				if (entry.getValue() == buffer) break;
+				size -= entry.getValue().capacity();
+				eldest.remove();
+				evictions++;
+			}
+		}
+		return buffer;
+	}
+
+	/* drops the entry of a file that a COMMIT has just updated, must be called with the file's write lock held */
+	public synchronized void invalidate (String filename) {
+		ByteBuffer previous = entries.remove(filename);
+		if (previous != null) {
+			size -= previous.capacity();
+		}
+	}
+
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	public synchronized long getEvictions () {
+		return evictions;
+	}
+
+	public synchronized String toString () {
+		return String.format("%d hits, %d misses, %d evictions, %d files (%d bytes) cached", hits, misses, evictions, entries.size(), size);
+	}
+}
@@ -0,0 +1,702 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* PERSISTENT REPLICATION CHANNEL :
+ * A single long-lived connection from the primary to the backup carries every COMMIT, instead of a new socket (and a rewrite of the primary file) per COMMIT
+ *  - the primary streams committed transactions in commit LSN order without waiting for the ACK of the previous one, many COMMITs are in flight at once
+ *  - the backup answers with cumulative ACKs: ACK n acknowledges every transaction up to commit LSN n
+ *    (the backup applies COMMITs to different files in parallel, see ApplyScheduler, ACK n is sent once every COMMIT up to n has been applied)
+ *  - when the connection is opened the backup announces the last commit LSN it has applied, the primary resumes the stream right after it
+ *    (this is also how a backup that was down or disconnected catches up)
+ *  - ASK_RESEND n from the backup rewinds the stream to commit LSN n
+ * A transaction is only shipped once its COMMIT has been processed on the primary. Before the client is answered, a committing thread waits
+ * (bounded, without holding any lock) according to the replication mode:
+ *  - SYNC: until the backup has applied the COMMIT (ACK)
+ *  - SEMISYNC: until the backup has received the COMMIT (RECEIVED, sent by the backup before it applies it)
+ *  - ASYNC: not at all, unless the backup is more than MAX_ASYNC_LAG commits behind (the lag stays bounded while the backup is connected)
+ * The replication lag (commits processed on the primary that the backup has not applied, and the age of the oldest of them) is reported
+ * every LAG_REPORT_INTERVAL while the backup is behind, and at shutdown.
+ *
+ * RETAINED COMMITS : checkpoints keep every committed transaction the backup has not acknowledged, whether it is connected or not, so the
+ * primary can always ship it from commitDB (see getRetainLSN). The last commit LSN the backup acknowledged is written to the acked file before
+ * a checkpoint relies on it, and read back when the server starts. A commit LSN the backup asks for that is no longer on the primary
+ * (the backup lost its directory, or was restored from an older copy) stops the stream and the SYNC with an error instead of skipping it:
+ * the backup has to be restored from a copy of the primary's directory.
+ *
+ * Messages are encoded with the ReplicationCodec.
+ *
+ * CATCH-UP SYNC : a restarting backup first asks the primary for every COMMIT it missed (SYNC with its last applied commit LSN)
+ *  - the primary streams them in chunks of at most SYNC_CHUNK_TRANSACTIONS transactions / SYNC_CHUNK_BYTES bytes of data, read from commitDB as they are sent
+ *  - the backup applies a chunk and acknowledges it with the last commit LSN it applied, the primary only sends the next chunk after that ACK (flow control),
+ *    so neither side ever holds more than one chunk and a slow backup cannot make the primary time out
+ *  - every chunk carries the primary's current commit LSN, the backup reports its progress against it
+ *  - the SYNC ends with an empty chunk once the backup has caught up with the primary's current commit LSN
+ *  - an interrupted SYNC is resumed by a new SYNC from the last applied commit LSN (every applied COMMIT is durable on the backup)
+ *
+ * The commit port is chosen when a connection is opened and written to the primary file (the backup only accepts COMMITs from this port),
+ * it is kept across reconnections for as long as it can be bound.
+ */
+public class ReplicationChannel implements Runnable {
+
+	private static final long ACK_TIMEOUT = 600; // UNIT: ms, a COMMIT stops waiting for the backup's ACK after this long
+	private static final long RETRY_INTERVAL = 1000; // UNIT: ms, delay between connection attempts while the backup is unreachable
+	private static final int HANDSHAKE_TIMEOUT = 2000; // UNIT: ms, time the backup has to announce its commit LSN on a new connection
+	private static final long IDLE_WAIT = 100; // UNIT: ms, the sender re-checks for COMMITs to ship at least this often
+	private static final int BUFFER_SIZE = 64 * 1024; // UNIT: bytes, transactions are written through a buffer of this size, flushed when the sender runs out of work
+	private static final int SYNC_CHUNK_TRANSACTIONS = 256;
+	private static final long SYNC_CHUNK_BYTES = 4 * 1024 * 1024; // UNIT: bytes of committed data, a larger transaction is sent as a chunk of its own
+	private static final int SYNC_TIMEOUT = 30000; // UNIT: ms, time either side waits for the next chunk or its ACK before giving up on the SYNC
+	private static final int MAX_ASYNC_LAG = 1024; // UNIT: commits the backup may fall behind in async mode before COMMITs wait for it
+	private static final long LAG_REPORT_INTERVAL = 10000; // UNIT: ms
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition work = lock.newCondition(); // a COMMIT has been processed, or the stream was rewound
+	private final Condition acked = lock.newCondition(); // the backup acknowledged more COMMITs, or the connection was lost
+
+	// state shared with the committing threads and the receiver, guarded by lock
+	private Socket socket = null;
+	private boolean connected = false;
+	private int connection = 0; // incremented for every new connection, the receiver of a closed connection ignores what it still reads
+	private long failedAt = 0; // time of the last failed connection attempt or lost connection (System.currentTimeMillis), 0 if none
+	private int nextToSend = 1; // commit LSN of the next transaction to ship
+	private int ackedLSN = 0; // highest commit LSN acknowledged by the backup
+	private int receivedLSN = 0; // highest commit LSN the backup has received (applied or not)
+	private boolean newPort = true; // choose a new commit port before the next connection attempt
+	private int missingLSN = 0; // commit LSN the backup needs that is no longer on this server, 0 if none
+
+	private final File ackedFile;
+	private final Lock retainLock = new ReentrantLock(); // taken to write the acked file
+	private int retainLSN; // commit LSN in the acked file, guarded by retainLock
+
+	private final FileServer.ReplicationMode mode;
+	private DataOutputStream out = null; // used by the sender thread only
+	private long reportedAt = System.currentTimeMillis(); // used by the sender thread only
+
+	public ReplicationChannel (FileServer.ReplicationMode mode, File ackedFile) throws IOException {
+		this.mode = mode;
+		this.ackedFile = ackedFile;
+		if (ackedFile.exists()) {
+			try {
+				retainLSN = Integer.parseInt(new String(Files.readAllBytes(ackedFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Acked file " + ackedFile + " is corrupted: " + e.getMessage());
+			}
+		}
+		ackedLSN = retainLSN;
+		receivedLSN = retainLSN;
+		nextToSend = retainLSN + 1;
+	}
+
+	/* starts the thread that ships the COMMITs to the backup */
+	public void start () {
+		Thread sender = new Thread(this, "replication-sender");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/* PRIMARY: called once the COMMIT of the transaction has been processed, returns once the replication mode allows the client to be answered,
+	 * or straight away if the backup does not answer in time or cannot be reached */
+	public void replicate (LogRecord transactionRecord) {
+		long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+		lock.lock();
+		try {
+			work.signal();
+			while (!isReplicated(transactionRecord)) {
+				if (missingLSN != 0) {
+					// the backup cannot be brought up to date, do not hold up the client
+					return;
+				}
+				if (!connected && (mode == FileServer.ReplicationMode.ASYNC || failedAt != 0 && System.currentTimeMillis() - failedAt < RETRY_INTERVAL)) {
+					// the backup is unreachable, do not hold up the client
+					return;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return;
+				acked.await(remaining, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* must be called with lock held */
+	private boolean isReplicated (LogRecord transactionRecord) {
+		if (transactionRecord.hasReceivedBackupACK()) return true;
+		switch (mode) {
+		case SEMISYNC:
+			return receivedLSN >= transactionRecord.getCommitLSN();
+		case ASYNC:
+			return transactionRecord.getCommitLSN() - ackedLSN <= MAX_ASYNC_LAG;
+		default:
+			return ackedLSN >= transactionRecord.getCommitLSN();
+		}
+	}
+
+	public FileServer.ReplicationMode getMode () {
+		return mode;
+	}
+
+	/* number of COMMITs processed on this server that the backup has not applied yet */
+	public int getLagLSN () {
+		lock.lock();
+		try {
+			return Math.max(0, LogRecord.getCurrentLSN() - ackedLSN);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* UNIT: ms, age of the oldest COMMIT processed on this server that the backup has not applied yet, 0 if the backup is up to date */
+	public long getLagMillis () {
+		lock.lock();
+		try {
+			if (LogRecord.getCurrentLSN() <= ackedLSN) return 0;
+			LogRecord oldest = FileServer.getRecordByCommitLSN(ackedLSN + 1);
+			if (oldest == null || !oldest.hasCommittedLocally()) return 0;
+			return Math.max(0, System.currentTimeMillis() - oldest.getCommittedLocallyAt());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String toString () {
+		boolean isConnected;
+		int received, acknowledged;
+		lock.lock();
+		try {
+			isConnected = connected;
+			received = receivedLSN;
+			acknowledged = ackedLSN;
+		} finally {
+			lock.unlock();
+		}
+		return String.format("%s mode, backup %s, lag %d commits (%d ms), received up to CLSN %d, applied up to CLSN %d",
+				mode.name().toLowerCase(), isConnected ? "connected" : "not connected", getLagLSN(), getLagMillis(), received, acknowledged);
+	}
+
+	/* SENDER: (re)connects to the backup while there are COMMITs it has not acknowledged, and streams them in commit LSN order */
+	public void run () {
+		while (true) {
+			reportLag();
+			if (!isConnected()) {
+				awaitUnacknowledgedCommits();
+				connect();
+				continue;
+			}
+
+			try {
+				LogRecord record = nextRecord();
+				if (record == null) {
+					// nothing ready to ship: push out what has been written so far before waiting
+					out.flush();
+					awaitWork();
+					continue;
+				}
+				ReplicationCodec.writeTransaction(out, record);
+			} catch (IOException e) {
+				disconnect(connection());
+			}
+		}
+	}
+
+	private void reportLag () {
+		long now = System.currentTimeMillis();
+		if (now - reportedAt < LAG_REPORT_INTERVAL) return;
+		reportedAt = now;
+		if (FileServer.isPrimary() && getLagLSN() > 0) {
+			System.out.println("[** Replication: " + this + " **]");
+		}
+	}
+
+	private boolean isConnected () {
+		lock.lock();
+		try {
+			return connected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int connection () {
+		lock.lock();
+		try {
+			return connection;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* blocks until this server is the primary, has processed COMMITs the backup has not acknowledged, and may try to connect again */
+	private void awaitUnacknowledgedCommits () {
+		lock.lock();
+		try {
+			while (!FileServer.isPrimary() || LogRecord.getCurrentLSN() <= ackedLSN || System.currentTimeMillis() - failedAt < RETRY_INTERVAL) {
+				work.await(IDLE_WAIT, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			// keep going
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* returns the next transaction to ship if its COMMIT has been processed, null otherwise
+	 * (a commit LSN is in commitDB as soon as it is handed out, one that is missing is no longer on this server) */
+	private LogRecord nextRecord () throws IOException {
+		lock.lock();
+		try {
+			LogRecord record = FileServer.getRecordByCommitLSN(nextToSend);
+			if (record == null && nextToSend <= LogRecord.getCurrentLSN()) {
+				if (missingLSN != nextToSend) {
+					missingLSN = nextToSend;
+					acked.signalAll();
+				}
+				System.err.println(String.format("[** Replication: CLSN %d is no longer on the primary, the backup cannot catch up and must be restored from a copy of the primary **]", nextToSend));
+				throw new IOException("CLSN " + nextToSend + " is missing");
+			}
+			if (record == null || !record.hasCommittedLocally()) return null;
+			nextToSend++;
+			return record;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void awaitWork () {
+		lock.lock();
+		try {
+			LogRecord record = FileServer.getRecordByCommitLSN(nextToSend);
+			if (connected && (record == null || !record.hasCommittedLocally())) {
+				work.await(IDLE_WAIT, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			// keep going
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void connect () {
+		InetSocketAddress peerAddress = FileServer.getPeerAddress();
+		Socket newSocket = new Socket();
+		boolean choosePort;
+		lock.lock();
+		try {
+			choosePort = newPort;
+			newPort = false;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (choosePort) {
+				// port primary will use to send COMMIT requests to the backup (and receive the corresponding ACK's)
+				FileServer.commitPort = FileServer.findFreePort();
+				FileServer.updatePrimary(FileServer.bindAddr, FileServer.port, FileServer.primaryFile);
+			}
+			newSocket.setReuseAddress(true);
+			newSocket.bind(new InetSocketAddress(FileServer.bindAddr, FileServer.commitPort));
+			newSocket.connect(new InetSocketAddress(peerAddress.getAddress(), peerAddress.getPort()));
+			newSocket.setTcpNoDelay(true);
+			newSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+			DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream(), BUFFER_SIZE));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+			// the backup starts the stream with the commit LSN it has applied
+			ServerMessage hello = ReplicationCodec.readMessage(in);
+			newSocket.setSoTimeout(0);
+
+			final int id;
+			lock.lock();
+			try {
+				id = ++connection;
+				socket = newSocket;
+				connected = true;
+				failedAt = 0;
+				out = newOut;
+				nextToSend = hello.getCommitLSN() + 1;
+				if (hello.getCommitLSN() >= missingLSN) {
+					// the backup has been restored past the commit LSN that was missing
+					missingLSN = 0;
+				}
+				// a restarted backup may have lost what it had received without applying it
+				receivedLSN = hello.getCommitLSN();
+				acknowledge(hello.getCommitLSN());
+			} finally {
+				lock.unlock();
+			}
+			System.out.println(String.format("Replication channel to backup open, resuming at CLSN: %d", hello.getCommitLSN() + 1));
+
+			final DataInputStream input = in;
+			Thread receiver = new Thread("replication-receiver") {
+				public void run () {
+					receive(input, id);
+				}
+			};
+			receiver.setDaemon(true);
+			receiver.start();
+		} catch (ConnectException e) {
+			// the backup is down, the same port can be used for the next attempt
+			fail(newSocket, false);
+		} catch (IOException e) {
+			fail(newSocket, true);
+		}
+	}
+
+	private void fail (Socket newSocket, boolean choosePort) {
+		try {
+			newSocket.close();
+		} catch (IOException e) {
+		}
+		lock.lock();
+		try {
+			failedAt = System.currentTimeMillis();
+			newPort |= choosePort;
+			acked.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* RECEIVER: reads the backup's ACKs and resend requests until the connection is lost */
+	private void receive (DataInputStream in, int id) {
+		try {
+			while (true) {
+				ServerMessage message = ReplicationCodec.readMessage(in);
+				lock.lock();
+				try {
+					if (id != connection) return;
+					switch (message.getResponseMethod()) {
+					case ACK:
+						acknowledge(message.getCommitLSN());
+						break;
+					case RECEIVED:
+						if (message.getCommitLSN() > receivedLSN) {
+							receivedLSN = message.getCommitLSN();
+							acked.signalAll();
+						}
+						break;
+					case ASK_RESEND:
+						System.out.println("Received ASK_RESEND request for CLSN: " + message.getCommitLSN());
+						if (message.getCommitLSN() < nextToSend) {
+							nextToSend = message.getCommitLSN();
+							work.signal();
+						}
+						break;
+					default:
+						break;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (IOException e) {
+			disconnect(id);
+		}
+	}
+
+	/* every transaction up to commit LSN is on the backup, must be called with lock held */
+	private void acknowledge (int commitLSN) {
+		for (int i = ackedLSN + 1; i <= commitLSN; i++) {
+			LogRecord record = FileServer.getRecordByCommitLSN(i);
+			if (record != null) {
+				record.setBackupACK(true);
+				// the backup has it, the primary no longer needs its WRITEs in memory
+				record.compact();
+			}
+		}
+		if (commitLSN > receivedLSN) {
+			receivedLSN = commitLSN;
+		}
+		if (commitLSN > ackedLSN) {
+			ackedLSN = commitLSN;
+			acked.signalAll();
+		}
+	}
+
+	/* committed transactions after this commit LSN are kept by checkpoints: the backup has not acknowledged them yet, whether it is connected
+	 * or not (a backup that was down catches up from them with a SYNC), the commit LSN is durable before it is returned */
+	public int getRetainLSN () throws IOException {
+		int acknowledged;
+		lock.lock();
+		try {
+			acknowledged = ackedLSN;
+		} finally {
+			lock.unlock();
+		}
+		retainLock.lock();
+		try {
+			if (acknowledged > retainLSN) {
+				writeAckedLSN(acknowledged);
+				retainLSN = acknowledged;
+			}
+			return retainLSN;
+		} finally {
+			retainLock.unlock();
+		}
+	}
+
+	// retainLock must be held
+	private void writeAckedLSN (int commitLSN) throws IOException {
+		File temp = FileServer.getTempFile(ackedFile.getName());
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(Integer.toString(commitLSN).getBytes(StandardCharsets.UTF_8));
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), ackedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		FileServer.forceDirectory(ackedFile);
+	}
+
+	private void disconnect (int id) {
+		lock.lock();
+		try {
+			if (id != connection || !connected) return;
+			connected = false;
+			failedAt = System.currentTimeMillis();
+			// the closed connection may still hold the commit port (TIME_WAIT)
+			newPort = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			socket = null;
+			acked.signalAll();
+			work.signal();
+			System.out.println("Replication channel to backup lost");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public static int getSyncTimeout () {
+		return SYNC_TIMEOUT;
+	}
+
+	/* PRIMARY: answers the SYNC of a restarting backup that has applied every COMMIT up to backupLSN, chunk by chunk */
+	public static void sendCatchUp (Socket socket, DataInputStream in, DataOutputStream out, int backupLSN) throws IOException {
+		socket.setSoTimeout(SYNC_TIMEOUT);
+		int next = backupLSN + 1;
+		while (true) {
+			int targetLSN = LogRecord.getCurrentLSN();
+			ArrayList<LogRecord> chunk = new ArrayList<LogRecord>();
+			long chunkBytes = 0;
+			while (next <= targetLSN && chunk.size() < SYNC_CHUNK_TRANSACTIONS && (chunk.isEmpty() || chunkBytes < SYNC_CHUNK_BYTES)) {
+				LogRecord record = FileServer.getRecordByCommitLSN(next);
+				if (record == null) {
+					// the backup must not step over a commit it never received, the chunk ends before it
+					if (!chunk.isEmpty()) break;
+					System.err.println(String.format("[** SYNC: CLSN %d is no longer on the primary, the backup cannot catch up and must be restored from a copy of the primary **]", next));
+					throw new IOException("CLSN " + next + " is missing");
+				}
+				next++;
+				chunk.add(record);
+				chunkBytes += ReplicationCodec.estimateDataLength(record);
+			}
+
+			ReplicationCodec.writeSyncBatchHeader(out, new ReplicationCodec.SyncBatch(chunk.size(), targetLSN));
+			for (LogRecord transaction : chunk) {
+				ReplicationCodec.writeTransaction(out, transaction);
+			}
+			out.flush();
+			if (chunk.isEmpty()) return;
+
+			// the backup resumes from what it has actually applied
+			ServerMessage ack = ReplicationCodec.readMessage(in);
+			next = ack.getCommitLSN() + 1;
+		}
+	}
+
+	/* BACKUP: receives the chunks of a SYNC and applies them, returns once caught up with the primary
+	 * every applied COMMIT is durable, an interrupted SYNC can be resumed from LogRecord.getCurrentLSN() */
+	public static void receiveCatchUp (DataInputStream in, DataOutputStream out) throws IOException {
+		int startLSN = LogRecord.getCurrentLSN();
+		while (true) {
+			ReplicationCodec.SyncBatch batch = ReplicationCodec.readSyncBatchHeader(in);
+			if (batch.getCount() == 0) return;
+			if (LogRecord.getCurrentLSN() == startLSN) {
+				System.out.println(String.format("[** Backup is synchronizing %s transactions with the primary - do not kill either server **]".toUpperCase(), batch.getTargetLSN() - startLSN));
+			}
+
+			for (int i = 0; i < batch.getCount(); i++) {
+				LogRecord transaction = ReplicationCodec.readTransaction(in);
+				if (transaction.getCommitLSN() <= LogRecord.getCurrentLSN()) {
+					// already applied
+					for (String stagedFile : transaction.getStagedFiles()) {
+						FileServer.getStagingFile(stagedFile).delete();
+					}
+					continue;
+				}
+				System.out.println("Syncing TID: " + transaction.getTransactionID());
+				FileServer.applySyncedTransaction(transaction);
+			}
+
+			ReplicationCodec.writeMessage(out, new ServerMessage(ServerMessage.ResponseMethod.ACK, LogRecord.getCurrentLSN()));
+			out.flush();
+			System.out.println(String.format("[** Backup synchronized up to CLSN %d of %d **]", LogRecord.getCurrentLSN(), batch.getTargetLSN()));
+		}
+	}
+
+	/* BACKUP: serves the replication channel opened by the primary, hands its COMMITs to the apply scheduler in commit LSN order and acknowledges
+	 * them once every COMMIT up to them has been applied, returns when the primary closes the connection */
+	public static void serve (final Socket socket) throws IOException {
+		final ApplyScheduler scheduler = FileServer.getApplyScheduler();
+		int lastReceived = scheduler.getWatermark();
+		BackupStream stream = new BackupStream(socket, lastReceived);
+		stream.send(ServerMessage.ResponseMethod.ACK, lastReceived);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+
+		// ACKs are sent by the stream's ack thread, as the watermark advances
+		scheduler.setListener(stream);
+		stream.start();
+
+		try {
+			int askedFor = -1; // the commit LSN of the last ASK_RESEND, asked only once per gap
+			while (true) {
+				LogRecord logRecord = ReplicationCodec.readTransaction(in);
+				// ensures that commit records are received in proper order
+				int expectedLSN = lastReceived+1;
+				int receivedLSN = logRecord.getCommitLSN();
+
+				if (receivedLSN != expectedLSN || scheduler.isKnown(receivedLSN)) {
+					// already applied or being applied (resent after an ASK_RESEND or a reconnect), or a gap: drop it
+					for (String stagedFile : logRecord.getStagedFiles()) {
+						FileServer.getStagingFile(stagedFile).delete();
+					}
+					if (receivedLSN == expectedLSN) {
+						lastReceived = receivedLSN;
+					} else if (receivedLSN > expectedLSN && askedFor != expectedLSN) {
+						System.out.println("Sending ASK_RESEND for LSN: " + expectedLSN);
+						askedFor = expectedLSN;
+						stream.send(ServerMessage.ResponseMethod.ASK_RESEND, expectedLSN);
+					}
+					continue;
+				}
+
+				// the COMMIT (and its staged data) has been received in full: a primary in semi-synchronous mode can answer its client
+				stream.send(ServerMessage.ResponseMethod.RECEIVED, receivedLSN);
+				lastReceived = receivedLSN;
+				scheduler.submit(logRecord);
+			}
+		} finally {
+			scheduler.removeListener(stream);
+			stream.close();
+		}
+	}
+
+	/* BACKUP: the output side of a replication connection served by serve
+	 * the apply workers only record the watermark they reached (they never write to the network), the connection's ack thread sends it:
+	 * the serving thread spends its time blocked reading the next COMMIT, a SYNC primary waiting for the ACK would send it nothing
+	 * writes are serialized by writeLock, not by a monitor: a virtual thread blocked in a socket write inside a monitor pins its carrier */
+	private static class BackupStream implements ApplyScheduler.Listener, Runnable {
+		private final Socket socket;
+		private final DataOutputStream out;
+		private final Lock writeLock = new ReentrantLock();
+
+		private final Lock ackLock = new ReentrantLock();
+		private final Condition ackDue = ackLock.newCondition(); // the watermark advanced, or the connection is closing
+		// guarded by ackLock
+		private int watermark; // every COMMIT up to it has been applied
+		private int ackedWatermark; // the last watermark sent in an ACK
+		private boolean closed = false;
+
+		private BackupStream (Socket socket, int watermark) throws IOException {
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.watermark = watermark;
+			this.ackedWatermark = watermark;
+		}
+
+		/* starts the thread that sends the ACKs */
+		private void start () {
+			Thread sender = new Thread(this, "replication-ack");
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		/* stops the ack thread, the ACKs it has not sent are lost with the connection */
+		private void close () {
+			ackLock.lock();
+			try {
+				closed = true;
+				ackDue.signal();
+			} finally {
+				ackLock.unlock();
+			}
+		}
+
+		private void send (ServerMessage.ResponseMethod method, int commitLSN) throws IOException {
+			writeLock.lock();
+			try {
+				ReplicationCodec.writeMessage(out, new ServerMessage(method, commitLSN));
+				out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		public void applied (int watermark) {
+			ackLock.lock();
+			try {
+				if (watermark > this.watermark) {
+					this.watermark = watermark;
+					ackDue.signal();
+				}
+			} finally {
+				ackLock.unlock();
+			}
+		}
+
+		public void failed (int commitLSN) {
+			// the primary reconnects and resends every COMMIT after the watermark
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public void run () {
+			try {
+				while (true) {
+					int ack;
+					ackLock.lock();
+					try {
+						while (!closed && watermark == ackedWatermark) {
+							ackDue.awaitUninterruptibly();
+						}
+						if (closed) {
+							return;
+						}
+						// one ACK covers every COMMIT applied while the previous one was being sent
+						ack = watermark;
+						ackedWatermark = watermark;
+					} finally {
+						ackLock.unlock();
+					}
+					send(ServerMessage.ResponseMethod.ACK, ack);
+				}
+			} catch (IOException e) {
+				// the connection is gone, the primary resumes from the watermark it is told on the next one
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/* BINARY REPLICATION FORMAT :
+ * Compact encoding of the messages exchanged between the primary and the backup (replaces Java serialization of LogRecord and ServerMessage objects)
+ *
+ * ACK / ASK_RESEND / RECEIVED / SYNC:  TAG (1 byte) LSN (4 bytes)
+ * Transaction:              TAG (1 byte) TID (8 bytes) SEQ (4 bytes) LSN (4 bytes) NAME_LENGTH (2 bytes) DATA_LENGTH (8 bytes) OFFSET (8 bytes) NAME DATA
+ * 		SEQ 	 sequence number of the transaction's last WRITE
+ * 		LSN 	 commit LSN of the transaction
+ * 		OFFSET 	 length of the file when the transaction was committed on the primary (where the backup writes DATA), -1 if unknown
+ * 		NAME 	 (UTF-8) name of the file the transaction commits to
+ * 		DATA 	 the committed data: the data of every WRITE in sequence order, written once as a contiguous payload
+ * SYNC batch:               TAG (1 byte) COUNT (4 bytes) TARGET (4 bytes) followed by COUNT transactions
+ * 		TARGET 	 the primary's commit LSN when the batch was sent (progress reporting), a batch with COUNT 0 ends the SYNC
+ *
+ * Only committed transactions are shipped, so the receiver does not need the individual WRITEs: the payload becomes a single WRITE of the
+ * decoded transaction. A payload up to INLINE_LIMIT bytes is kept in memory, a larger one is streamed into a staging file (never loaded whole).
+ * The payload of a compacted transaction (see LogRecord.compact) is sent from the range of its file it was committed to.
+ */
+public class ReplicationCodec {
+
+	private static final int TAG_ACK = 1;
+	private static final int TAG_ASK_RESEND = 2;
+	private static final int TAG_SYNC = 3;
+	private static final int TAG_TRANSACTION = 4;
+	private static final int TAG_SYNC_BATCH = 5;
+	private static final int TAG_RECEIVED = 6;
+
+	private static final int INLINE_LIMIT = 64 * 1024; // UNIT: bytes, larger payloads are staged on the receiving server
+	private static final int CHUNK_SIZE = 64 * 1024; // staged data is copied through a buffer of this size
+
+	public static void writeMessage (DataOutputStream out, ServerMessage message) throws IOException {
+		int tag;
+		if (message.getRequestMethod() == ServerMessage.RequestMethod.SYNC) {
+			tag = TAG_SYNC;
+		} else if (message.getResponseMethod() == ServerMessage.ResponseMethod.ACK) {
+			tag = TAG_ACK;
+		} else if (message.getResponseMethod() == ServerMessage.ResponseMethod.ASK_RESEND) {
+			tag = TAG_ASK_RESEND;
+		} else if (message.getResponseMethod() == ServerMessage.ResponseMethod.RECEIVED) {
+			tag = TAG_RECEIVED;
+		} else {
+			throw new IllegalArgumentException("Message cannot be encoded: " + message.getRequestMethod() + "/" + message.getResponseMethod());
+		}
+		out.writeByte(tag);
+		out.writeInt(message.getCommitLSN());
+	}
+
+	public static ServerMessage readMessage (DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		int commitLSN = in.readInt();
+		switch (tag) {
+		case TAG_ACK:        return new ServerMessage(ServerMessage.ResponseMethod.ACK, commitLSN);
+		case TAG_ASK_RESEND: return new ServerMessage(ServerMessage.ResponseMethod.ASK_RESEND, commitLSN);
+		case TAG_RECEIVED:   return new ServerMessage(ServerMessage.ResponseMethod.RECEIVED, commitLSN);
+		case TAG_SYNC:       return new ServerMessage(ServerMessage.RequestMethod.SYNC, commitLSN);
+		default:
+			throw new StreamCorruptedException("Unexpected replication message tag: " + tag);
+		}
+	}
+
+	/* writes a committed transaction, staged data is streamed from its staging file */
+	public static void writeTransaction (DataOutputStream out, LogRecord transaction) throws IOException {
+		// the staging files are not deleted by a compaction while they are being streamed
+		ArrayList<LogRecord> writes = transaction.startShipping();
+		if (writes == null) {
+			writeCompactedTransaction(out, transaction);
+			return;
+		}
+		try {
+			writeWrites(out, transaction, writes);
+		} finally {
+			transaction.finishShipping();
+		}
+	}
+
+	/* the header and the data of a transaction that has not been compacted */
+	private static void writeWrites (DataOutputStream out, LogRecord transaction, ArrayList<LogRecord> writes) throws IOException {
+		// inline data is encoded the way the COMMIT writes it to the file, so the backup's file gets exactly the same bytes
+		byte[][] inline = new byte[writes.size()][];
+		long length = 0;
+		for (int i = 0; i < writes.size(); i++) {
+			LogRecord write = writes.get(i);
+			if (write.isStaged()) {
+				length += write.getStagedLength();
+			} else {
+				inline[i] = write.getData().getBytes();
+				length += inline[i].length;
+			}
+		}
+		writeTransactionHeader(out, transaction, length);
+
+		byte[] buffer = null;
+		for (int i = 0; i < writes.size(); i++) {
+			LogRecord write = writes.get(i);
+			if (!write.isStaged()) {
+				out.write(inline[i]);
+				continue;
+			}
+			if (buffer == null) buffer = new byte[CHUNK_SIZE];
+			InputStream staged = new FileInputStream(FileServer.getStagingFile(write.getStagedFile()));
+			try {
+				long remaining = write.getStagedLength();
+				while (remaining > 0) {
+					int read = staged.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read == -1) {
+						throw new IOException(String.format("Staging file %s of TID: %d is shorter than its data", write.getStagedFile(), transaction.getTransactionID()));
+					}
+					out.write(buffer, 0, read);
+					remaining -= read;
+				}
+			} finally {
+				staged.close();
+			}
+		}
+	}
+
+	/* the committed data of a compacted transaction is the range of its file that starts at the commit offset */
+	private static void writeCompactedTransaction (DataOutputStream out, LogRecord transaction) throws IOException {
+		FileRegion region;
+		try {
+			region = FileServer.openFile(transaction.getFileName(), transaction.getCommitOffset(), transaction.getCommittedLength());
+		} catch (ServerException e) {
+			throw new IOException(String.format("Committed data of TID: %d cannot be read from %s: %s", transaction.getTransactionID(), transaction.getFileName(), e.getMessage()), e);
+		}
+		try {
+			if (region.getLength() != transaction.getCommittedLength()) {
+				throw new IOException(String.format("File %s is shorter than the committed data of TID: %d", transaction.getFileName(), transaction.getTransactionID()));
+			}
+			writeTransactionHeader(out, transaction, region.getLength());
+			region.transferFully(Channels.newChannel(out));
+		} finally {
+			region.close();
+		}
+	}
+
+	private static void writeTransactionHeader (DataOutputStream out, LogRecord transaction, long length) throws IOException {
+		byte[] name = transaction.getFileName().getBytes(StandardCharsets.UTF_8);
+		out.writeByte(TAG_TRANSACTION);
+		out.writeLong(transaction.getTransactionID());
+		out.writeInt(transaction.getSequenceNumber());
+		out.writeInt(transaction.getCommitLSN());
+		out.writeShort(name.length);
+		out.writeLong(length);
+		out.writeLong(transaction.getCommitOffset());
+		out.write(name);
+	}
+
+	/* reads a committed transaction, ready to be committed on this server */
+	public static LogRecord readTransaction (DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		if (tag != TAG_TRANSACTION) {
+			throw new StreamCorruptedException("Unexpected replication message tag: " + tag);
+		}
+		long transactionID = in.readLong();
+		int sequenceNumber = in.readInt();
+		int commitLSN = in.readInt();
+		byte[] name = new byte[in.readUnsignedShort()];
+		long length = in.readLong();
+		if (length < 0) {
+			throw new StreamCorruptedException("Negative replicated data length: " + length);
+		}
+		long offset = in.readLong();
+		in.readFully(name);
+
+		LogRecord transaction = new LogRecord(null, transactionID, sequenceNumber, null, null);
+		transaction.setFilename(new String(name, StandardCharsets.UTF_8));
+		transaction.applyCommitLSN(commitLSN);
+		transaction.setCommited(true);
+		transaction.setReceivedCommitRequest(true);
+		transaction.setCommitOffset(offset);
+		if (length == 0) return transaction;
+
+		LogRecord write;
+		if (length <= INLINE_LIMIT) {
+			byte[] data = new byte[(int) length];
+			in.readFully(data);
+			write = new LogRecord(RequestMessage.RequestMethod.WRITE, transactionID, 1, null, new String(data));
+		} else {
+			File file = FileServer.newStagingFile();
+			FileOutputStream staged = new FileOutputStream(file);
+			try {
+				byte[] buffer = new byte[CHUNK_SIZE];
+				long remaining = length;
+				while (remaining > 0) {
+					int chunk = (int) Math.min(buffer.length, remaining);
+					in.readFully(buffer, 0, chunk);
+					staged.write(buffer, 0, chunk);
+					remaining -= chunk;
+				}
+				staged.getChannel().force(true);
+			} catch (IOException e) {
+				staged.close();
+				file.delete();
+				throw e;
+			} finally {
+				staged.close();
+			}
+			write = new LogRecord(RequestMessage.RequestMethod.WRITE, transactionID, 1, null, null);
+			write.setStagedFile(file.getName(), length);
+		}
+		transaction.putReplicatedWrite(write);
+		return transaction;
+	}
+
+	/* header of a chunk of a SYNC */
+	public static class SyncBatch {
+
+		private final int count;
+		private final int targetLSN;
+
+		public SyncBatch (int count, int targetLSN) {
+			this.count = count;
+			this.targetLSN = targetLSN;
+		}
+
+		/* number of transactions that follow, 0 once the backup has caught up */
+		public int getCount () {
+			return count;
+		}
+
+		public int getTargetLSN () {
+			return targetLSN;
+		}
+	}
+
+	public static void writeSyncBatchHeader (DataOutputStream out, SyncBatch batch) throws IOException {
+		out.writeByte(TAG_SYNC_BATCH);
+		out.writeInt(batch.getCount());
+		out.writeInt(batch.getTargetLSN());
+	}
+
+	public static SyncBatch readSyncBatchHeader (DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		if (tag != TAG_SYNC_BATCH) {
+			throw new StreamCorruptedException("Unexpected replication message tag: " + tag);
+		}
+		int count = in.readInt();
+		return new SyncBatch(count, in.readInt());
+	}
+
+	/* size of the committed data of the transaction, without encoding it (inline data is counted in characters) */
+	public static long estimateDataLength (LogRecord transaction) {
+		ArrayList<LogRecord> writes = transaction.getCommittedWrites();
+		if (writes == null) return transaction.getCommittedLength();
+		long length = 0;
+		for (LogRecord write : writes) {
+			length += write.isStaged() ? write.getStagedLength() : write.getData().length();
+		}
+		return length;
+	}
+}
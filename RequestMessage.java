@@ -1,3 +1,5 @@
+import java.io.File;
+import java.util.List;
 import java.util.Locale;
 
 
@@ -8,7 +10,9 @@ public class RequestMessage {
 		NEW_TXN, 
 		WRITE, 
 		COMMIT, 
-		ABORT;
+		ABORT,
+		WRITE_BATCH,
+		READ_RANGE;
 		
 		public static RequestMethod fromString (String method) {
 			if (method != null) {
@@ -21,24 +25,50 @@ public class RequestMessage {
 	}
 	
 	private RequestMethod method;
-	private int transactionID;
+	private long transactionID;
 	private int sequenceNumber;
 	private int contentLength;
 	private String data;
+	private List<RequestMessage> batch; // the WRITEs carried by a WRITE_BATCH request, null for every other method
+	private File stagedFile; // file holding the data of a WRITE too large to be kept in memory (data is null), null for every other request
+	private StagingWriter staging; // nio front end: writes the staged file of the WRITE off the selector thread, null otherwise
+	private long rangeOffset = 0; // READ_RANGE: first byte to read, negative to start that many bytes before the end of the file
+	private long rangeLength = -1; // READ_RANGE: number of bytes to read, -1 to read to the end of the file
 	
-	public RequestMessage (RequestMethod method, int transactionID, int sequenceNumber, int contentLength, String data) {
+	public RequestMessage (RequestMethod method, long transactionID, int sequenceNumber, int contentLength, String data) {
 		this.method = method;
 		this.transactionID = transactionID;
 		this.sequenceNumber = sequenceNumber;
 		this.contentLength = contentLength;
 		this.data = data;
 	}
+	
+	public RequestMessage (RequestMethod method, long transactionID, int sequenceNumber, int contentLength, List<RequestMessage> batch) {
+		this(method, transactionID, sequenceNumber, contentLength, (String) null);
+		this.batch = batch;
+	}
+	
+	public RequestMessage (RequestMethod method, long transactionID, int sequenceNumber, int contentLength, File stagedFile) {
+		this(method, transactionID, sequenceNumber, contentLength, (String) null);
+		this.stagedFile = stagedFile;
+	}
+	
+	public RequestMessage (RequestMethod method, long transactionID, int sequenceNumber, int contentLength, StagingWriter staging) {
+		this(method, transactionID, sequenceNumber, contentLength, (String) null);
+		this.staging = staging;
+	}
+	
+	public RequestMessage (RequestMethod method, long transactionID, int sequenceNumber, int contentLength, String filename, long rangeOffset, long rangeLength) {
+		this(method, transactionID, sequenceNumber, contentLength, filename);
+		this.rangeOffset = rangeOffset;
+		this.rangeLength = rangeLength;
+	}
 
 	public RequestMethod getMethod() {
 		return method;
 	}
 
-	public int getTransactionID() {
+	public long getTransactionID() {
 		return transactionID;
 	}
 
@@ -53,4 +83,37 @@ public class RequestMessage {
 	public String getData() {
 		return data;
 	}
+	
+	public List<RequestMessage> getBatch() {
+		return batch;
+	}
+	
+	/* true for a WRITE whose data is in a staging file */
+	public boolean isStaged() {
+		return stagedFile != null || staging != null;
+	}
+	
+	/* the staging file of a staged WRITE (null for every other request), waits for the nio front end to have written all of its data */
+	public File getStagedFile() throws ServerException {
+		if (staging != null) {
+			stagedFile = staging.await();
+			staging = null;
+		}
+		return stagedFile;
+	}
+	
+	/* the same staged WRITE for another TID */
+	public RequestMessage withStagedData (long transactionID) {
+		RequestMessage request = new RequestMessage(method, transactionID, sequenceNumber, contentLength, stagedFile);
+		request.staging = staging;
+		return request;
+	}
+	
+	public long getRangeOffset() {
+		return rangeOffset;
+	}
+	
+	public long getRangeLength() {
+		return rangeLength;
+	}
 }
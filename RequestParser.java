@@ -0,0 +1,626 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/* BUFFERED REQUEST PARSER :
+ * Parses request messages out of a reusable byte window instead of reading the stream one byte at a time
+ *  - the window is refilled with whatever the socket has available (one read call, not one call per byte)
+ *  - the header is scanned for its CRLF once, bytes that have already been scanned are never looked at again
+ *  - method, tid, sequence number and content length are parsed directly from the header bytes (no String per byte, no regex, no split)
+ * The wire format and the errors reported (message and error code) are the same as the original byte-at-a-time parser.
+ *
+ * Two ways of feeding the window:
+ *  - stream mode (Transaction): readRequest() blocks on the InputStream until a complete request has been received
+ *  - channel mode (SelectorServer): readFrom() reads what a non-blocking channel has available, poll() returns complete requests
+ * Bytes received after the end of a request stay in the window, so pipelined requests are parsed without touching the socket again.
+ *
+ * STREAMED WRITES: the data of a WRITE longer than the maximum content length is never held in the window as a whole,
+ * it is written to a staging file chunk by chunk as it arrives (the window only grows to STAGING_WINDOW_SIZE while it does)
+ * and the request is returned with the staging file instead of its data.
+ * In channel mode the parser runs on a selector thread, which must not block on the disk: the chunks are handed to a StagingWriter that
+ * writes them on the staging executor, the request is returned once all of its data has been received and the worker that executes it
+ * waits for the staging file to be on disk.
+ */
+public class RequestParser {
+
+	public static final int MAX_HEADER_LENGTH = 1024; // no valid request header comes close to this
+	private static final int INITIAL_WINDOW_SIZE = 4096;
+	private static final int MIN_READ_SIZE = 1024; // compact/grow the window when less than this is free
+	private static final int STAGING_WINDOW_SIZE = 64 * 1024; // window size while the data of a WRITE is being streamed to its staging file
+	private static final byte[] CRLF = ClientServerProtocol.getCRLF().getBytes();
+	private static final byte[] DOUBLE_CRLF = ClientServerProtocol.repeat(ClientServerProtocol.getCRLF(), 2).getBytes();
+	private static final RequestMessage.RequestMethod[] METHODS = RequestMessage.RequestMethod.values();
+	private static final int FIELDS = 4;
+
+	private final InputStream in; // null in channel mode
+	private final Executor stagingExecutor; // writes the data of streamed WRITEs in channel mode, null in stream mode
+	private final Runnable stagingDrained; // called when the connection can be read from again after the staging of a WRITE fell behind
+	private byte[] window = new byte[INITIAL_WINDOW_SIZE];
+	private int start = 0; // first byte of the request being parsed
+	private int end = 0; // end of the bytes received so far
+	private int scanned = 0; // bytes (from start) already searched for the header CRLF
+
+	// header of the request being parsed, once its CRLF has been received
+	private boolean headerParsed = false;
+	private int headerLength;
+	private RequestMessage.RequestMethod method;
+	private long transactionID;
+	private int sequenceNumber;
+	private int contentLength;
+
+	// staging file of the WRITE being parsed, while its data is being streamed to it (stagingWriter instead in channel mode)
+	private File stagingFile = null;
+	private FileChannel stagingChannel = null;
+	private StagingWriter stagingWriter = null;
+	private int staged; // bytes of data written to the staging file (or handed to the staging writer) so far
+
+	public RequestParser (InputStream in) {
+		this.in = in;
+		this.stagingExecutor = null;
+		this.stagingDrained = null;
+	}
+
+	public RequestParser (Executor stagingExecutor, Runnable stagingDrained) {
+		this.in = null;
+		this.stagingExecutor = stagingExecutor;
+		this.stagingDrained = stagingDrained;
+	}
+
+	/* STREAM MODE: returns the next request, or null if the stream ended cleanly between two requests
+	 * I/O errors while waiting for a new request are thrown as they are (the connection is gone), I/O errors in the middle of a request are reported as ServerExceptions */
+	public RequestMessage readRequest () throws ServerException, IOException {
+		while (true) {
+			RequestMessage request = parse(false);
+			if (request != null) return request;
+
+			int bytesRead;
+			try {
+				ensureSpace();
+				bytesRead = in.read(window, end, window.length - end);
+			} catch (SocketTimeoutException e) {
+				if (start == end && !headerParsed) throw e;
+				discard();
+				throw new ServerException("Server timed out after " + FileServer.getTimeout() + "ms. Incomplete request message. " + e.getMessage(), ClientServerProtocol.Error.TIMEOUT);
+			} catch (IOException e) {
+				if (start == end && !headerParsed) throw e;
+				discard();
+				throw new ServerException("I/O error: " + e.getMessage(), ClientServerProtocol.Error.FILE_IO_ERROR);
+			}
+
+			if (bytesRead == -1) {
+				if (start == end && !headerParsed) return null;
+				return parse(true);
+			}
+			end += bytesRead;
+		}
+	}
+
+	/* CHANNEL MODE: reads whatever the channel has available into the window, returns the number of bytes read or -1 at the end of the stream */
+	public int readFrom (ReadableByteChannel channel) throws IOException {
+		ensureSpace();
+		int bytesRead = channel.read(ByteBuffer.wrap(window, end, window.length - end));
+		if (bytesRead > 0) end += bytesRead;
+		return bytesRead;
+	}
+
+	/* CHANNEL MODE: returns the next complete request in the window, or null if more bytes are needed */
+	public RequestMessage poll () throws ServerException {
+		return parse(false);
+	}
+
+	/* CHANNEL MODE: reports the request that was cut off when the client closed its end of the connection (if any) */
+	public void checkEndOfStream () throws ServerException {
+		if (start != end || headerParsed) parse(true);
+	}
+
+	/* CHANNEL MODE: true while the data of the WRITE being staged is received faster than it is written, the channel should not be read from */
+	public boolean isStagingBacklogged () {
+		return stagingWriter != null && stagingWriter.isBacklogged();
+	}
+
+	/* drops the WRITE being staged and deletes its staging file (the WRITE will never be completed), does nothing if no WRITE is being staged */
+	public void discard () {
+		if (stagingWriter != null) {
+			stagingWriter.abort();
+			stagingWriter = null;
+			consume(end);
+			return;
+		}
+		if (stagingChannel == null) return;
+		try {
+			stagingChannel.close();
+		} catch (IOException e) {
+			// muted exception, no need to escalate
+		}
+		stagingFile.delete();
+		stagingChannel = null;
+		stagingFile = null;
+		consume(end);
+	}
+
+	/* returns a complete request, null if more bytes are needed, or throws if the bytes received so far cannot form a valid request
+	 * endOfStream: no more bytes will arrive, an incomplete request is an error */
+	private RequestMessage parse (boolean endOfStream) throws ServerException {
+		if (stagingChannel != null || stagingWriter != null) return stage(endOfStream);
+
+		if (!headerParsed) {
+			int crlf = indexOfCRLF();
+			if (crlf == -1) {
+				if (end - start > MAX_HEADER_LENGTH) {
+					throw new ServerException("Request header is longer than " + MAX_HEADER_LENGTH + " bytes, check syntax for CRLFs", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				if (endOfStream) {
+					throw new ServerException("Failed to read the request header, check syntax for CRLFs", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				return null;
+			}
+			parseHeader(start, start + crlf);
+			headerLength = crlf + CRLF.length;
+			headerParsed = true;
+		}
+
+		int body = start + headerLength;
+		int available = end - body;
+
+		if (!hasContent(method)) {
+			/* When the method does not require data, check for correct CRLF syntax (2 CRLFs)
+			 *
+			 * Methods: COMMIT, ABORT
+			 */
+			for (int i = 0; i < Math.min(available, DOUBLE_CRLF.length); i++) {
+				if (window[body + i] != DOUBLE_CRLF[i]) {
+					throw new ServerException("Two CRLFs must be followed after the request header if there is no data", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+			}
+			if (available < DOUBLE_CRLF.length) {
+				if (endOfStream) {
+					throw new ServerException("Two CRLFs must be followed after the request header if there is no data", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				return null;
+			}
+			RequestMessage request = new RequestMessage(method, transactionID, sequenceNumber, contentLength, (String) null);
+			consume(body + DOUBLE_CRLF.length);
+			return request;
+		}
+
+		/* When the method has data, check for correct CRLF syntax (1 CRLF + data)
+		 *
+		 * Methods: NEW_TXN (filename), READ (filename), READ_RANGE (filename and range), WRITE (data), WRITE_BATCH (entries)
+		 */
+		if (available < CRLF.length && !endOfStream) return null;
+		if (available < CRLF.length || window[body] != CRLF[0] || window[body + 1] != CRLF[1]) {
+			throw new ServerException(new String(window, body, Math.min(available, CRLF.length)) + ":" + method.name() + ":" + transactionID + ":" + sequenceNumber + " >> Expecting CRLF: this method type expects another CRLF after the header", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+
+		if (method == RequestMessage.RequestMethod.WRITE && contentLength > ClientServerProtocol.getMaxContentLength()) {
+			start = body + CRLF.length; // from now on the window only holds data of the WRITE
+			openStagingFile();
+			return stage(endOfStream);
+		}
+
+		if (available < CRLF.length + contentLength) {
+			if (endOfStream) {
+				throw new ServerException(String.format("Data field is invalid, total bytes read (%d), does not match the specified content length (%d) ", available - CRLF.length, contentLength), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+			return null;
+		}
+
+		if (method == RequestMessage.RequestMethod.WRITE_BATCH) {
+			RequestMessage request = new RequestMessage(method, transactionID, sequenceNumber, contentLength, parseBatch(body + CRLF.length, contentLength));
+			consume(body + CRLF.length + contentLength);
+			return request;
+		}
+
+		String data = new String(window, body + CRLF.length, contentLength);
+
+		if (method == RequestMessage.RequestMethod.READ_RANGE) {
+			RequestMessage request = parseRange(data);
+			consume(body + CRLF.length + contentLength);
+			return request;
+		}
+
+		// if there are special characters in the file name, report an error
+		if (method == RequestMessage.RequestMethod.NEW_TXN || method == RequestMessage.RequestMethod.READ) {
+			checkFilename(data);
+		}
+
+		RequestMessage request = new RequestMessage(method, transactionID, sequenceNumber, contentLength, data);
+		consume(body + CRLF.length + contentLength);
+		return request;
+	}
+
+	private static void checkFilename (String filename) throws ServerException {
+		if (filename.trim().length() == 0 || filename.startsWith(".") || ClientServerProtocol.containsIllegals(filename) || filename.length() > 254) {
+			throw new ServerException("Invalid filename provided, filenames cannot contain spaces, invalid characters or be an empty string, and must be less than 254 characters", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+	}
+
+	/* READ_RANGE data:  FILENAME OFFSET [LENGTH]
+	 * a negative offset starts that many bytes before the end of the file (tail), without a length the range ends at the end of the file */
+	private RequestMessage parseRange (String data) throws ServerException {
+		String[] fields = data.split(" ");
+		if (fields.length < 2 || fields.length > 3) {
+			throw new ServerException("READ_RANGE data must be \"<filename> <offset>\" or \"<filename> <offset> <length>\"", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+		checkFilename(fields[0]);
+
+		long offset;
+		long length = -1;
+		try {
+			offset = Long.parseLong(fields[1]);
+			if (fields.length == 3) {
+				length = Long.parseLong(fields[2]);
+			}
+		} catch (NumberFormatException e) {
+			throw new ServerException("READ_RANGE offset and length must be valid integers", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+		if (fields.length == 3 && length < 0) {
+			throw new ServerException("READ_RANGE length cannot be negative", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+		return new RequestMessage(method, transactionID, sequenceNumber, contentLength, fields[0], offset, length);
+	}
+
+	/* parses and validates the header bytes [from, to) (the CRLF excluded) */
+	private void parseHeader (int from, int to) throws ServerException {
+		byte[] header = window;
+		for (int i = from; i < to; i++) {
+			if (window[i] == '\r' || window[i] == '\n') {
+				// stray CR/LF characters are dropped from the header (rare, so only then is a copy made)
+				header = new byte[to - from];
+				int length = 0;
+				for (int j = from; j < to; j++) {
+					if (window[j] != '\r' && window[j] != '\n') header[length++] = window[j];
+				}
+				from = 0;
+				to = length;
+				break;
+			}
+		}
+
+		// field boundaries, same as header.split(" "): no space means a single field, trailing empty fields are dropped
+		int[] fieldStart = new int[FIELDS];
+		int[] fieldEnd = new int[FIELDS];
+		int fieldCount = 0;
+		int nonEmptyCount = 0;
+		int current = from;
+		for (int i = from; i <= to; i++) {
+			if (i == to || header[i] == ' ') {
+				if (fieldCount < FIELDS) {
+					fieldStart[fieldCount] = current;
+					fieldEnd[fieldCount] = i;
+				}
+				fieldCount++;
+				if (i > current) nonEmptyCount = fieldCount;
+				current = i + 1;
+			}
+		}
+		if (fieldCount > 1) fieldCount = nonEmptyCount;
+
+		if (fieldCount != FIELDS) {
+			throw new ServerException(String.format("Number of field(s) provided (%d), required (%d) ", fieldCount, FIELDS), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+
+		try {
+			method = parseMethod(header, fieldStart[0], fieldEnd[0]);
+			sequenceNumber = parseInt(header, fieldStart[2], fieldEnd[2]);
+			contentLength = parseInt(header, fieldStart[3], fieldEnd[3]);
+			transactionID = -1;
+
+			if (contentLength < 0) {
+				throw new ServerException("Content length cannot be negative", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+
+			int maxContentLength;
+			switch (method) {
+			case WRITE_BATCH: maxContentLength = ClientServerProtocol.getMaxBatchLength(); break;
+			case WRITE: 	  maxContentLength = ClientServerProtocol.getMaxStreamedWriteLength(); break;
+			default: 		  maxContentLength = ClientServerProtocol.getMaxContentLength(); break;
+			}
+			if (contentLength > maxContentLength) {
+				throw new ServerException("Content length is too large. The maximum size accepted is " + maxContentLength + " bytes", ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+
+			switch (method) {
+			case NEW_TXN:
+				if (sequenceNumber != 0) {
+					throw new ServerException("Sequence number must be zero (0) for NEW_TXN", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				if (contentLength == 0) {
+					throw new ServerException("Content length must be the length of the filename in bytes for NEW_TXN", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				break;
+			case READ:
+				transactionID = parseLong(header, fieldStart[1], fieldEnd[1]);
+				if (contentLength == 0) {
+					throw new ServerException("Content length must be the length of the filename in bytes for READ", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				break;
+			case READ_RANGE:
+				transactionID = parseLong(header, fieldStart[1], fieldEnd[1]);
+				if (contentLength == 0) {
+					throw new ServerException("Content length must be the length of the filename and range in bytes for READ_RANGE", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				break;
+			case WRITE:
+				transactionID = parseLong(header, fieldStart[1], fieldEnd[1]);
+				if (sequenceNumber <= 0) {
+					throw new ServerException("Sequence number must be > 0 for WRITE", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				break;
+			case COMMIT:
+				transactionID = parseLong(header, fieldStart[1], fieldEnd[1]);
+				if (sequenceNumber <= 0) {
+					throw new ServerException("Sequence number must be > 0 for COMMIT", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				break;
+			case WRITE_BATCH:
+				// the sequence number field carries the number of WRITEs in the batch
+				transactionID = parseLong(header, fieldStart[1], fieldEnd[1]);
+				if (sequenceNumber <= 0) {
+					throw new ServerException("Number of writes must be > 0 for WRITE_BATCH", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				if (contentLength == 0) {
+					throw new ServerException("Content length must be the length of the batch entries in bytes for WRITE_BATCH", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+				}
+				break;
+			default:
+				transactionID = parseLong(header, fieldStart[1], fieldEnd[1]);
+				break;
+			}
+		} catch (NumberFormatException e) {
+			throw new ServerException("tid, sequence number, and length must be valid integers", ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+	}
+
+	private static boolean hasContent (RequestMessage.RequestMethod method) {
+		switch (method) {
+		case NEW_TXN:
+		case READ:
+		case READ_RANGE:
+		case WRITE:
+		case WRITE_BATCH:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void openStagingFile () throws ServerException {
+		if (stagingExecutor != null) {
+			// the staging file is created by the staging writer, off the selector thread
+			stagingWriter = new StagingWriter(stagingExecutor, stagingDrained);
+		} else {
+			try {
+				stagingFile = FileServer.newStagingFile();
+				stagingChannel = FileChannel.open(stagingFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException e) {
+				if (stagingFile != null) stagingFile.delete();
+				stagingFile = null;
+				throw new ServerException("Unable to create a staging file for the data of the WRITE: " + e.getMessage(), ClientServerProtocol.Error.FILE_IO_ERROR);
+			}
+		}
+		staged = 0;
+		if (window.length < STAGING_WINDOW_SIZE) {
+			byte[] larger = new byte[STAGING_WINDOW_SIZE];
+			System.arraycopy(window, start, larger, 0, end - start);
+			end -= start;
+			start = 0;
+			window = larger;
+		}
+	}
+
+	/* moves the data of the staged WRITE received so far from the window to its staging file (to its staging writer in channel mode)
+	 * returns the WRITE (with its staging file) once all of its data has been forced to disk (handed over in channel mode), null if more bytes are needed */
+	private RequestMessage stage (boolean endOfStream) throws ServerException {
+		try {
+			int count = Math.min(end - start, contentLength - staged);
+			if (stagingWriter != null) {
+				if (count > 0) {
+					stagingWriter.write(Arrays.copyOfRange(window, start, start + count));
+				}
+			} else {
+				ByteBuffer buffer = ByteBuffer.wrap(window, start, count);
+				while (buffer.hasRemaining()) {
+					stagingChannel.write(buffer);
+				}
+			}
+			staged += count;
+			start += count;
+			if (start == end) {
+				start = 0;
+				end = 0;
+			}
+
+			if (staged < contentLength) {
+				if (!endOfStream) return null;
+				discard();
+				throw new ServerException(String.format("Data field is invalid, total bytes read (%d), does not match the specified content length (%d) ", staged, contentLength), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+			if (stagingWriter == null) {
+				stagingChannel.force(true);
+				stagingChannel.close();
+			}
+		} catch (IOException e) {
+			discard();
+			throw new ServerException("Unable to stage the data of the WRITE: " + e.getMessage(), ClientServerProtocol.Error.FILE_IO_ERROR);
+		}
+
+		RequestMessage request;
+		if (stagingWriter != null) {
+			stagingWriter.finish();
+			request = new RequestMessage(method, transactionID, sequenceNumber, contentLength, stagingWriter);
+		} else {
+			request = new RequestMessage(method, transactionID, sequenceNumber, contentLength, stagingFile);
+		}
+		stagingWriter = null;
+		stagingChannel = null;
+		stagingFile = null;
+		consume(start);
+
+		// an idle connection goes back to a small window
+		if (end - start <= INITIAL_WINDOW_SIZE && window.length > INITIAL_WINDOW_SIZE) {
+			byte[] smaller = new byte[INITIAL_WINDOW_SIZE];
+			System.arraycopy(window, start, smaller, 0, end - start);
+			end -= start;
+			start = 0;
+			window = smaller;
+		}
+		return request;
+	}
+
+	/* WRITE_BATCH data: sequenceNumber entries of the form  SEQ LENGTH CRLF DATA  that take up exactly length bytes
+	 * every entry follows the rules of a WRITE request (sequence number > 0, at most the maximum content length) */
+	private List<RequestMessage> parseBatch (int from, int length) throws ServerException {
+		List<RequestMessage> writes = new ArrayList<RequestMessage>(sequenceNumber);
+		int position = from;
+		int to = from + length;
+
+		for (int i = 1; i <= sequenceNumber; i++) {
+			int lineEnd = -1;
+			for (int j = position; j < to - 1; j++) {
+				if (window[j] == '\r' && window[j + 1] == '\n') {
+					lineEnd = j;
+					break;
+				}
+			}
+			int space = -1;
+			for (int j = position; j < lineEnd; j++) {
+				if (window[j] == ' ') {
+					space = j;
+					break;
+				}
+			}
+			if (lineEnd == -1 || space == -1) {
+				throw new ServerException(String.format("WRITE_BATCH entry %d must start with \"<sequence number> <length>\" followed by a CRLF", i), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+
+			int entrySequence;
+			int entryLength;
+			try {
+				entrySequence = parseInt(window, position, space);
+				entryLength = parseInt(window, space + 1, lineEnd);
+			} catch (NumberFormatException e) {
+				throw new ServerException(String.format("WRITE_BATCH entry %d: sequence number and length must be valid integers", i), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+			if (entrySequence <= 0) {
+				throw new ServerException(String.format("WRITE_BATCH entry %d: sequence number must be > 0", i), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+			if (entryLength < 0 || entryLength > ClientServerProtocol.getMaxContentLength()) {
+				throw new ServerException(String.format("WRITE_BATCH entry %d: length must be between 0 and %d bytes", i, ClientServerProtocol.getMaxContentLength()), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+
+			int data = lineEnd + CRLF.length;
+			if (entryLength > to - data) {
+				throw new ServerException(String.format("WRITE_BATCH entry %d: data runs past the content length of the batch", i), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+			}
+			writes.add(new RequestMessage(RequestMessage.RequestMethod.WRITE, transactionID, entrySequence, entryLength, new String(window, data, entryLength)));
+			position = data + entryLength;
+		}
+
+		if (position != to) {
+			throw new ServerException(String.format("WRITE_BATCH holds more data than its %d entries", sequenceNumber), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+		}
+		return writes;
+	}
+
+	private static RequestMessage.RequestMethod parseMethod (byte[] header, int from, int to) throws ServerException {
+		for (RequestMessage.RequestMethod m : METHODS) {
+			String name = m.name();
+			if (name.length() != to - from) continue;
+			int i = 0;
+			while (i < name.length() && Character.toUpperCase((char) (header[from + i] & 0xFF)) == name.charAt(i)) i++;
+			if (i == name.length()) return m;
+		}
+		throw new ServerException(String.format("Invalid method (%s) provided", new String(header, from, to - from)), ClientServerProtocol.Error.WRONG_MESSAGE_FORMAT);
+	}
+
+	/* same rules as Integer.parseInt (optional sign, decimal digits, must fit in an int) without creating a String */
+	private static int parseInt (byte[] header, int from, int to) {
+		if (from >= to) throw new NumberFormatException();
+		boolean negative = false;
+		int i = from;
+		if (header[i] == '-' || header[i] == '+') {
+			negative = header[i] == '-';
+			i++;
+			if (i == to) throw new NumberFormatException();
+		}
+		long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = header[i] - '0';
+			if (digit < 0 || digit > 9) throw new NumberFormatException();
+			value = value * 10 + digit;
+			if (value > limit) throw new NumberFormatException();
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/* same rules as Long.parseLong (optional sign, decimal digits, must fit in a long) without creating a String */
+	private static long parseLong (byte[] header, int from, int to) {
+		if (from >= to) throw new NumberFormatException();
+		boolean negative = false;
+		int i = from;
+		if (header[i] == '-' || header[i] == '+') {
+			negative = header[i] == '-';
+			i++;
+			if (i == to) throw new NumberFormatException();
+		}
+		// accumulated as a negative number, Long.MIN_VALUE has no positive counterpart
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value = 0;
+		for (; i < to; i++) {
+			int digit = header[i] - '0';
+			if (digit < 0 || digit > 9) throw new NumberFormatException();
+			if (value < limit / 10) throw new NumberFormatException();
+			value *= 10;
+			if (value < limit + digit) throw new NumberFormatException();
+			value -= digit;
+		}
+		return negative ? value : -value;
+	}
+
+	/* returns the position (from start) of the first CRLF in the window, or -1, never scanning a byte twice */
+	private int indexOfCRLF () {
+		for (int i = start + scanned; i < end - 1; i++) {
+			if (window[i] == '\r' && window[i + 1] == '\n') {
+				return i - start;
+			}
+		}
+		scanned = Math.max(0, end - 1 - start);
+		return -1;
+	}
+
+	private void consume (int newStart) {
+		start = newStart;
+		scanned = 0;
+		headerParsed = false;
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+	}
+
+	/* makes room at the end of the window: moves the unparsed bytes to the front, or grows the window if they fill most of it */
+	private void ensureSpace () {
+		if (window.length - end >= MIN_READ_SIZE) return;
+		int pending = end - start;
+		if (window.length - pending < MIN_READ_SIZE) {
+			byte[] larger = new byte[window.length * 2];
+			System.arraycopy(window, start, larger, 0, pending);
+			window = larger;
+		} else {
+			System.arraycopy(window, start, window, 0, pending);
+		}
+		start = 0;
+		end = pending;
+	}
+}
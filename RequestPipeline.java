@@ -0,0 +1,326 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* REQUEST PIPELINING FOR A SINGLE CLIENT CONNECTION :
+ * Lets a client send requests back-to-back without waiting for each response
+ *  - requests are split into lanes, one lane per transaction: requests of the same transaction run one after the other in the order they were received,
+ *    requests of different transactions (and READs) run concurrently on the executor
+ *  - responses are sent back strictly in request order, a finished request waits for every request received before it
+ *  - WRITE, WRITE_BATCH, COMMIT and ABORT requests with TID -1 refer to the most recent NEW_TXN on this connection, so a client can send
+ *    NEW_TXN, its WRITEs and its COMMIT in one go without waiting for the new TID
+ *
+ * As without pipelining, the first error response ends the connection: requests after it are not executed (if they have not started yet)
+ * and their responses are dropped.
+ */
+public class RequestPipeline {
+
+	/* receives responses in request order, never called by two threads at the same time */
+	public interface ResponseSink {
+		/* body: the file region that follows the header of a READ response (the sink sends and closes it), null for every other response
+		 * last: this is an error response, nothing follows and the connection should be closed once it has been sent */
+		void send (String response, FileRegion body, boolean last);
+	}
+
+	private static final int UNASSIGNED = -1;
+
+	private class Slot {
+		private RequestMessage request;
+		private Lane lane;
+		private String response = null;
+		private FileRegion body = null;
+		private boolean error = false;
+		private boolean done = false;
+		private boolean dropped = false; // removed after an earlier error, its response is never sent
+	}
+
+	private class Lane {
+		private final ArrayDeque<Slot> pending = new ArrayDeque<Slot>();
+		private boolean running = false;
+		private long transactionID = UNASSIGNED; // TID created by the NEW_TXN at the head of the lane, once it has executed
+	}
+
+	private final Executor executor;
+	private final ResponseSink sink;
+	private final int maxInFlight;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>(); // received but not sent yet, in request order
+	private final HashMap<Long, Lane> lanes = new HashMap<Long, Lane>(); // lanes that have requests to run, by TID
+	private Lane lastNewTransaction = null;
+	private boolean flushing = false;
+	private boolean failed = false;
+
+	public RequestPipeline (Executor executor, ResponseSink sink, int maxInFlight) {
+		this.executor = executor;
+		this.sink = sink;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/* number of requests received but not answered yet */
+	public int inFlight () {
+		lock.lock();
+		try {
+			return slots.size() + (flushing ? 1 : 0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean hasFailed () {
+		lock.lock();
+		try {
+			return failed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* blocks while maxInFlight requests are waiting for their response (used by blocking front ends to stop reading) */
+	public void awaitCapacity () {
+		lock.lock();
+		try {
+			while (slots.size() >= maxInFlight && !failed) {
+				changed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* blocks until every request received so far has been answered */
+	public void awaitIdle () {
+		lock.lock();
+		try {
+			while (!slots.isEmpty() || flushing) {
+				changed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void submit (RequestMessage request) {
+		Slot slot = new Slot();
+		slot.request = request;
+		boolean start = false;
+
+		lock.lock();
+		try {
+			if (failed) return;
+			slots.add(slot);
+
+			Lane lane;
+			switch (request.getMethod()) {
+			case NEW_TXN:
+				lane = new Lane();
+				lastNewTransaction = lane;
+				break;
+			case READ:
+			case READ_RANGE:
+				lane = new Lane();
+				break;
+			default:
+				if (request.getTransactionID() == -1 && lastNewTransaction != null) {
+					lane = lastNewTransaction;
+				} else {
+					lane = lanes.get(request.getTransactionID());
+					if (lane == null && lastNewTransaction != null && lastNewTransaction.transactionID == request.getTransactionID()) {
+						// requests with TID -1 may still be sent to this lane, the request has to run after them
+						lane = lastNewTransaction;
+						lanes.put(request.getTransactionID(), lane);
+					} else if (lane == null) {
+						lane = new Lane();
+						lane.transactionID = request.getTransactionID();
+						lanes.put(request.getTransactionID(), lane);
+					}
+				}
+				break;
+			}
+
+			slot.lane = lane;
+			lane.pending.add(slot);
+			if (!lane.running) {
+				lane.running = true;
+				start = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (start) {
+			execute(slot.lane);
+		}
+	}
+
+	/* a request that could not be parsed, answered with this error once every request before it has been answered */
+	public void submitError (ServerException error) {
+		Slot slot = new Slot();
+		lock.lock();
+		try {
+			if (failed) return;
+			slot.response = Transaction.buildErrorResponse(error);
+			slot.error = true;
+			slot.done = true;
+			failed = true;
+			slots.add(slot);
+		} finally {
+			lock.unlock();
+		}
+		flush();
+	}
+
+	private void execute (final Lane lane) {
+		executor.execute(new Runnable() {
+			public void run () {
+				runLane(lane);
+			}
+		});
+	}
+
+	private void runLane (Lane lane) {
+		while (true) {
+			Slot slot;
+			boolean skip;
+			lock.lock();
+			try {
+				slot = lane.pending.poll();
+				if (slot == null) {
+					lane.running = false;
+					// an idle lane is not kept for its TID, the next request of the transaction starts a new one
+					if (lane.transactionID != UNASSIGNED && lanes.get(lane.transactionID) == lane) {
+						lanes.remove(lane.transactionID);
+					}
+					return;
+				}
+				skip = failed;
+			} finally {
+				lock.unlock();
+			}
+
+			String response = "";
+			FileRegion body = null;
+			boolean error = false;
+			if (!skip) {
+				try {
+					if (Transaction.isRead(slot.request)) {
+						body = Transaction.processRead(slot.request);
+						response = Transaction.buildReadHeader(slot.request, body);
+					} else {
+						Transaction.Result result = Transaction.processRequest(resolve(slot.request, lane));
+						response = result.getResponse();
+						if (slot.request.getMethod() == RequestMessage.RequestMethod.NEW_TXN) {
+							assignTransaction(lane, result.getTransactionID());
+						}
+					}
+				} catch (ServerException e) {
+					response = Transaction.buildErrorResponse(e);
+					error = true;
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					error = true;
+				}
+			}
+
+			lock.lock();
+			try {
+				slot.response = response;
+				slot.body = body;
+				slot.error = error;
+				slot.done = true;
+				if (error) failed = true;
+				if (slot.dropped && body != null) {
+					body.close();
+				}
+			} finally {
+				lock.unlock();
+			}
+			flush();
+		}
+	}
+
+	/* substitutes the TID created by the lane's NEW_TXN for TID -1 */
+	private RequestMessage resolve (RequestMessage request, Lane lane) {
+		if (request.getTransactionID() != -1 || request.getMethod() == RequestMessage.RequestMethod.NEW_TXN || Transaction.isRead(request)) {
+			return request;
+		}
+		long transactionID;
+		lock.lock();
+		try {
+			transactionID = lane.transactionID;
+		} finally {
+			lock.unlock();
+		}
+		if (transactionID == UNASSIGNED) return request;
+		if (request.getMethod() == RequestMessage.RequestMethod.WRITE_BATCH) {
+			return new RequestMessage(request.getMethod(), transactionID, request.getSequenceNumber(), request.getContentLength(), request.getBatch());
+		}
+		if (request.isStaged()) {
+			return request.withStagedData(transactionID);
+		}
+		return new RequestMessage(request.getMethod(), transactionID, request.getSequenceNumber(), request.getContentLength(), request.getData());
+	}
+
+	/* the lane's NEW_TXN has created its TID */
+	private void assignTransaction (Lane lane, long transactionID) {
+		lock.lock();
+		try {
+			lane.transactionID = transactionID;
+			// requests that name the new TID explicitly join the same lane
+			if (!lanes.containsKey(transactionID)) {
+				lanes.put(transactionID, lane);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* sends every finished response at the head of the pipeline, one thread at a time so the sink sees them in order */
+	private void flush () {
+		while (true) {
+			ArrayList<Slot> ready = new ArrayList<Slot>();
+			lock.lock();
+			try {
+				if (flushing) return;
+				while (!slots.isEmpty() && slots.peek().done) {
+					Slot slot = slots.poll();
+					ready.add(slot);
+					if (slot.error) {
+						// nothing after the first error is sent
+						for (Slot dropped : slots) {
+							dropped.dropped = true;
+							if (dropped.body != null) dropped.body.close();
+						}
+						slots.clear();
+						break;
+					}
+				}
+				if (ready.isEmpty()) return;
+				flushing = true;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				for (Slot slot : ready) {
+					if (slot.error || slot.response.length() > 0) {
+						sink.send(slot.response, slot.body, slot.error);
+					}
+				}
+			} finally {
+				lock.lock();
+				try {
+					flushing = false;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* EVENT-DRIVEN CONNECTION FRONT END :
+ * A small pool of I/O threads multiplexes all client connections with Selectors instead of running one Transaction thread per connection
+ *  - I/O threads read whatever bytes are available into the connection's RequestParser window and parse complete request messages
+ *  - complete requests are executed by a bounded worker pool (Transaction.processRequest), one request at a time per connection
+ *  - responses are queued on the connection and written back by its I/O thread, the body of a READ response is sent from the file with transferTo
+ * An idle connection only costs its channel, its parser window and a small bookkeeping object
+ *
+ * With -pipeline, the requests of a connection are handed to a RequestPipeline instead, which runs independent transactions concurrently
+ *
+ * Connections that do not carry client requests (replication traffic between the primary and the backup) are handed off to a blocking Transaction thread
+ */
+public class SelectorServer {
+
+	private static final int MAX_QUEUED_REQUESTS = 64; // stop reading from a connection that has this many requests waiting to be executed
+
+	private final InetAddress bindAddr;
+	private final int port;
+	private final IOThread[] ioThreads;
+	private final ThreadPoolExecutor workers;
+	private final AtomicInteger nextIOThread = new AtomicInteger();
+
+	public SelectorServer (InetAddress bindAddr, int port, int ioThreadCount, int workerCount) throws IOException {
+		this.bindAddr = bindAddr;
+		this.port = port;
+
+		ioThreads = new IOThread[Math.max(1, ioThreadCount)];
+		for (int i = 0; i < ioThreads.length; i++) {
+			ioThreads[i] = new IOThread();
+		}
+
+		// the queue needs no bound of its own: a connection stops being read from (OP_READ cleared, see Connection.interestOps) while
+		// MAX_QUEUED_REQUESTS of its requests or too much of its staged data are waiting, so each connection only ever has a few tasks queued
+		// and a request is never executed by an I/O thread
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	/* binds the listening socket and serves connections, never returns unless the server socket fails */
+	public void run () throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(bindAddr, port));
+		serverChannel.configureBlocking(false);
+
+		for (int i = 1; i < ioThreads.length; i++) {
+			Thread thread = new Thread(ioThreads[i], "SelectorServer-IO-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// the first I/O thread also accepts new connections
+		serverChannel.register(ioThreads[0].selector, SelectionKey.OP_ACCEPT);
+		ioThreads[0].run();
+	}
+
+	private void accept (ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setReuseAddress(true);
+
+			InetSocketAddress peer = FileServer.getPeerAddress();
+			boolean fromPeer = peer != null && channel.socket().getInetAddress().equals(peer.getAddress()) && channel.socket().getPort() == peer.getPort();
+
+			if (!FileServer.isPrimary() || fromPeer) {
+				// replication traffic (and connections refused by the backup) keep using blocking streams
+				channel.configureBlocking(true);
+				FileServer.acceptConnection(channel.socket());
+				continue;
+			}
+
+			channel.configureBlocking(false);
+			IOThread ioThread = ioThreads[Math.abs(nextIOThread.getAndIncrement() % ioThreads.length)];
+			ioThread.register(channel);
+		}
+	}
+
+	/* client connection state, all fields are guarded by the connection itself */
+	private class Connection {
+		private final SocketChannel channel;
+		private final IOThread ioThread;
+		private SelectionKey key;
+		private final RequestParser parser; // only used by the I/O thread
+		private final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+		private final RequestPipeline pipeline; // executes the requests instead of a Worker when pipelining is enabled, null otherwise
+		private final ArrayDeque<Response> responses = new ArrayDeque<Response>();
+		private boolean executing = false;
+		private boolean closeAfterWrite = false;
+		private boolean parseFailed = false; // nothing after a malformed request is read
+		private boolean closed = false;
+
+		private Connection (SocketChannel channel, IOThread ioThread) {
+			this.channel = channel;
+			this.ioThread = ioThread;
+			// the data of streamed WRITEs is written to their staging files by the workers, the I/O thread never touches a file
+			this.parser = new RequestParser(workers, new Runnable() {
+				public void run () {
+					Connection.this.ioThread.updateInterest(Connection.this);
+				}
+			});
+			if (FileServer.isPipelined()) {
+				pipeline = new RequestPipeline(workers, new RequestPipeline.ResponseSink() {
+					public void send (String response, FileRegion body, boolean last) {
+						synchronized (Connection.this) {
+							if (closed) {
+								if (body != null) body.close();
+								return;
+							}
+							if (response.length() > 0) {
+								responses.add(new Response(response, body));
+							}
+							if (last) closeAfterWrite = true;
+						}
+						Connection.this.ioThread.updateInterest(Connection.this);
+					}
+				}, MAX_QUEUED_REQUESTS);
+			} else {
+				pipeline = null;
+			}
+		}
+
+		/* called by the I/O thread with every complete request message (or parse error) */
+		private void enqueue (Request request) {
+			boolean start = false;
+			synchronized (this) {
+				if (closeAfterWrite || closed) return;
+				if (pipeline == null) requests.add(request);
+				if (pipeline == null && !executing) {
+					executing = true;
+					start = true;
+				}
+			}
+			if (pipeline != null) {
+				if (request.error != null) {
+					pipeline.submitError(request.error);
+				} else {
+					pipeline.submit(request.message);
+				}
+			} else if (start) {
+				workers.execute(new Worker(this));
+			}
+		}
+
+		/* called by a worker once it is done with a request, returns the next request to execute (if any) */
+		private Request finished (String response, FileRegion body, boolean error) {
+			synchronized (this) {
+				if (closed) {
+					if (body != null) body.close();
+				} else if (response.length() > 0) {
+					responses.add(new Response(response, body));
+				}
+				if (error) {
+					// a request that could not be executed ends the connection (same as a Transaction thread)
+					closeAfterWrite = true;
+					requests.clear();
+				}
+				Request next = requests.poll();
+				executing = next != null;
+				ioThread.updateInterest(this);
+				return next;
+			}
+		}
+
+		/* requests that have been received but not answered yet */
+		private synchronized boolean busy () {
+			return executing || (pipeline != null && pipeline.inFlight() > 0);
+		}
+
+		private synchronized int interestOps () {
+			int ops = 0;
+			int queued = pipeline != null ? pipeline.inFlight() : requests.size();
+			if (!closeAfterWrite && !parseFailed && queued < MAX_QUEUED_REQUESTS && !parser.isStagingBacklogged()) ops |= SelectionKey.OP_READ;
+			if (!responses.isEmpty()) ops |= SelectionKey.OP_WRITE;
+			return ops;
+		}
+	}
+
+	/* a parsed request, or the error that ended parsing, in the order they were received */
+	private static class Request {
+		private final RequestMessage message;
+		private final ServerException error;
+
+		private Request (RequestMessage message, ServerException error) {
+			this.message = message;
+			this.error = error;
+		}
+	}
+
+	/* a response waiting to be written: the header, followed by the file region of a READ response (null for every other response) */
+	private static class Response {
+		private final ByteBuffer header;
+		private final FileRegion body;
+
+		private Response (String header, FileRegion body) {
+			this.header = ByteBuffer.wrap(header.getBytes());
+			this.body = body;
+		}
+	}
+
+	/* executes the requests of a single connection in the order they were received */
+	private class Worker implements Runnable {
+		private final Connection connection;
+
+		private Worker (Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run () {
+			Request request;
+			synchronized (connection) {
+				request = connection.requests.poll();
+			}
+
+			while (request != null) {
+				String response;
+				FileRegion body = null;
+				boolean error = false;
+				try {
+					if (request.error != null) throw request.error;
+					if (Transaction.isRead(request.message)) {
+						body = Transaction.processRead(request.message);
+						response = Transaction.buildReadHeader(request.message, body);
+					} else {
+						response = Transaction.processRequest(request.message).getResponse();
+					}
+				} catch (ServerException e) {
+					response = Transaction.buildErrorResponse(e);
+					error = true;
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					response = "";
+					error = true;
+				}
+				request = connection.finished(response, body, error);
+			}
+		}
+	}
+
+	private class IOThread implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private IOThread () throws IOException {
+			selector = Selector.open();
+		}
+
+		private void register (final SocketChannel channel) {
+			final IOThread ioThread = this;
+			tasks.add(new Runnable() {
+				public void run() {
+					Connection connection = new Connection(channel, ioThread);
+					try {
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch (ClosedChannelException e) {
+						close(connection);
+					}
+				}
+			});
+			selector.wakeup();
+		}
+
+		/* asks the I/O thread to recompute the events it waits for on the connection */
+		private void updateInterest (final Connection connection) {
+			tasks.add(new Runnable() {
+				public void run() {
+					if (connection.key == null || !connection.key.isValid()) return;
+					int ops = connection.interestOps();
+					synchronized (connection) {
+						if (ops == 0 && connection.closeAfterWrite && connection.responses.isEmpty() && !connection.busy()) {
+							close(connection);
+							return;
+						}
+					}
+					connection.key.interestOps(ops);
+				}
+			});
+			selector.wakeup();
+		}
+
+		@Override
+		public void run () {
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					System.err.println("IOException: " + e.getMessage());
+					continue;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					try {
+						if (!key.isValid()) continue;
+
+						if (key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel());
+							continue;
+						}
+
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(connection);
+						}
+					} catch (IOException e) {
+						if (key.attachment() instanceof Connection) {
+							close((Connection) key.attachment());
+						}
+					}
+				}
+			}
+		}
+
+		private void read (Connection connection) throws IOException {
+			int bytesRead = connection.parser.readFrom(connection.channel);
+			if (bytesRead == -1) {
+				try {
+					connection.parser.checkEndOfStream();
+				} catch (ServerException e) {
+					connection.parseFailed = true;
+					connection.enqueue(new Request(null, e));
+				}
+				synchronized (connection) {
+					connection.closeAfterWrite = true;
+				}
+				updateInterest(connection);
+				return;
+			}
+			if (bytesRead == 0) return;
+
+			try {
+				RequestMessage request;
+				while ((request = connection.parser.poll()) != null) {
+					connection.enqueue(new Request(request, null));
+				}
+			} catch (ServerException e) {
+				connection.parseFailed = true;
+				connection.enqueue(new Request(null, e));
+			}
+
+			connection.key.interestOps(connection.interestOps());
+		}
+
+		private void write (Connection connection) throws IOException {
+			synchronized (connection) {
+				while (!connection.responses.isEmpty()) {
+					Response response = connection.responses.peek();
+					if (response.header.hasRemaining()) {
+						connection.channel.write(response.header);
+						if (response.header.hasRemaining()) break;
+					}
+					if (response.body != null) {
+						response.body.transferTo(connection.channel);
+						if (!response.body.isDone()) break;
+						response.body.close();
+					}
+					connection.responses.poll();
+				}
+
+				if (connection.responses.isEmpty() && connection.closeAfterWrite && !connection.busy()) {
+					close(connection);
+					return;
+				}
+			}
+			connection.key.interestOps(connection.interestOps());
+		}
+
+		private void close (Connection connection) {
+			synchronized (connection) {
+				if (connection.closed) return;
+				connection.closed = true;
+				connection.requests.clear();
+				for (Response response : connection.responses) {
+					if (response.body != null) response.body.close();
+				}
+				connection.responses.clear();
+			}
+			if (connection.key != null) {
+				connection.key.cancel();
+			}
+			connection.parser.discard();
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				// muted exception, no need to escalate
+			}
+		}
+	}
+}
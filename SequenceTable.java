@@ -0,0 +1,152 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* WRITES OF A TRANSACTION BY SEQUENCE NUMBER :
+ * Table of the WRITEs a transaction has received, indexed by their sequence number (1, 2, ...), that answers the questions a
+ * transaction asks on every WRITE without scanning its WRITEs
+ *  - the sequence numbers are split into pages of PAGE_SIZE, a page holds its WRITEs in an array (the index of a WRITE is its sequence number
+ *    within the page) and a bitmap of the sequence numbers it has, a page is only allocated once it receives a WRITE
+ *  - the pages are kept in a map by page number, a client that picks a huge sequence number only costs the table that one page
+ *  - largest() is the largest sequence number received, complete(n) tells whether every sequence number up to n has been received: both are
+ *    kept up to date as WRITEs are added (complete is answered from the length of the gap-free prefix, which only ever grows)
+ *  - missing(n) lists the gaps up to n, skipping over the gap-free prefix, full pages and whole words of the bitmaps
+ *  - writes(n) returns the WRITEs up to n in sequence order, without a lookup per sequence number
+ * Not thread-safe, LogRecord synchronizes access to it.
+ */
+public class SequenceTable implements Serializable {
+
+	private static final long serialVersionUID = 6812200516418203321L;
+
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private static class Page implements Serializable {
+		private static final long serialVersionUID = -2841870954713329530L;
+
+		private final LogRecord[] writes = new LogRecord[PAGE_SIZE];
+		private final long[] present = new long[PAGE_SIZE / 64];
+		private int count = 0;
+
+		private boolean has (int index) {
+			return (present[index >>> 6] & (1L << index)) != 0;
+		}
+	}
+
+	private final TreeMap<Integer, Page> pages = new TreeMap<Integer, Page>();
+	private int size = 0;
+	private int largest = 0;
+	private int prefix = 0; // every sequence number from 1 to prefix has been received
+
+	public boolean contains (int sequenceNumber) {
+		Page page = page(sequenceNumber);
+		return page != null && page.has(sequenceNumber & PAGE_MASK);
+	}
+
+	public LogRecord get (int sequenceNumber) {
+		Page page = page(sequenceNumber);
+		return page == null ? null : page.writes[sequenceNumber & PAGE_MASK];
+	}
+
+	/* adds (or replaces) the WRITE with the sequence number */
+	public void put (int sequenceNumber, LogRecord write) {
+		if (sequenceNumber <= 0) {
+			throw new IllegalArgumentException("Sequence number must be > 0: " + sequenceNumber);
+		}
+		int pageNumber = sequenceNumber >>> PAGE_BITS;
+		Page page = pages.get(pageNumber);
+		if (page == null) {
+			page = new Page();
+			pages.put(pageNumber, page);
+		}
+
+		int index = sequenceNumber & PAGE_MASK;
+		page.writes[index] = write;
+		if (page.has(index)) return;
+		page.present[index >>> 6] |= 1L << index;
+		page.count++;
+		size++;
+		largest = Math.max(largest, sequenceNumber);
+		while (prefix < largest && contains(prefix + 1)) {
+			prefix++;
+		}
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/* the largest sequence number received, 0 if none */
+	public int largest () {
+		return largest;
+	}
+
+	/* true if every sequence number from 1 to upTo has been received */
+	public boolean complete (int upTo) {
+		return prefix >= upTo;
+	}
+
+	/* the sequence numbers from 1 to upTo that have not been received, in order */
+	public ArrayList<Integer> missing (int upTo) {
+		ArrayList<Integer> missing = new ArrayList<Integer>();
+		int sequenceNumber = prefix + 1;
+		while (sequenceNumber <= upTo) {
+			Page page = page(sequenceNumber);
+			int pageEnd = Math.min(upTo, (sequenceNumber | PAGE_MASK));
+			if (page == null) {
+				for (; sequenceNumber <= pageEnd; sequenceNumber++) {
+					missing.add(sequenceNumber);
+				}
+				continue;
+			}
+			if (page.count == PAGE_SIZE) {
+				sequenceNumber = pageEnd + 1;
+				continue;
+			}
+			while (sequenceNumber <= pageEnd) {
+				int index = sequenceNumber & PAGE_MASK;
+				long absent = ~page.present[index >>> 6] & (-1L << index); // sequence numbers of this word, from index on, that are missing
+				if (absent == 0) {
+					sequenceNumber = (sequenceNumber | 63) + 1;
+					continue;
+				}
+				sequenceNumber += Long.numberOfTrailingZeros(absent) - (index & 63);
+				if (sequenceNumber <= pageEnd) {
+					missing.add(sequenceNumber++);
+				}
+			}
+		}
+		return missing;
+	}
+
+	/* the WRITEs with sequence numbers from 1 to upTo, in sequence order */
+	public ArrayList<LogRecord> writes (int upTo) {
+		ArrayList<LogRecord> writes = new ArrayList<LogRecord>(Math.min(size, Math.max(0, upTo)));
+		int last = Math.min(upTo, largest);
+		if (last <= 0) return writes;
+		for (Map.Entry<Integer, Page> entry : pages.headMap(last >>> PAGE_BITS, true).entrySet()) {
+			int pageNumber = entry.getKey();
+			Page page = entry.getValue();
+			int end = pageNumber == (last >>> PAGE_BITS) ? (last & PAGE_MASK) : PAGE_MASK;
+			for (int index = 0; index <= end; index++) {
+				LogRecord write = page.writes[index];
+				if (write != null) {
+					writes.add(write);
+				}
+			}
+		}
+		return writes;
+	}
+
+	/* every WRITE received, in sequence order */
+	public ArrayList<LogRecord> values () {
+		return writes(largest);
+	}
+
+	private Page page (int sequenceNumber) {
+		if (sequenceNumber <= 0) return null;
+		return pages.get(sequenceNumber >>> PAGE_BITS);
+	}
+}
@@ -0,0 +1,15 @@
+public class ServerException extends Exception {
+	
+	private static final long serialVersionUID = 1L;
+	
+	ClientServerProtocol.Error type;
+	
+	public ServerException (String error, ClientServerProtocol.Error type) {
+		super(error);
+		this.type = type;
+	}
+	
+	public ClientServerProtocol.Error getError () {
+		return type;
+	}
+}
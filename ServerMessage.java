@@ -4,13 +4,14 @@ public class ServerMessage implements Serializable {
 	
     private static final long serialVersionUID = 5950169519310163654L;
 	private int commitLSN;
-	private int transactionID;
+	private long transactionID;
 	private ResponseMethod responseMethod;
 	private RequestMethod requestMethod;
 	
 	public enum ResponseMethod {
 		ASK_RESEND,
-		ACK;
+		ACK,
+		RECEIVED; // the backup has received a COMMIT but not applied it yet (semi-synchronous replication)
 		
 		public static ResponseMethod fromString (String method) {
 			if (method != null) {
@@ -58,7 +59,7 @@ public class ServerMessage implements Serializable {
 		responseMethod = method;
 	}
 	
-	public int getTransactionID () {
+	public long getTransactionID () {
 		return transactionID;
 	}
 	
@@ -0,0 +1,225 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* ASYNCHRONOUS STAGING :
+ * Writes the data of a streamed WRITE received by the nio front end to its staging file on an executor, the selector thread that receives
+ * the data never touches the file (see RequestParser)
+ *  - the I/O thread hands over the data in chunks as it arrives (copied out of the parser window), the chunks are written in order by one
+ *    task at a time, the staging file is created by the first one
+ *  - once every chunk has been handed over, the file is forced to disk and closed: the worker that executes the WRITE waits for it (await)
+ *  - the data handed over but not written yet is bounded: the I/O thread stops reading from the connection while it is more than
+ *    MAX_PENDING_BYTES, and is told (drained) when it is no longer
+ *  - a WRITE that is abandoned before all of its data has been received (the connection is closed), or that cannot be written, has its
+ *    staging file deleted by the executor
+ */
+public class StagingWriter implements Runnable {
+
+	private static final long MAX_PENDING_BYTES = 1024 * 1024; // UNIT: bytes
+
+	private final Executor executor;
+	private final Runnable drained; // called once the data waiting to be written is no longer over MAX_PENDING_BYTES
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition done = lock.newCondition();
+
+	// guarded by lock
+	private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+	private long pendingBytes = 0;
+	private boolean running = false; // a task is writing the chunks
+	private boolean complete = false; // every chunk has been handed over
+	private boolean aborted = false;
+	private boolean closed = false; // the staging file is on disk, or has been deleted (aborted or failed)
+	private IOException failure = null;
+	private File file = null;
+
+	private FileChannel channel = null; // used by the running task only
+
+	public StagingWriter (Executor executor, Runnable drained) {
+		this.executor = executor;
+		this.drained = drained;
+	}
+
+	/* I/O THREAD: hands over the next chunk of the WRITE's data */
+	public void write (byte[] chunk) {
+		lock.lock();
+		try {
+			if (aborted || failure != null) return;
+			chunks.add(ByteBuffer.wrap(chunk));
+			pendingBytes += chunk.length;
+			schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* I/O THREAD: every chunk has been handed over */
+	public void finish () {
+		lock.lock();
+		try {
+			complete = true;
+			schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* I/O THREAD: the WRITE will never be completed, its staging file is deleted */
+	public void abort () {
+		lock.lock();
+		try {
+			if (complete) return;
+			aborted = true;
+			schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* I/O THREAD: true while too much data is waiting to be written, the connection should not be read from */
+	public boolean isBacklogged () {
+		lock.lock();
+		try {
+			return pendingBytes > MAX_PENDING_BYTES;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* WORKER: returns the staging file once all of the data has been forced to disk */
+	public File await () throws ServerException {
+		lock.lock();
+		try {
+			while (!closed) {
+				done.awaitUninterruptibly();
+			}
+			if (failure != null) {
+				throw new ServerException("Unable to stage the data of the WRITE: " + failure.getMessage(), ClientServerProtocol.Error.FILE_IO_ERROR);
+			}
+			return file;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// lock must be held
+	private void schedule () {
+		if (running || closed) return;
+		running = true;
+		executor.execute(this);
+	}
+
+	@Override
+	public void run () {
+		while (true) {
+			ByteBuffer chunk;
+			boolean stop;
+			lock.lock();
+			try {
+				stop = aborted || failure != null;
+				chunk = stop ? null : chunks.poll();
+				if (!stop && chunk == null && !complete) {
+					running = false;
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (stop) {
+				delete();
+				return;
+			}
+
+			try {
+				if (channel == null) {
+					File created = FileServer.newStagingFile();
+					lock.lock();
+					try {
+						file = created;
+					} finally {
+						lock.unlock();
+					}
+					channel = FileChannel.open(created.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				}
+				if (chunk == null) {
+					// every chunk has been written
+					channel.force(true);
+					channel.close();
+					channel = null;
+					lock.lock();
+					try {
+						closed = true;
+						running = false;
+						done.signalAll();
+					} finally {
+						lock.unlock();
+					}
+					return;
+				}
+				while (chunk.hasRemaining()) {
+					channel.write(chunk);
+				}
+			} catch (IOException e) {
+				lock.lock();
+				try {
+					failure = e;
+				} finally {
+					lock.unlock();
+				}
+				continue;
+			}
+
+			boolean resume;
+			lock.lock();
+			try {
+				resume = pendingBytes > MAX_PENDING_BYTES && pendingBytes - chunk.capacity() <= MAX_PENDING_BYTES;
+				pendingBytes -= chunk.capacity();
+			} finally {
+				lock.unlock();
+			}
+			if (resume) {
+				drained.run();
+			}
+		}
+	}
+
+	/* drops the data of an abandoned or failed WRITE */
+	private void delete () {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// muted exception, no need to escalate
+			}
+			channel = null;
+		}
+		boolean resume;
+		File toDelete;
+		lock.lock();
+		try {
+			resume = pendingBytes > MAX_PENDING_BYTES;
+			chunks.clear();
+			pendingBytes = 0;
+			closed = true;
+			running = false;
+			toDelete = file;
+			done.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (toDelete != null) {
+			toDelete.delete();
+		}
+		if (resume) {
+			drained.run();
+		}
+	}
+}
@@ -1,19 +1,38 @@
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
 
-public class Transaction extends Thread {
+public class Transaction implements Runnable {
 
 	private Socket clientSocket = null;
-	private PushbackInputStream pbis = null;
-	private DataInputStream in = null;
+	private RequestParser parser = null;
 	private PrintWriter out = null;
+	private WritableByteChannel outChannel = null; // READ bodies are transferred to this channel, after the header has been flushed through out
 	private ByteArrayOutputStream os = null;
 	private static final int IGNORE = -1; 
+	private static final int MAX_PIPELINED_REQUESTS = 64; // stop reading from a pipelined connection that has this many requests waiting for a response
 	private static final Object mutex = new Object();
-	private static Lock commitQueue = new ReentrantLock(true);
+	
+	/* what processRequest returns: the response(s) to send back, and the TID the request ran in (the new TID for a NEW_TXN) */
+	public static class Result {
+		private final String response;
+		private final long transactionID;
+		
+		private Result (String response, long transactionID) {
+			this.response = response;
+			this.transactionID = transactionID;
+		}
+		
+		public String getResponse () {
+			return response;
+		}
+		
+		public long getTransactionID () {
+			return transactionID;
+		}
+	}
 
 
 	public Transaction (Socket clientSocket) {
@@ -24,9 +43,10 @@ public class Transaction extends Thread {
 			this.clientSocket.setTcpNoDelay(true);
 			this.clientSocket.setReuseAddress(true);
 			//this.clientSocket.setSoTimeout(FileServer.getTimeout());
-			pbis = new PushbackInputStream(this.clientSocket.getInputStream(), 1);
-			in = new DataInputStream(pbis);
+			parser = new RequestParser(this.clientSocket.getInputStream());
 			out = new PrintWriter(this.clientSocket.getOutputStream(),true);
+			// sockets accepted by a ServerSocketChannel get sendfile, any other socket a bounded copy through a small buffer
+			outChannel = this.clientSocket.getChannel() != null ? this.clientSocket.getChannel() : Channels.newChannel(this.clientSocket.getOutputStream());
 		} catch (SocketException e) {
 			System.err.println ("SocketException: " + e.getMessage());
 		} catch (IOException e) {
@@ -35,144 +55,29 @@ public class Transaction extends Thread {
 	}
 
 	
-	/* Called to send COMMIT requests to the backup for replication */
+	/* Called to send COMMIT requests to the backup for replication: the transaction is shipped over the long-lived replication channel,
+	 * returns once the backup has acknowledged it (or the backup did not answer in time) */
 	public static void backupSYNC (LogRecord transactionRecord) {
-		commitQueue.lock();
-		try {
-			if (transactionRecord.hasReceivedBackupACK()) return;
-			int timeout = 600;
-			FileServer.commitPort = FileServer.findFreePort(); // port primary will use to send COMMIT requests to the backup (and receive the corresponding ACK's)
-			FileServer.updatePrimary(FileServer.bindAddr, FileServer.port, FileServer.primaryFile);
-
-			InetSocketAddress peerAddress = FileServer.getPeerAddress();
-			System.out.println(String.format("Try to send COMMIT for (TID:%d, CLSN:%d) to backup", transactionRecord.getTransactionID(), transactionRecord.getCommitLSN()));
-			Socket socket = null;
-			ObjectOutputStream os;
-			ObjectInputStream inputStream;
-			ServerMessage response;
-
-			try {
-				socket = new Socket();
-				socket.bind(new InetSocketAddress(FileServer.bindAddr, FileServer.commitPort));
-				//socket = new Socket(peerAddress.getAddress(), peerAddress.getPort());
-				//FileServer.commitSocket = new Socket();
-				socket.connect(new InetSocketAddress(peerAddress.getAddress(), peerAddress.getPort()));
-				socket.setTcpNoDelay(true);
-				socket.setReuseAddress(true);
-				socket.setSoTimeout(timeout);
-
-				os = new ObjectOutputStream(socket.getOutputStream());
-				os.writeObject(transactionRecord);
-				os.flush();
-
-				inputStream = new ObjectInputStream(socket.getInputStream());
-
-				while (true) {
-					response = (ServerMessage) inputStream.readObject();
-					switch (response.getResponseMethod()) {
-					case ACK:
-						if (response.getCommitLSN() == transactionRecord.getCommitLSN()) {
-							System.out.println(String.format("Received ACK for (TID:%d, CLSN:%d) from backup", transactionRecord.getTransactionID(), response.getCommitLSN()));
-							transactionRecord.setBackupACK(true);
-							return;
-						}
-						break;
-					case ASK_RESEND:
-						int expectedLSN = response.getCommitLSN();
-						LogRecord toSend = FileServer.getRecordByCommitLSN(expectedLSN);
-						System.out.println("Received ASK_RESEND request for CLSN: " + expectedLSN);
-						os.writeObject(toSend);
-						os.flush();
-						break;
-					default:
-						break;
-
-					}
-				}
-
-			} catch (SocketTimeoutException e) {
-				//System.err.println("No response received from backup after " + timeout + "ms , timing out.");
-				return;
-			} catch (IOException e) {
-//				System.err.println(e.getMessage());
-//				System.err.println("Unable to connect to backup, continue...");
-				return;
-			} catch (ClassNotFoundException e) {
-				// this should never happen
-			} finally {
-				if (socket != null) {
-					try {
-						socket.close();
-					} catch (IOException e) {
-					}
-				}
-			}
-		} finally {
-			commitQueue.unlock();
-		}
+		if (transactionRecord.hasReceivedBackupACK()) return;
+		FileServer.getReplicationChannel().replicate(transactionRecord);
 	}
 
 	@Override
 	public void run () {
 		
-		// if you are the backup, listen for COMMIT requests from the primary 
+		// if you are the backup, apply the COMMITs the primary streams over the replication channel until it closes the connection
 		if (!FileServer.isPrimary()) {
-			ServerMessage message = null;
-			ObjectOutputStream oos = null;
-			ObjectInputStream inputStream = null;
-			
 			try {
-				inputStream = new ObjectInputStream(clientSocket.getInputStream());
-				oos = new ObjectOutputStream(clientSocket.getOutputStream());
-				LogRecord logRecord = (LogRecord) inputStream.readObject();
-				System.out.println("Received CLSN: " + logRecord.getCommitLSN());
-				// ensures that commit records are received and applied in proper order
-				int expectedLSN = LogRecord.getCurrentLSN()+1;
-				int receivedLSN = logRecord.getCommitLSN();
-				while (expectedLSN != receivedLSN) {
-					System.out.println("Sending ASK_RESEND for LSN: " + expectedLSN);
-					message = new ServerMessage(ServerMessage.ResponseMethod.ASK_RESEND, expectedLSN);
-					oos.writeObject(message);
-					oos.flush();
-					logRecord = (LogRecord) inputStream.readObject();
-					receivedLSN = logRecord.getCommitLSN();
-					System.out.println("Waiting for commitLSN: " + expectedLSN + " to arrive, received: " + logRecord.getCommitLSN());
-//					try {
-//						Thread.currentThread().sleep(10);
-//					} catch (InterruptedException e) {
-//						// TODO Auto-generated catch block
-//						e.printStackTrace();
-//					}
-				}
-				FileServer.manageFile(logRecord.getFileName());
-				LogRecord.setLSN(logRecord.getCommitLSN());
-				LogRecord newRecord = new LogRecord (
-						RequestMessage.RequestMethod.COMMIT, 
-						logRecord.getTransactionID(), 
-						logRecord.getSequenceNumber(), 
-						null, 
-						null);
-				FileServer.transactionDB.put(logRecord.getTransactionID(), logRecord);
-				FileServer.commitDB.put(logRecord.getCommitLSN(), logRecord);
-				FileServer.addCommit(logRecord.getTransactionID());
-				FileServer.processCommits();
-				//FileServer.addLog(newRecord);
-				message = new ServerMessage(ServerMessage.ResponseMethod.ACK, logRecord.getCommitLSN());
-				oos.writeObject(message);
-				oos.flush();
-				logRecord.setBackupACK(true);
-				return;
-				
+				ReplicationChannel.serve(clientSocket);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-			} catch (ClassNotFoundException e) {
-				// TODO Auto-generated catch block
+				// connection to the primary lost, it reconnects and resumes from the last applied commit LSN
 			} finally {
 				try {
 					clientSocket.close();
 				} catch (IOException e) {
 				}
 			}
+			return;
 		}
 		
 		// check if request message is from the backup - assuming you are currently the primary server 
@@ -180,35 +85,24 @@ public class Transaction extends Thread {
 		if (FileServer.isPrimary() && (clientSocket.getInetAddress().equals(FileServer.getPeerAddress().getAddress()) && clientSocket.getPort() == FileServer.getPeerAddress().getPort())) {
 			try {
 				ServerMessage message = null;
-				ObjectOutputStream oos = null;
-				ObjectInputStream inputStream = null;
+				DataOutputStream oos = null;
+				DataInputStream inputStream = null;
 				clientSocket.setSoTimeout(1200);
 				try {
-					inputStream = new ObjectInputStream(clientSocket.getInputStream());
-					oos = new ObjectOutputStream(clientSocket.getOutputStream());
-					message = (ServerMessage) inputStream.readObject();
+					inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+					oos = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+					message = ReplicationCodec.readMessage(inputStream);
 				} catch (IOException e) {
 					return;
-				} catch (ClassNotFoundException e) {
-					return;
 				}
 
 				switch (message.getRequestMethod()) {
 				case SYNC:
-					int backupLSN = message.getCommitLSN()+1;
-					LogRecord record;
-					ArrayList<LogRecord> missingTransactions = new ArrayList<LogRecord>();
-					for (int i = backupLSN; i <= LogRecord.getCurrentLSN(); i++) {
-						record = FileServer.getRecordByCommitLSN (i);
-						missingTransactions.add(record);
-					}
-
 					try {
-						oos.reset();
-						oos.writeObject(missingTransactions);
-						oos.flush();
+						ReplicationChannel.sendCatchUp(clientSocket, inputStream, oos, message.getCommitLSN());
 					} catch (IOException e) {
-						e.printStackTrace();
+						// the backup resumes with a new SYNC from the last commit it applied
+						System.err.println("SYNC with the backup interrupted: " + e.getMessage());
 						return;
 					}
 
@@ -231,224 +125,421 @@ public class Transaction extends Thread {
 		} 
 		
 
-		LogRecord log;
-		LogRecord newRecord;
-		
+		if (FileServer.isPipelined()) {
+			runPipelined();
+			return;
+		}
+
 		try {
 			
-			int singleByte;
-			while ((singleByte = pbis.read()) != -1) {
+			RequestMessage request;
+			while ((request = parser.readRequest()) != null) {
 				
 				//this.clientSocket.setSoTimeout(FileServer.getTimeout());
 				
-				pbis.unread(singleByte);
-
-				RequestMessage request = ClientServerProtocol.parseMessage(in);
-				int transactionID = request.getTransactionID();
+				if (isRead(request)) {
+					sendRead(request, processRead(request));
+					continue;
+				}
+				
+				String response = processRequest(request).getResponse();
+				
+				if (response.length() > 0) {
+					out.print(response); 
+					out.flush();
+				}
+			}
+		} catch (ServerException e) {
+			out.print(buildErrorResponse(e));
+			out.flush();
 
-				switch (request.getMethod()) {
-				case ABORT:
-				{
-					log = FileServer.getLog(transactionID);
+		} 
+		catch (SocketTimeoutException e) {
+			System.err.println("No more data coming from client, server timed out after " + FileServer.getTimeout() + "ms : " + e.getMessage());
 
-					if (log.hasCommitted()) {
-						throw new ServerException(String.format("TID: %d has committed, you cannot ABORT a commited transaction.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+		} 
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.print("IOException: " + e.getMessage());
+		}
+	}
+	
+	/* reads requests as fast as the client sends them and lets a RequestPipeline execute them, responses are written in request order */
+	private void runPipelined () {
+		RequestPipeline pipeline = new RequestPipeline(FileServer.getPipelineExecutor(), new RequestPipeline.ResponseSink() {
+			public void send (String response, FileRegion body, boolean last) {
+				if (body != null) {
+					try {
+						sendRead(response, body);
+					} catch (IOException e) {
+						// the client is gone, the reader finds out as well
 					}
+					return;
+				}
+				out.print(response);
+				out.flush();
+				if (last) {
+					// nothing is read after an error, unblock the reader
+					try {
+						clientSocket.shutdownInput();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}, MAX_PIPELINED_REQUESTS);
 
-					newRecord = new LogRecord (
-							request.getMethod(), 
-							transactionID, 
-							IGNORE, 
-							null, 
-							null);
+		try {
+			RequestMessage request;
+			while (!pipeline.hasFailed() && (request = parser.readRequest()) != null) {
+				pipeline.awaitCapacity();
+				pipeline.submit(request);
+			}
+		} catch (ServerException e) {
+			pipeline.submitError(e);
+		} catch (SocketTimeoutException e) {
+			System.err.println("No more data coming from client, server timed out after " + FileServer.getTimeout() + "ms : " + e.getMessage());
+		} catch (IOException e) {
+			if (!pipeline.hasFailed()) {
+				System.out.print("IOException: " + e.getMessage());
+			}
+		}
+
+		// responses of requests still executing are sent before the thread ends
+		pipeline.awaitIdle();
+	}
+	
+	/* sends a READ response: the header through out, then the file body straight from the file to the socket */
+	private void sendRead (RequestMessage request, FileRegion body) throws IOException {
+		sendRead(buildReadHeader(request, body), body);
+	}
+	
+	private void sendRead (String header, FileRegion body) throws IOException {
+		try {
+			out.print(header);
+			out.flush();
+			body.transferFully(outChannel);
+		} finally {
+			body.close();
+		}
+	}
+	
+	public static boolean isRead (RequestMessage request) {
+		return request.getMethod() == RequestMessage.RequestMethod.READ || request.getMethod() == RequestMessage.RequestMethod.READ_RANGE;
+	}
+	
+	/* Executes a READ or READ_RANGE request, the response is the header returned by buildReadHeader followed by the returned region, 
+	 * which the caller sends with FileRegion.transferTo and closes (the file is never loaded into memory) */
+	public static FileRegion processRead (RequestMessage request) throws ServerException {
+		if (request.getMethod() == RequestMessage.RequestMethod.READ_RANGE) {
+			return FileServer.openFile(request.getData(), request.getRangeOffset(), request.getRangeLength());
+		}
+		return FileServer.openFile(request.getData());
+	}
+	
+	/* the ACK of a READ_RANGE carries the offset of its first byte in the tid field and the length of the committed file in the sequence number field,
+	 * so a client tailing the file asks for the range starting at offset + content length next */
+	public static String buildReadHeader (RequestMessage request, FileRegion body) {
+		boolean range = request.getMethod() == RequestMessage.RequestMethod.READ_RANGE;
+		return ClientServerProtocol.buildResponseHeader(
+				ClientServerProtocol.ResponseMethod.ACK, 
+				range ? body.getOffset() : IGNORE, 
+				range ? body.getFileLength() : IGNORE, 
+				ClientServerProtocol.Error.NONE, 
+				body.getLength());
+	}
+	
+	public static String buildErrorResponse (ServerException e) {
+		return ClientServerProtocol.buildResponse(
+				ClientServerProtocol.ResponseMethod.ERROR, 
+				IGNORE, 
+				IGNORE, 
+				e.getError(), 
+				(e.getMessage().length() + e.getError().toString().length() + 2),
+				e.getError().toString() + ": " + e.getMessage());
+	}
+	
+	/* Executes a single client request and returns the response(s) to send back to the client 
+	 * (an empty string if the request does not get a response, i.e. a WRITE that does not complete a pending COMMIT) and the TID of the request  
+	 * READ requests are executed by processRead instead, their response body is not built in memory
+	 * 
+	 * Note: used by every connection front end, this method needs to be THREAD-SAFE
+	 */
+	public static Result processRequest (RequestMessage request) throws ServerException {
+		LogRecord log;
+		LogRecord newRecord;
+		StringBuilder responses = new StringBuilder();
+		long transactionID = request.getTransactionID();
+
+		switch (request.getMethod()) {
+		case ABORT:
+		{
+			log = FileServer.getLog(transactionID);
+
+			if (log.hasCommitted()) {
+				throw new ServerException(String.format("TID: %d has committed, you cannot ABORT a commited transaction.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+
+			newRecord = new LogRecord (
+					request.getMethod(), 
+					transactionID, 
+					IGNORE, 
+					null, 
+					null);
 
-					log.setAborted(true);
-					log.addLog(newRecord);
+			if (!log.markAborted() && log.hasCommitted()) {
+				// committed since the check above
+				throw new ServerException(String.format("TID: %d has committed, you cannot ABORT a commited transaction.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+			FileServer.removeCommit(transactionID); // a COMMIT that was waiting for WRITEs
+			log.addLog(newRecord);
 
+			String response = ClientServerProtocol.buildResponse(
+					ClientServerProtocol.ResponseMethod.ACK, 
+					transactionID,  // return the generated transaction ID to the client
+					IGNORE, 
+					ClientServerProtocol.Error.NONE, 
+					0,
+					null);
+
+			responses.append(response);
+		}
+		break;
+		case COMMIT:
+		{
+			FileServer.addCommit(transactionID);
+			
+			// the sequence number for a COMMIT request represents that of the LAST write request for this transaction
+			log = FileServer.getLog(transactionID);
+
+
+
+			if (log.hasCommitted() && request.getSequenceNumber() != log.getSequenceNumber()) {
+				FileServer.removeCommit(log.getTransactionID());
+				throw new ServerException(String.format("TID:%d has already commited with a different sequence number (%d)", transactionID, log.getSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+
+			if (log.hasAborted()) {
+				FileServer.removeCommit(log.getTransactionID());
+				throw new ServerException(String.format("TID:%d has aborted, you cannot commit an aborted transaction.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+			
+			if (!log.hasReceivedCommitRequest()) {
+				// officially sets the sequence number the server will use to commit this transaction (anything else will be an error)
+				log.setSequenceNumber(request.getSequenceNumber()); 
+				log.setReceivedCommitRequest(true);
+			}
+
+			if (!log.hasCommitted() && log.hasReceivedCommitRequest() && (request.getSequenceNumber() != log.getSequenceNumber())) {
+				//FileServer.removeCommit(log.getTransactionID());
+				throw new ServerException(String.format("TID:%d has already been requested to commit with a different sequence number (%d)", transactionID, log.getSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+
+			ArrayList<Integer> missingSequenceNumbers = log.getMissingSequenceNumbers(log.getSequenceNumber());
+
+			if (!missingSequenceNumbers.isEmpty()) {
+
+				for (Integer missingNumber : missingSequenceNumbers) {
 					String response = ClientServerProtocol.buildResponse(
-							ClientServerProtocol.ResponseMethod.ACK, 
+							ClientServerProtocol.ResponseMethod.ASK_RESEND, 
 							transactionID,  // return the generated transaction ID to the client
-							IGNORE, 
+							missingNumber, 
 							ClientServerProtocol.Error.NONE, 
 							0,
 							null);
 
-					out.print(response); 
-					out.flush();
+					//FileServer.removeCommit(log.getTransactionID());
+					responses.append(response);
 				}
-				break;
-				case COMMIT:
-				{
-					
-					
-					// the sequence number for a COMMIT request represents that of the LAST write request for this transaction
-					log = FileServer.getLog(transactionID);
 
+			} else {
 
+				if (request.getSequenceNumber() != log.getSequenceNumber()) {
+					FileServer.removeCommit(log.getTransactionID());
+					throw new ServerException(String.format("The server is expecting sequence number %d in order to commit as this number had been requested in an earlier request", log.getLargestSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION);
+				}
 
-					if (log.hasCommitted() && request.getSequenceNumber() != log.getSequenceNumber()) {
-						FileServer.removeCommit(log.getTransactionID());
-						throw new ServerException(String.format("TID:%d has already commited with a different sequence number (%d)", transactionID, log.getSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION);
-					}
 
-					if (log.hasAborted()) {
+				if (!log.hasCommitted()) {
+					newRecord = new LogRecord (
+							request.getMethod(), 
+							transactionID, 
+							request.getSequenceNumber(), 
+							null, 
+							null);
+
+					if (!log.markCommitted()) {
+						// aborted since the check above (by its client, or by the TransactionReaper)
 						FileServer.removeCommit(log.getTransactionID());
 						throw new ServerException(String.format("TID:%d has aborted, you cannot commit an aborted transaction.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
 					}
+					log.setSequenceNumber(request.getSequenceNumber());
+					log.setCommitLSN();
+					//log.setSequenceNumber(request.getSequenceNumber());
+					//log.addLog(newRecord);
 					
-					if (!log.hasReceivedCommitRequest()) {
-						// officially sets the sequence number the server will use to commit this transaction (anything else will be an error)
-						log.setSequenceNumber(request.getSequenceNumber()); 
-						log.setReceivedCommitRequest(true);
-					}
+					//FileServer.addLog (newRecord); // since the sequence number has already been used, we just add straight to log and flush to disk 
+					FileServer.processCommits(log);
+				} else if (!log.hasCommittedLocally()) {
+					// the COMMIT could not be written to disk earlier, it is retried
+					FileServer.processCommits(log);
+				} else {
+					FileServer.removeCommit(transactionID);
+				}
+				checkCommittedLocally(log);
 
-					if (!log.hasCommitted() && log.hasReceivedCommitRequest() && (request.getSequenceNumber() != log.getSequenceNumber())) {
-						//FileServer.removeCommit(log.getTransactionID());
-						throw new ServerException(String.format("TID:%d has already been requested to commit with a different sequence number (%d)", transactionID, log.getSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION);
-					}
 
-					ArrayList<Integer> missingSequenceNumbers = log.getMissingSequenceNumbers(log.getSequenceNumber());
-
-					if (!missingSequenceNumbers.isEmpty()) {
-
-						for (Integer missingNumber : missingSequenceNumbers) {
-							String response = ClientServerProtocol.buildResponse(
-									ClientServerProtocol.ResponseMethod.ASK_RESEND, 
-									transactionID,  // return the generated transaction ID to the client
-									missingNumber, 
-									ClientServerProtocol.Error.NONE, 
-									0,
-									null);
-
-							//FileServer.removeCommit(log.getTransactionID());
-							out.print(response); 
-							out.flush();
-						}
-
-					} else {
-
-						if (request.getSequenceNumber() != log.getSequenceNumber()) {
-							FileServer.removeCommit(log.getTransactionID());
-							throw new ServerException(String.format("The server is expecting sequence number %d in order to commit as this number had been requested in an earlier request", log.getLargestSequenceNumber()), ClientServerProtocol.Error.INVALID_OPERATION);
-						}
-
-
-						if (!log.hasCommitted()) {
-							newRecord = new LogRecord (
-									request.getMethod(), 
-									transactionID, 
-									request.getSequenceNumber(), 
-									null, 
-									null);
-
-							log.setCommited(true);
-							log.setSequenceNumber(request.getSequenceNumber());
-							log.setCommitLSN();
-							//log.setSequenceNumber(request.getSequenceNumber());
-							//log.addLog(newRecord);
-							
-							//FileServer.addLog (newRecord); // since the sequence number has already been used, we just add straight to log and flush to disk 
-							FileServer.processCommits();
-						} else {
-							FileServer.removeCommit(transactionID);
-						}
-
-
-						String response = ClientServerProtocol.buildResponse(
-								ClientServerProtocol.ResponseMethod.ACK, 
-								transactionID,  // return the generated transaction ID to the client
-								IGNORE, 
-								ClientServerProtocol.Error.NONE, 
-								0,
-								null);
-						
-						// if you are the primary server, do not send ACK to client until you have received ACK from backup
-						// perhaps put this in a loop until backup has responded 
-						if (FileServer.isPrimary() && !log.hasReceivedBackupACK()) {
-							backupSYNC(log);
-						}
+				String response = ClientServerProtocol.buildResponse(
+						ClientServerProtocol.ResponseMethod.ACK, 
+						transactionID,  // return the generated transaction ID to the client
+						IGNORE, 
+						ClientServerProtocol.Error.NONE, 
+						0,
+						null);
+				
+				// if you are the primary server, do not send ACK to client until you have received ACK from backup
+				// perhaps put this in a loop until backup has responded 
+				if (FileServer.isPrimary() && !log.hasReceivedBackupACK()) {
+					backupSYNC(log);
+				}
 //							out.print(response); 
 //							out.flush();
 //						} else {
 //							out.print(response); 
 //							out.flush();
 //						}	
-						
-						out.print(response); 
-						out.flush();
-					}	
-				}
-				break;
-				case NEW_TXN: /* create a new log record for the new transaction, generate a new ID and add it to the active transactions table */
-				{
-					
-					transactionID = FileServer.generateID();
-					String filename = request.getData();
-					newRecord = new LogRecord (
-							request.getMethod(), 
-							transactionID, 
-							0, 
-							filename, 
-							filename);
+				
+				responses.append(response);
+			}	
+		}
+		break;
+		case NEW_TXN: /* create a new log record for the new transaction, generate a new ID and add it to the active transactions table */
+		{
+			
+			transactionID = FileServer.generateID();
+			String filename = request.getData();
+			newRecord = new LogRecord (
+					request.getMethod(), 
+					transactionID, 
+					0, 
+					filename, 
+					filename);
 
 
-					log = FileServer.getLog(transactionID);
-					log.setFilename(filename);
-					FileServer.manageFile(filename);
-					log.addLog(newRecord);
+			log = FileServer.getLog(transactionID);
+			log.setFilename(filename);
+			log.addLog(newRecord);
 
-					String response = ClientServerProtocol.buildResponse(
-							ClientServerProtocol.ResponseMethod.ACK, 
-							transactionID,  // return the generated transaction ID to the client
-							request.getSequenceNumber(), 
-							ClientServerProtocol.Error.NONE, 
-							0,
-							null);
-					
-					out.print(response); 
-					out.flush();
+			String response = ClientServerProtocol.buildResponse(
+					ClientServerProtocol.ResponseMethod.ACK, 
+					transactionID,  // return the generated transaction ID to the client
+					request.getSequenceNumber(), 
+					ClientServerProtocol.Error.NONE, 
+					0,
+					null);
+			
+			responses.append(response);
 
-				}
+		}
 
-				break;
-				case READ:
-				{
-					String data = FileServer.readFile (request.getData());
-					int contentLength = data.getBytes().length;
-					String response = ClientServerProtocol.buildResponse(
-							ClientServerProtocol.ResponseMethod.ACK, 
-							IGNORE, 
-							IGNORE, 
-							ClientServerProtocol.Error.NONE, 
-							contentLength,
-							data);
+		break;
+		case WRITE:
+		{
+			File stagedFile = request.getStagedFile(); // waits for the data of a WRITE staged by the nio front end to be on disk
+			try {
+				log = FileServer.getLog(transactionID); // does necessary checks for a valid TID
 
-					out.print(response); 
-					out.flush();
+				if (log.hasCommitted() || log.hasAborted()) {
+					throw new ServerException(String.format("TID: %d has already committed/aborted.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+				}
 
+				newRecord = new LogRecord ( // does necessary check for duplicate sequence numbers
+						request.getMethod(), 
+						transactionID, 
+						request.getSequenceNumber(),  
+						null, 
+						request.getData());
+				if (stagedFile != null) {
+					// streamed WRITE: the log refers to the staging file instead of holding the data
+					newRecord.setStagedFile(stagedFile.getName(), request.getContentLength());
 				}
+				log.addLog(newRecord);
+			} catch (ServerException e) {
+				// the staged data of a rejected WRITE is not referenced by anything
+				if (stagedFile != null) {
+					stagedFile.delete();
+				}
+				throw e;
+			}
 
-				break;
-				case WRITE:
-				{
-					log = FileServer.getLog(transactionID); // does necessary checks for a valid TID
+			String response = commitIfComplete(log);
+			if (response != null) {
+				responses.append(response);
+			}
+		}
 
-					if (log.hasCommitted() || log.hasAborted()) {
-						throw new ServerException(String.format("TID: %d has already committed/aborted.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
-					}
+		break;
+		case WRITE_BATCH: /* adds many WRITEs with a single log entry, answered with one ACK (or an ASK_RESEND for every gap in the sequence numbers) */
+		{
+			log = FileServer.getLog(transactionID); // does necessary checks for a valid TID
 
-					newRecord = new LogRecord ( // does necessary check for duplicate sequence numbers
-							request.getMethod(), 
-							transactionID, 
-							request.getSequenceNumber(),  
-							null, 
-							request.getData());
-					log.addLog(newRecord);
+			if (log.hasCommitted() || log.hasAborted()) {
+				throw new ServerException(String.format("TID: %d has already committed/aborted.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+
+			ArrayList<LogRecord> writes = new ArrayList<LogRecord>(request.getBatch().size());
+			for (RequestMessage write : request.getBatch()) {
+				writes.add(new LogRecord (
+						RequestMessage.RequestMethod.WRITE, 
+						transactionID, 
+						write.getSequenceNumber(), 
+						null, 
+						write.getData()));
+			}
+			log.addLogBatch(writes); // does necessary check for duplicate sequence numbers
+
+			// the batch completed a pending COMMIT, the COMMIT's ACK acknowledges the batch as well
+			String response = commitIfComplete(log);
+			if (response != null) {
+				responses.append(response);
+				break;
+			}
 
-					// check to see if you can commit:
-					//  server has previously received a commit request and was unable to commit due to missing sequence numbers, 
-					//  the server can commit if this write has satisfied all of the servers ASK_RESEND requests
-					if (log.hasReceivedCommitRequest() && log.getMissingSequenceNumbers(log.getSequenceNumber()).isEmpty()) {
+			int largestSequenceNumber = log.getLargestSequenceNumber();
+			if (log.hasAllSequenceNumbers(largestSequenceNumber)) {
+				responses.append(ClientServerProtocol.buildResponse(
+						ClientServerProtocol.ResponseMethod.ACK, 
+						transactionID, 
+						largestSequenceNumber, // every write up to this sequence number has been received
+						ClientServerProtocol.Error.NONE, 
+						0,
+						null));
+			} else {
+				for (Integer missingNumber : log.getMissingSequenceNumbers(largestSequenceNumber)) {
+					responses.append(ClientServerProtocol.buildResponse(
+							ClientServerProtocol.ResponseMethod.ASK_RESEND, 
+							transactionID, 
+							missingNumber, 
+							ClientServerProtocol.Error.NONE, 
+							0,
+							null));
+				}
+			}
+		}
+		break;
+		default:
+			break;
+		}
+		
+		return new Result(responses.toString(), transactionID);
+	}
+	
+	/* check to see if you can commit:
+	 *  server has previously received a commit request and was unable to commit due to missing sequence numbers, 
+	 *  the server can commit if this write has satisfied all of the servers ASK_RESEND requests
+	 * returns the ACK for the COMMIT, or null if the transaction cannot commit yet */
+	private static String commitIfComplete (LogRecord log) throws ServerException {
+		long transactionID = log.getTransactionID();
+		if (log.hasReceivedCommitRequest() && log.hasAllSequenceNumbers(log.getSequenceNumber())) {
 //						newRecord = new LogRecord (
 //								RequestMessage.RequestMethod.COMMIT, 
 //								transactionID, 
@@ -456,56 +547,38 @@ public class Transaction extends Thread {
 //								null, 
 //								null);
 
-						String response = ClientServerProtocol.buildResponse(
-								ClientServerProtocol.ResponseMethod.ACK, 
-								transactionID,  // return the generated transaction ID to the client
-								IGNORE, 
-								ClientServerProtocol.Error.NONE, 
-								0,
-								null);
-
-						log.setCommited(true);			
-						log.setCommitLSN();
-						log.setSequenceNumber(log.getLargestSequenceNumber());
-						FileServer.processCommits();
-
-						if (FileServer.isPrimary() && !log.hasReceivedBackupACK()) {
-							backupSYNC(log);
-						} 
-						//FileServer.addCommit(log.getTransactionID());
-						//FileServer.addLog (newRecord); // since the sequence number has already been used, we just add straight to log and flush to disk 
-						
-						out.print(response); 
-						out.flush();
-
-					}
-
-				}
-
-				break;
-				default:
-					break;
-				}	
-			}
-		} catch (ServerException e) {
 			String response = ClientServerProtocol.buildResponse(
-					ClientServerProtocol.ResponseMethod.ERROR, 
-					IGNORE, 
+					ClientServerProtocol.ResponseMethod.ACK, 
+					transactionID,  // return the generated transaction ID to the client
 					IGNORE, 
-					e.getError(), 
-					(e.getMessage().length() + e.getError().toString().length() + 2),
-					e.getError().toString() + ": " + e.getMessage());
-			out.print(response);
-			out.flush();
+					ClientServerProtocol.Error.NONE, 
+					0,
+					null);
 
-		} 
-		catch (SocketTimeoutException e) {
-			System.err.println("No more data coming from client, server timed out after " + FileServer.getTimeout() + "ms : " + e.getMessage());
+			if (!log.markCommitted()) {
+				throw new ServerException(String.format("TID:%d has aborted, you cannot commit an aborted transaction.", transactionID), ClientServerProtocol.Error.INVALID_OPERATION);
+			}
+			log.setCommitLSN();
+			log.setSequenceNumber(log.getLargestSequenceNumber());
+			FileServer.processCommits(log);
+			checkCommittedLocally(log);
 
-		} 
-		catch (IOException e) {
-			e.printStackTrace();
-			System.out.print("IOException: " + e.getMessage());
+			if (FileServer.isPrimary() && !log.hasReceivedBackupACK()) {
+				backupSYNC(log);
+			} 
+			//FileServer.addCommit(log.getTransactionID());
+			//FileServer.addLog (newRecord); // since the sequence number has already been used, we just add straight to log and flush to disk 
+
+			return response;
+
+		}
+		return null;
+	}
+	
+	/* the COMMIT is not acknowledged unless its data has been written to the file, a failed COMMIT is retried when the client resends it */
+	private static void checkCommittedLocally (LogRecord log) throws ServerException {
+		if (!log.hasCommittedLocally()) {
+			throw new ServerException(String.format("The COMMIT of TID: %d could not be written to disk, resend the COMMIT to retry it", log.getTransactionID()), ClientServerProtocol.Error.FILE_IO_ERROR);
 		}
 	}
 
@@ -0,0 +1,174 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* TRANSACTION IDS :
+ * Hands out 64-bit TIDs that are never reused, without a lock shared by the threads that create transactions
+ *
+ * TID:   0 (1 bit)  EPOCH (22 bits)  NODE (1 bit)  COUNTER (40 bits)
+ * 		EPOCH 	 advanced every time the server starts and every time it is promoted to primary, and written to the epoch file before a TID of
+ * 				 the new epoch is handed out; a new epoch is also above every epoch found in a TID this server has seen (recovered or replicated),
+ * 				 so a server that has lost its epoch file does not reuse the TIDs it has already sent to its peer
+ * 		NODE 	 0 on the server with the lower address (ip, then port) of the primary/backup pair, 1 on the other: the two servers never hand
+ * 				 out the same TID, even when the backup is promoted before any transaction of the primary's current epoch reached it
+ * 		COUNTER  a thread takes a block of BLOCK_SIZE consecutive counters at a time (one atomic add) and hands them out on its own,
+ * 				 the epoch is advanced if the counter runs out
+ * Every TID is positive and larger than the 5-digit TIDs of older versions of the server (epoch 0 is never used).
+ */
+public class TransactionIDAllocator {
+
+	private static final int COUNTER_BITS = 40;
+	private static final int NODE_SHIFT = COUNTER_BITS;
+	private static final int EPOCH_SHIFT = COUNTER_BITS + 1;
+	private static final long MAX_EPOCH = (1L << (63 - EPOCH_SHIFT)) - 1;
+	private static final long MAX_COUNTER = 1L << COUNTER_BITS;
+	private static final long BLOCK_SIZE = 64; // consecutive TIDs of a block share a segment of FileServer.transactionDB
+
+	/* the epoch the TIDs are currently handed out in */
+	private static class Epoch {
+		private final long prefix; // epoch and node bits of its TIDs
+		private final AtomicLong nextBlock = new AtomicLong(0);
+
+		private Epoch (long prefix) {
+			this.prefix = prefix;
+		}
+	}
+
+	/* the counters a thread hands out on its own */
+	private static class Block {
+		private Epoch epoch;
+		private long next;
+		private long end;
+	}
+
+	private final File epochFile;
+	private final long node;
+	private final Lock epochLock = new ReentrantLock(); // taken only to advance the epoch
+	private final AtomicLong highestSeenEpoch = new AtomicLong(0);
+	private long epochNumber = 0; // guarded by epochLock
+	private volatile Epoch epoch = null;
+
+	private final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+		@Override
+		protected Block initialValue () {
+			return new Block();
+		}
+	};
+
+	public TransactionIDAllocator (File epochFile, InetSocketAddress self, InetSocketAddress peer) throws IOException {
+		this.epochFile = epochFile;
+		this.node = compare(self, peer) <= 0 ? 0 : 1;
+		if (epochFile.exists()) {
+			try {
+				epochNumber = Long.parseLong(new String(Files.readAllBytes(epochFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Epoch file " + epochFile + " is corrupted: " + e.getMessage());
+			}
+		}
+	}
+
+	/* a new TID, only once an epoch has been started */
+	public long next () {
+		Block block = blocks.get();
+		Epoch current = epoch;
+		if (block.epoch != current || block.next == block.end) {
+			refill(block, current);
+		}
+		return block.epoch.prefix | block.next++;
+	}
+
+	/* moves on to a new epoch, TIDs handed out from now on are above every TID this server has handed out or seen */
+	public void startEpoch () throws IOException {
+		epochLock.lock();
+		try {
+			advance();
+		} finally {
+			epochLock.unlock();
+		}
+	}
+
+	/* a TID that is in use on this server (recovered from the log, or received from the primary) */
+	public void observe (long transactionID) {
+		long seen = transactionID >>> EPOCH_SHIFT;
+		long highest = highestSeenEpoch.get();
+		while (seen > highest && !highestSeenEpoch.compareAndSet(highest, seen)) {
+			highest = highestSeenEpoch.get();
+		}
+	}
+
+	public long getEpoch () {
+		Epoch current = epoch;
+		return current == null ? 0 : current.prefix >>> EPOCH_SHIFT;
+	}
+
+	private void refill (Block block, Epoch current) {
+		while (true) {
+			if (current == null) {
+				throw new IllegalStateException("No TID can be handed out before an epoch has been started");
+			}
+			long start = current.nextBlock.getAndAdd(BLOCK_SIZE);
+			if (start + BLOCK_SIZE <= MAX_COUNTER) {
+				block.epoch = current;
+				block.next = start;
+				block.end = start + BLOCK_SIZE;
+				return;
+			}
+			// this epoch has run out of counters, the first thread to get here moves on to the next one
+			epochLock.lock();
+			try {
+				if (epoch == current) {
+					advance();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("The epoch file could not be written: " + e.getMessage(), e);
+			} finally {
+				epochLock.unlock();
+			}
+			current = epoch;
+		}
+	}
+
+	// epochLock must be held
+	private void advance () throws IOException {
+		long next = Math.max(epochNumber, highestSeenEpoch.get()) + 1;
+		if (next > MAX_EPOCH) {
+			throw new IOException("The TID epochs have run out (" + MAX_EPOCH + ")");
+		}
+		writeEpoch(next);
+		epochNumber = next;
+		epoch = new Epoch((next << EPOCH_SHIFT) | (node << NODE_SHIFT));
+	}
+
+	/* the epoch is durable before any of its TIDs is handed out */
+	private void writeEpoch (long number) throws IOException {
+		File temp = FileServer.getTempFile(epochFile.getName());
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(Long.toString(number).getBytes(StandardCharsets.UTF_8));
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), epochFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		FileServer.forceDirectory(epochFile);
+	}
+
+	private static int compare (InetSocketAddress a, InetSocketAddress b) {
+		if (b == null) return 0;
+		byte[] x = a.getAddress().getAddress();
+		byte[] y = b.getAddress().getAddress();
+		if (x.length != y.length) return x.length - y.length;
+		for (int i = 0; i < x.length; i++) {
+			int diff = (x[i] & 0xff) - (y[i] & 0xff);
+			if (diff != 0) return diff;
+		}
+		return a.getPort() - b.getPort();
+	}
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/* IDLE TRANSACTIONS AND TOMBSTONES :
+ * Keeps the memory of the transaction table proportional to the transactions in progress instead of the server's whole history.
+ * Finished transactions are compacted to tombstones (see LogRecord.compact): an aborted transaction as soon as its ABORT is logged,
+ * a committed one once the backup has acknowledged it (or straight after it is applied, on the backup). Every REAP_INTERVAL:
+ *  - a committed transaction that has been in its file for longer than COMPACT_DELAY is compacted even if the backup has not acknowledged it
+ *    (a backup that is down or behind is sent the committed data of a tombstone from its file, see ReplicationCodec.writeTransaction)
+ *  - a transaction that has neither committed nor aborted and has not logged a request for longer than the timeout is aborted: the ABORT is logged,
+ *    so recovery and checkpoints drop it as well, and its client gets an error if it comes back
+ *  - a tombstone is evicted from transactionDB and commitDB once its last request is older than EVICT_DELAY (a client that resends its COMMIT
+ *    or ABORT in the meantime is still answered), and, for a committed one, once its commit LSN is at or below the retain LSN: the backup has
+ *    acknowledged it and no checkpoint keeps it (see FileServer.getReplicationRetainLSN), so the primary never has to ship it again
+ * Only the transactions in progress and the recent tombstones are scanned, not the server's whole history.
+ */
+public class TransactionReaper implements Runnable {
+
+	private static final long REAP_INTERVAL = 5000; // UNIT: ms
+	private static final long COMPACT_DELAY = 10000; // UNIT: ms
+	private static final long EVICT_DELAY = 60000; // UNIT: ms
+
+	private final long timeout; // UNIT: ms, 0 never aborts an idle transaction
+
+	public TransactionReaper (long timeout) {
+		this.timeout = timeout;
+	}
+
+	public void start () {
+		Thread thread = new Thread(this, "transaction-reaper");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run () {
+		while (true) {
+			try {
+				Thread.sleep(REAP_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			int retainLSN;
+			try {
+				retainLSN = FileServer.getReplicationRetainLSN();
+			} catch (IOException e) {
+				// the acknowledged commit LSN could not be made durable, committed tombstones are kept until it can
+				retainLSN = 0;
+			}
+			ArrayList<LogRecord> idle = new ArrayList<LogRecord>();
+			for (LogRecord transaction : FileServer.transactionDB.values()) {
+				if (transaction.isCompacted()) {
+					if (now - transaction.getLastActivity() > EVICT_DELAY && (transaction.hasAborted() || transaction.getCommitLSN() <= retainLSN)) {
+						FileServer.evictTombstone(transaction);
+					}
+					continue;
+				}
+
+				if (transaction.hasCommitted()) {
+					if (transaction.hasCommittedLocally() && now - transaction.getCommittedLocallyAt() > COMPACT_DELAY) {
+						transaction.compact();
+					}
+				} else if (!transaction.hasAborted() && timeout > 0 && now - transaction.getLastActivity() > timeout) {
+					idle.add(transaction);
+				}
+			}
+
+			for (LogRecord transaction : idle) {
+				FileServer.abortIdleTransaction(transaction);
+			}
+		}
+	}
+}